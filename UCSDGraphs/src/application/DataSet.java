@@ -5,7 +5,6 @@ import java.util.HashSet;
 import java.util.Set;
 
 import geography.GeographicPoint;
-import util.GraphLoader;
 
 /**
  * Class to wrap the graph, current .map file map, and 
@@ -59,7 +58,8 @@ public class DataSet {
         roads = new HashMap<geography.GeographicPoint, HashSet<geography.RoadSegment>>();
         intersections = new HashSet<GeographicPoint>();
         //TODO: change to use intersections for points in graph.
-    	GraphLoader.loadRoadMap(filePath, graph, roads, intersections);
+        // reads the .mapbin snapshot next to the map, or parses the map and writes one
+    	roadgraph.MapSnapshot.loadRoadMap(filePath, graph, roads, intersections);
     }
 
 	public String getFilePath() {
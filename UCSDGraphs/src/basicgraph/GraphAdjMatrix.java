@@ -21,11 +21,14 @@ import java.util.Set;
 public class GraphAdjMatrix extends Graph {
 
 	private final int defaultNumVertices = 5;
-	private int[][] adjMatrix;
+	// row after row, the entry at row v, column w is at v * capacity + w
+	private int[] adjMatrix;
+	private int capacity;
 	
 	/** Create a new empty Graph */
 	public GraphAdjMatrix () {
-		adjMatrix = new int[defaultNumVertices][defaultNumVertices];
+		capacity = defaultNumVertices;
+		adjMatrix = new int[capacity * capacity];
 	}
 	
 	/** 
@@ -35,14 +38,13 @@ public class GraphAdjMatrix extends Graph {
 	 */
 	public void implementAddVertex() {
 		int v = getNumVertices();
-		if (v >= adjMatrix.length) {
-			int[][] newAdjMatrix = new int[v*2][v*2];
-			for (int i = 0; i < adjMatrix.length; i ++) {
-				for (int j = 0; j < adjMatrix.length; j ++) {
-					newAdjMatrix[i][j] = adjMatrix[i][j];
-				}
+		if (v >= capacity) {
+			int[] newAdjMatrix = new int[v*2 * v*2];
+			for (int i = 0; i < capacity; i ++) {
+				System.arraycopy(adjMatrix, i * capacity, newAdjMatrix, i * v*2, capacity);
 			}
 			adjMatrix = newAdjMatrix;
+			capacity = v*2;
 		}
 	}
 	
@@ -54,7 +56,7 @@ public class GraphAdjMatrix extends Graph {
 	 * @param w the index of the end point for the edge.  
 	 */	
 	public void implementAddEdge(int v, int w) {
-		adjMatrix[v][w] += 1;
+		adjMatrix[v * capacity + w] += 1;
 	}
 	
 	/** 
@@ -70,7 +72,7 @@ public class GraphAdjMatrix extends Graph {
 	public List<Integer> getNeighbors(int v) {
 		List<Integer> neighbors = new ArrayList<Integer>();
 		for (int i = 0; i < getNumVertices(); i ++) {
-			for (int j=0; j< adjMatrix[v][i]; j ++) {
+			for (int j=0; j< adjMatrix[v * capacity + i]; j ++) {
 				neighbors.add(i);
 			}
 		}
@@ -90,7 +92,7 @@ public class GraphAdjMatrix extends Graph {
 	public List<Integer> getInNeighbors(int v) {
 		List<Integer> inNeighbors = new ArrayList<Integer>();
 		for (int i = 0; i < getNumVertices(); i ++) {
-			for (int j=0; j< adjMatrix[i][v]; j++) {
+			for (int j=0; j< adjMatrix[i * capacity + v]; j++) {
 				inNeighbors.add(i);
 			}
 		}
@@ -102,29 +104,76 @@ public class GraphAdjMatrix extends Graph {
 	/** 
 	 * Implement the abstract method for finding all 
 	 * vertices reachable by two hops from v.
-	 * Use matrix multiplication to record length 2 paths.
+	 * Use matrix multiplication to record length 2 paths:
+	 * row v of the square of the adjacency matrix.
 	 * 
 	 * @param v the index of vertex.
 	 * @return List<Integer> a list of indices of vertices.  
 	 */	
 	public List<Integer> getDistance2(int v) {
-		// XXX Implement this method in week 2
 		List<Integer> twoHopList = new ArrayList<Integer>();
-		
-		for(int i = 0; i < adjMatrix.length; ++i) {
-			int res = 0;
-			for(int j = 0; j < adjMatrix.length; ++j) {
-				res += adjMatrix[v][j] * adjMatrix[j][i];
-			}
-			
-			for (int j = 0; j < res; j++) {
+		long[] counts = getPathCounts(v, 2);
+		for (int i = 0; i < counts.length; ++i) {
+			for (long j = 0; j < counts[i]; j++) {
 				twoHopList.add(i);
 			}
 		}
-		
 		return twoHopList;
 	}
 	
+	/**
+	 * Count the paths of k edges from one vertex to every vertex:
+	 * row v of the k-th power of the adjacency matrix, computed as
+	 * k products of a row with the matrix.
+	 * 
+	 * @param v the index of the start vertex.
+	 * @param k the number of edges of the paths.
+	 * @return the number of paths from v to every vertex, by index.
+	 */
+	public long[] getPathCounts(int v, int k) {
+		int n = getNumVertices();
+		if (k < 0) {
+			throw new IllegalArgumentException("Invalid number of edges: " + k);
+		}
+		long[] counts = new long[n];
+		counts[v] = 1;
+		for (int step = 0; step < k; step++) {
+			long[] next = new long[n];
+			for (int j = 0; j < n; j++) {
+				long paths = counts[j];
+				if (paths == 0) {
+					continue;
+				}
+				int row = j * capacity;
+				for (int i = 0; i < n; i++) {
+					next[i] += paths * adjMatrix[row + i];
+				}
+			}
+			counts = next;
+		}
+		return counts;
+	}
+	
+	/**
+	 * Count the paths of k edges between every pair of vertices:
+	 * the k-th power of the adjacency matrix, see Matrix.power.
+	 * Counts too large for a long wrap around.
+	 * 
+	 * @param k the number of edges of the paths.
+	 * @return the number of paths from v to w at v * n + w,
+	 * where n is the number of vertices.
+	 */
+	public long[] getPathCounts(int k) {
+		int n = getNumVertices();
+		long[] matrix = new long[n * n];
+		for (int v = 0; v < n; v++) {
+			for (int w = 0; w < n; w++) {
+				matrix[v * n + w] = adjMatrix[v * capacity + w];
+			}
+		}
+		return Matrix.power(matrix, n, k);
+	}
+	
 	/**
 	 * Generate string representation of adjacency matrix
 	 * @return the String
@@ -136,7 +185,7 @@ public class GraphAdjMatrix extends Graph {
 		for (int i = 0; i < dim; i ++) {
 			s += "\n\t"+i+": ";
 			for (int j = 0; j < dim; j++) {
-			s += adjMatrix[i][j] + ", ";
+			s += adjMatrix[i * capacity + j] + ", ";
 			}
 		}
 		return s;
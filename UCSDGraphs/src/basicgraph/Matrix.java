@@ -1,217 +1,541 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Multiplication of square matrices, for counting paths in a
+ * GraphAdjMatrix. The matrices are stored flat, row after row, in a long[]
+ * of n * n entries, so a path count does not overflow as soon as an int
+ * would.
+ *
+ * The product is computed with Strassen's algorithm, which multiplies two
+ * matrices with seven products of half the size instead of eight. The
+ * seven products are forked on a ForkJoinPool while the blocks are large,
+ * and blocks of at most the cutoff size are multiplied with the classical
+ * algorithm, tiled so the rows it reads stay in the cache. Strassen's
+ * algorithm needs a size that can be halved down to the cutoff, so the
+ * matrices are padded with zeros to the smallest size m * 2^k with m at
+ * most the cutoff, which is never more than n + 2^k.
+ *
+ * The classical algorithm skips the zeros of the left matrix, so on an
+ * adjacency matrix with few edges it does far less work than Strassen's,
+ * whose sums fill the zeros in. multiply picks between the two by the
+ * share of entries that are not zero.
+ */
 package basicgraph;
 
 import java.util.Arrays;
-
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 
 public class Matrix {
-	public static int[][] makeMatrixOf2ToPowerN(int[][] matrix) {
-		int[][] newMat = new int[matrix.length + 1][matrix.length + 1];
-		
-		for(int i = 0; i < matrix.length; ++i) {
-			for (int j = 0; j < matrix.length; j++) {
-				newMat[i][j] = matrix[i][j];
+	// blocks of at most this size are multiplied with the classical
+	// algorithm, the fastest in main on dense matrices of 500 to 2000
+	public static final int DEFAULT_CUTOFF = 128;
+	// blocks of at least this size fork their seven products
+	private static final int PARALLEL_THRESHOLD = 512;
+	// side of the tiles of the classical algorithm, a tile of b is 32 KB
+	private static final int TILE = 64;
+
+	// The seven products of Strassen's algorithm. The quadrants of a block
+	// are numbered 0 = 11, 1 = 12, 2 = 21 and 3 = 22. Product i multiplies
+	// quadrant A_LEFT[i] of a, plus A_SIGN[i] times quadrant A_RIGHT[i] if
+	// that is not -1, by the same of b, and is added to the quadrants of c
+	// times C_SIGN[i].
+	private static final int[] A_LEFT = { 0, 2, 0, 3, 0, 2, 1 };
+	private static final int[] A_RIGHT = { 3, 3, -1, -1, 1, 0, 3 };
+	private static final int[] A_SIGN = { 1, 1, 0, 0, 1, -1, -1 };
+	private static final int[] B_LEFT = { 0, 0, 1, 2, 3, 0, 2 };
+	private static final int[] B_RIGHT = { 3, -1, 3, 0, -1, 1, 3 };
+	private static final int[] B_SIGN = { 1, 0, -1, -1, 0, 1, 1 };
+	private static final int[][] C_SIGN = { { 1, 0, 0, 1 }, { 0, 0, 1, -1 }, { 0, 1, 0, 1 },
+			{ 1, 0, 1, 0 }, { -1, 1, 0, 0 }, { 0, 0, 0, 1 }, { 1, 0, 0, 0 } };
+
+	private Matrix() {
+	}
+
+	/**
+	 * multiplies two matrices on the common pool, with the classical
+	 * algorithm if a is sparse and Strassen's algorithm otherwise
+	 * @param a the left matrix, n * n entries row after row
+	 * @param b the right matrix, n * n entries row after row
+	 * @param n the number of rows and columns
+	 * @return the product a * b, n * n entries row after row
+	 */
+	public static long[] multiply(long[] a, long[] b, int n) {
+		check(a, n);
+		check(b, n);
+		int size = paddedSize(n, DEFAULT_CUTOFF);
+		long nonZeros = 0;
+		for (long x : a) {
+			if (x != 0) {
+				nonZeros++;
+			}
+		}
+		// every halving saves an eighth of the work of the classical
+		// algorithm on a dense matrix, which is what Strassen's costs
+		double strassenWork = (double) size * size * size;
+		for (int m = size; m > DEFAULT_CUTOFF; m /= 2) {
+			strassenWork = strassenWork * 7 / 8;
+		}
+		if ((double) nonZeros * n > strassenWork) {
+			return multiply(a, b, n, DEFAULT_CUTOFF, ForkJoinPool.commonPool());
+		}
+		long[] c = new long[n * n];
+		IntStream.range(0, (n + TILE - 1) / TILE).parallel().forEach(band -> {
+			int first = band * TILE;
+			classical(a, first * n, n, b, 0, n, c, first * n, n, Math.min(TILE, n - first), n);
+		});
+		return c;
+	}
+
+	/**
+	 * multiplies two matrices with Strassen's algorithm, whatever their
+	 * zeros
+	 * @param a the left matrix, n * n entries row after row
+	 * @param b the right matrix, n * n entries row after row
+	 * @param n the number of rows and columns
+	 * @param cutoff the largest block multiplied with the classical algorithm
+	 * @param pool the pool the products are forked on
+	 * @return the product a * b, n * n entries row after row
+	 */
+	public static long[] multiply(long[] a, long[] b, int n, int cutoff, ForkJoinPool pool) {
+		check(a, n);
+		check(b, n);
+		if (cutoff < 1) {
+			throw new IllegalArgumentException("Invalid cutoff: " + cutoff);
+		}
+		int size = paddedSize(n, cutoff);
+		boolean isParallel = pool.getParallelism() > 1;
+		if (size == n) {
+			long[] c = new long[n * n];
+			pool.invoke(new Product(a, 0, n, b, 0, n, c, 0, n, n, cutoff, isParallel));
+			return c;
+		}
+		long[] c = new long[size * size];
+		pool.invoke(new Product(pad(a, n, size), 0, size, pad(b, n, size), 0, size, c, 0, size,
+				size, cutoff, isParallel));
+		long[] product = new long[n * n];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(c, i * size, product, i * n, n);
+		}
+		return product;
+	}
+
+	/**
+	 * multiplies two matrices with the tiled classical algorithm in the
+	 * calling thread
+	 * @param a the left matrix, n * n entries row after row
+	 * @param b the right matrix, n * n entries row after row
+	 * @param n the number of rows and columns
+	 * @return the product a * b, n * n entries row after row
+	 */
+	public static long[] multiplyClassical(long[] a, long[] b, int n) {
+		check(a, n);
+		check(b, n);
+		long[] c = new long[n * n];
+		classical(a, 0, n, b, 0, n, c, 0, n, n, n);
+		return c;
+	}
+
+	/**
+	 * raises a matrix to a power by repeated squaring. For an adjacency
+	 * matrix, entry v * n + w of the k-th power is the number of paths of
+	 * k edges from v to w.
+	 * @param a the matrix, n * n entries row after row
+	 * @param n the number of rows and columns
+	 * @param k the power, 0 gives the identity
+	 * @return a to the power k, n * n entries row after row
+	 */
+	public static long[] power(long[] a, int n, int k) {
+		check(a, n);
+		if (k < 0) {
+			throw new IllegalArgumentException("Invalid power: " + k);
+		}
+		long[] result = null;
+		long[] square = a;
+		for (; k > 0; k >>= 1) {
+			if ((k & 1) != 0) {
+				result = result == null ? square.clone() : multiply(result, square, n);
+			}
+			if (k > 1) {
+				square = multiply(square, square, n);
+			}
+		}
+		if (result == null) {
+			result = new long[n * n];
+			for (int i = 0; i < n; i++) {
+				result[i * n + i] = 1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * returns the size Strassen's algorithm pads a matrix to
+	 * @param n the number of rows and columns
+	 * @param cutoff the largest block multiplied with the classical algorithm
+	 * @return the smallest m * 2^k at least n with m at most cutoff
+	 */
+	static int paddedSize(int n, int cutoff) {
+		int levels = 0;
+		while ((n + (1 << levels) - 1) >> levels > cutoff) {
+			levels++;
+		}
+		return ((n + (1 << levels) - 1) >> levels) << levels;
+	}
+
+	private static void check(long[] a, int n) {
+		if (n < 0 || a.length != (long) n * n) {
+			throw new IllegalArgumentException("Expected " + n + " * " + n + " entries, got " + a.length);
+		}
+	}
+
+	// A copy of a with zero rows and columns added up to size.
+	private static long[] pad(long[] a, int n, int size) {
+		long[] padded = new long[size * size];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(a, i * n, padded, i * size, n);
+		}
+		return padded;
+	}
+
+	// Adds a * b to c, where a and c are rows * n blocks and b is an n * n
+	// block, starting at the offsets of arrays with rows of the given
+	// strides. The loops run in
+	// i, k, j order so the inner loop reads b and writes c along a row, over
+	// tiles of k and j so the tile of b stays in the cache for every row of
+	// a. Adjacency matrices are mostly zeros, which are skipped.
+	private static void classical(long[] a, int aOffset, int aStride, long[] b, int bOffset,
+			int bStride, long[] c, int cOffset, int cStride, int rows, int n) {
+		for (int kk = 0; kk < n; kk += TILE) {
+			int kEnd = Math.min(kk + TILE, n);
+			for (int jj = 0; jj < n; jj += TILE) {
+				int jEnd = Math.min(jj + TILE, n);
+				for (int i = 0; i < rows; i++) {
+					int aRow = aOffset + i * aStride;
+					int cRow = cOffset + i * cStride;
+					for (int k = kk; k < kEnd; k++) {
+						long x = a[aRow + k];
+						if (x == 0) {
+							continue;
+						}
+						int bRow = bOffset + k * bStride;
+						for (int j = jj; j < jEnd; j++) {
+							c[cRow + j] += x * b[bRow + j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Adds a * b to c for n * n blocks, like classical. n is m * 2^k with m
+	// at most cutoff.
+	private static final class Product extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final long[] a;
+		private final int aOffset;
+		private final int aStride;
+		private final long[] b;
+		private final int bOffset;
+		private final int bStride;
+		private final long[] c;
+		private final int cOffset;
+		private final int cStride;
+		private final int n;
+		private final int cutoff;
+		private final boolean isParallel;
+
+		Product(long[] a, int aOffset, int aStride, long[] b, int bOffset, int bStride, long[] c,
+				int cOffset, int cStride, int n, int cutoff, boolean isParallel) {
+			this.a = a;
+			this.aOffset = aOffset;
+			this.aStride = aStride;
+			this.b = b;
+			this.bOffset = bOffset;
+			this.bStride = bStride;
+			this.c = c;
+			this.cOffset = cOffset;
+			this.cStride = cStride;
+			this.n = n;
+			this.cutoff = cutoff;
+			this.isParallel = isParallel;
+		}
+
+		@Override
+		protected void compute() {
+			if (n <= cutoff) {
+				classical(a, aOffset, aStride, b, bOffset, bStride, c, cOffset, cStride, n, n);
+				return;
+			}
+			int h = n / 2;
+			if (isParallel && n >= PARALLEL_THRESHOLD) {
+				// every product gets its own operands and result
+				Product[] products = new Product[7];
+				long[][] results = new long[7][];
+				for (int i = 0; i < 7; i++) {
+					results[i] = new long[h * h];
+					products[i] = term(i, null, null, results[i]);
+				}
+				invokeAll(products);
+				for (int i = 0; i < 7; i++) {
+					addToQuadrants(results[i], i);
+				}
+				return;
+			}
+			// one product after the other, reusing the buffers
+			long[] left = new long[h * h];
+			long[] right = new long[h * h];
+			long[] result = new long[h * h];
+			for (int i = 0; i < 7; i++) {
+				if (i > 0) {
+					Arrays.fill(result, 0);
+				}
+				term(i, left, right, result).compute();
+				addToQuadrants(result, i);
+			}
+		}
+
+		// The i-th product of Strassen's algorithm, with its sums written to
+		// left and right, or to new arrays if they are null. A quadrant that
+		// is not added to another is used in place.
+		private Product term(int i, long[] left, long[] right, long[] result) {
+			int h = n / 2;
+			long[] x = a;
+			int xOffset = quadrant(aOffset, aStride, A_LEFT[i]);
+			int xStride = aStride;
+			if (A_RIGHT[i] >= 0) {
+				x = sum(a, xOffset, quadrant(aOffset, aStride, A_RIGHT[i]), aStride, A_SIGN[i], left, h);
+				xOffset = 0;
+				xStride = h;
+			}
+			long[] y = b;
+			int yOffset = quadrant(bOffset, bStride, B_LEFT[i]);
+			int yStride = bStride;
+			if (B_RIGHT[i] >= 0) {
+				y = sum(b, yOffset, quadrant(bOffset, bStride, B_RIGHT[i]), bStride, B_SIGN[i], right, h);
+				yOffset = 0;
+				yStride = h;
+			}
+			return new Product(x, xOffset, xStride, y, yOffset, yStride, result, 0, h, h, cutoff,
+					isParallel);
+		}
+
+		private int quadrant(int offset, int stride, int q) {
+			int h = n / 2;
+			return offset + (q >> 1) * h * stride + (q & 1) * h;
+		}
+
+		// Adds the i-th product to the quadrants of c.
+		private void addToQuadrants(long[] product, int i) {
+			int h = n / 2;
+			for (int q = 0; q < 4; q++) {
+				int sign = C_SIGN[i][q];
+				if (sign == 0) {
+					continue;
+				}
+				int offset = quadrant(cOffset, cStride, q);
+				for (int r = 0; r < h; r++) {
+					int row = offset + r * cStride;
+					int from = r * h;
+					if (sign > 0) {
+						for (int j = 0; j < h; j++) {
+							c[row + j] += product[from + j];
+						}
+					} else {
+						for (int j = 0; j < h; j++) {
+							c[row + j] -= product[from + j];
+						}
+					}
+				}
 			}
 		}
+	}
+
+	// Writes the h * h block at first plus sign times the one at second,
+	// both in rows of the given stride of m, to to, or to a new array if
+	// to is null.
+	private static long[] sum(long[] m, int first, int second, int stride, int sign, long[] to, int h) {
+		long[] s = to == null ? new long[h * h] : to;
+		for (int r = 0; r < h; r++) {
+			int x = first + r * stride;
+			int y = second + r * stride;
+			int row = r * h;
+			if (sign > 0) {
+				for (int j = 0; j < h; j++) {
+					s[row + j] = m[x + j] + m[y + j];
+				}
+			} else {
+				for (int j = 0; j < h; j++) {
+					s[row + j] = m[x + j] - m[y + j];
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * copies a matrix into one padded with zeros to the next power of two
+	 * @param matrix the matrix, its rows may differ in length
+	 * @return a square matrix whose size is the smallest power of two at
+	 *   least the number of rows and columns of matrix
+	 */
+	public static int[][] makeMatrixOf2ToPowerN(int[][] matrix) {
+		int n = matrix.length;
+		for (int[] row : matrix) {
+			n = Math.max(n, row.length);
+		}
+		int size = 1;
+		while (size < n) {
+			size <<= 1;
+		}
+		int[][] newMat = new int[size][size];
+		for (int i = 0; i < matrix.length; ++i) {
+			System.arraycopy(matrix[i], 0, newMat[i], 0, matrix[i].length);
+		}
 		return newMat;
 	}
-	  // Function to multiply matrices
-    public static int[][] multiply(int[][] A, int[][] B)
-    {
-        // Order of matrix
-        int n = A.length;
- 
-        // Creating a 2D square matrix with size n
-        // n is input from the user
-        int[][] R = new int[n][n];
- 
-        // Base case
-        // If there is only single element
-        if (n == 1)
- 
-            // Returning the simple multiplication of
-            // two elements in matrices
-            R[0][0] = A[0][0] * B[0][0];
- 
-        // Matrix
-        else {
-            // Step 1: Dividing Matrix into parts
-            // by storing sub-parts to variables
-            int[][] A11 = new int[n / 2][n / 2];
-            int[][] A12 = new int[n / 2][n / 2];
-            int[][] A21 = new int[n / 2][n / 2];
-            int[][] A22 = new int[n / 2][n / 2];
-            int[][] B11 = new int[n / 2][n / 2];
-            int[][] B12 = new int[n / 2][n / 2];
-            int[][] B21 = new int[n / 2][n / 2];
-            int[][] B22 = new int[n / 2][n / 2];
- 
-            // Step 2: Dividing matrix A into 4 halves
-            split(A, A11, 0, 0);
-            split(A, A12, 0, n / 2);
-            split(A, A21, n / 2, 0);
-            split(A, A22, n / 2, n / 2);
- 
-            // Step 2: Dividing matrix B into 4 halves
-            split(B, B11, 0, 0);
-            split(B, B12, 0, n / 2);
-            split(B, B21, n / 2, 0);
-            split(B, B22, n / 2, n / 2);
- 
-            // Using Formulas as described in algorithm
- 
-            // M1:=(A1+A3)×(B1+B2)
-            int[][] M1
-                = multiply(add(A11, A22), add(B11, B22));
-           
-            // M2:=(A2+A4)×(B3+B4)
-            int[][] M2 = multiply(add(A21, A22), B11);
-           
-            // M3:=(A1−A4)×(B1+A4)
-            int[][] M3 = multiply(A11, sub(B12, B22));
-           
-            // M4:=A1×(B2−B4)
-            int[][] M4 = multiply(A22, sub(B21, B11));
-           
-            // M5:=(A3+A4)×(B1)
-            int[][] M5 = multiply(add(A11, A12), B22);
-           
-            // M6:=(A1+A2)×(B4)
-            int[][] M6
-                = multiply(sub(A21, A11), add(B11, B12));
-           
-            // M7:=A4×(B3−B1)
-            int[][] M7
-                = multiply(sub(A12, A22), add(B21, B22));
- 
-            // P:=M2+M3−M6−M7
-            int[][] C11 = add(sub(add(M1, M4), M5), M7);
-           
-            // Q:=M4+M6
-            int[][] C12 = add(M3, M5);
-           
-            // R:=M5+M7
-            int[][] C21 = add(M2, M4);
-           
-            // S:=M1−M3−M4−M5
-            int[][] C22 = add(sub(add(M1, M3), M2), M6);
- 
-            // Step 3: Join 4 halves into one result matrix
-            join(C11, R, 0, 0);
-            join(C12, R, 0, n / 2);
-            join(C21, R, n / 2, 0);
-            join(C22, R, n / 2, n / 2);
-        }
- 
-        // Step 4: Return result
-        return R;
-    }
- 
-    // Method 2
-    // Function to subtract two matrices
-    public static int[][] sub(int[][] A, int[][] B)
-    {
-        //
-        int n = A.length;
- 
-        //
-        int[][] C = new int[n][n];
- 
-        // Iterating over elements of 2D matrix
-        // using nested for loops
- 
-        // Outer loop for rows
-        for (int i = 0; i < n; i++)
- 
-            // Inner loop for columns
-            for (int j = 0; j < n; j++)
- 
-                // Subtracting corresponding elements
-                // from matrices
-                C[i][j] = A[i][j] - B[i][j];
- 
-        // Returning the resultant matrix
-        return C;
-    }
- 
-    // Method 3
-    // Function to add two matrices
-    public static int[][] add(int[][] A, int[][] B)
-    {
- 
-        //
-        int n = A.length;
- 
-        // Creating a 2D square matrix
-        int[][] C = new int[n][n];
- 
-        // Iterating over elements of 2D matrix
-        // using nested for loops
- 
-        // Outer loop for rows
-        for (int i = 0; i < n; i++)
- 
-            // Inner loop for columns
-            for (int j = 0; j < n; j++)
- 
-                // Adding corresponding elements
-                // of matrices
-                C[i][j] = A[i][j] + B[i][j];
- 
-        // Returning the resultant matrix
-        return C;
-    }
- 
-    // Method 4
-    // Function to split parent matrix
-    // into child matrices
-    public static void split(int[][] P, int[][] C, int iB, int jB)
-    {
-        // Iterating over elements of 2D matrix
-        // using nested for loops
- 
-        // Outer loop for rows
-        for (int i1 = 0, i2 = iB; i1 < C.length; i1++, i2++)
- 
-            // Inner loop for columns
-            for (int j1 = 0, j2 = jB; j1 < C.length;
-                 j1++, j2++)
- 
-                C[i1][j1] = P[i2][j2];
-    }
- 
-    // Method 5
-    // Function to join child matrices
-    // into (to) parent matrix
-    public static void join(int[][] C, int[][] P, int iB, int jB)
- 
-    {
-        // Iterating over elements of 2D matrix
-        // using nested for loops
- 
-        // Outer loop for rows
-        for (int i1 = 0, i2 = iB; i1 < C.length; i1++, i2++)
- 
-            // Inner loop for columns
-            for (int j1 = 0, j2 = jB; j1 < C.length;
-                 j1++, j2++)
- 
-                P[i2][j2] = C[i1][j1];
-    }
-    public static void main(String[] args) {
-        int[][] A = {{2, 2}, {5, 7}};
-        int[][] B = {{3, 4}, {7, 8}};
-
-        int[][] result = multiply(A, B);
-
-        // Print the result
-        for (int[] row : result) {
-            System.out.println(Arrays.toString(row));
-        }
-    }
-    
-    public static void printMat(int[][] mat) {
-    	for (int[] row : mat) {
-            System.out.println(Arrays.toString(row));
-        }
-    }
+
+	/**
+	 * multiplies two square matrices of any size, with int arithmetic
+	 * @param A the left matrix
+	 * @param B the right matrix, of the same size
+	 * @return the product A * B
+	 */
+	public static int[][] multiply(int[][] A, int[][] B) {
+		int n = A.length;
+		if (B.length != n) {
+			throw new IllegalArgumentException("Matrices of size " + n + " and " + B.length);
+		}
+		long[] product = multiply(flatten(A), flatten(B), n);
+		int[][] R = new int[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				// wraps around like a product of ints would
+				R[i][j] = (int) product[i * n + j];
+			}
+		}
+		return R;
+	}
+
+	/**
+	 * copies a square matrix into one row after row
+	 * @param matrix the matrix
+	 * @return its n * n entries row after row
+	 */
+	public static long[] flatten(int[][] matrix) {
+		int n = matrix.length;
+		long[] flat = new long[n * n];
+		for (int i = 0; i < n; i++) {
+			if (matrix[i].length != n) {
+				throw new IllegalArgumentException("Row " + i + " has " + matrix[i].length
+						+ " entries, expected " + n);
+			}
+			for (int j = 0; j < n; j++) {
+				flat[i * n + j] = matrix[i][j];
+			}
+		}
+		return flat;
+	}
+
+	// Function to subtract two matrices
+	public static int[][] sub(int[][] A, int[][] B) {
+		int n = A.length;
+		int[][] C = new int[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				C[i][j] = A[i][j] - B[i][j];
+			}
+		}
+		return C;
+	}
+
+	// Function to add two matrices
+	public static int[][] add(int[][] A, int[][] B) {
+		int n = A.length;
+		int[][] C = new int[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				C[i][j] = A[i][j] + B[i][j];
+			}
+		}
+		return C;
+	}
+
+	// Function to copy the block of P starting at row iB, column jB into C
+	public static void split(int[][] P, int[][] C, int iB, int jB) {
+		for (int i1 = 0, i2 = iB; i1 < C.length; i1++, i2++) {
+			for (int j1 = 0, j2 = jB; j1 < C.length; j1++, j2++) {
+				C[i1][j1] = P[i2][j2];
+			}
+		}
+	}
+
+	// Function to copy C into the block of P starting at row iB, column jB
+	public static void join(int[][] C, int[][] P, int iB, int jB) {
+		for (int i1 = 0, i2 = iB; i1 < C.length; i1++, i2++) {
+			for (int j1 = 0, j2 = jB; j1 < C.length; j1++, j2++) {
+				P[i2][j2] = C[i1][j1];
+			}
+		}
+	}
+
+	public static void printMat(int[][] mat) {
+		for (int[] row : mat) {
+			System.out.println(Arrays.toString(row));
+		}
+	}
+
+	// An adjacency matrix of a random graph with the given average degree.
+	private static long[] randomGraph(int n, int degree, Random random) {
+		long[] a = new long[n * n];
+		for (int e = 0; e < n * degree; e++) {
+			a[random.nextInt(n) * n + random.nextInt(n)]++;
+		}
+		return a;
+	}
+
+	// Times the classical algorithm, Strassen's with several cutoffs and
+	// the choice of multiply on a * b.
+	private static void compare(String name, long[] a, long[] b, int n) {
+		long begin = System.nanoTime();
+		long[] expected = multiplyClassical(a, b, n);
+		System.out.printf("%s, n = %d: classical %.0f ms%n", name, n, (System.nanoTime() - begin) / 1e6);
+		for (int cutoff : new int[] { 64, 128, 256 }) {
+			begin = System.nanoTime();
+			long[] c = multiply(a, b, n, cutoff, ForkJoinPool.commonPool());
+			System.out.printf("  strassen cutoff %3d, padded to %d: %.0f ms, %s%n", cutoff,
+					paddedSize(n, cutoff), (System.nanoTime() - begin) / 1e6,
+					Arrays.equals(c, expected) ? "same" : "DIFFERENT");
+		}
+		begin = System.nanoTime();
+		long[] c = multiply(a, b, n);
+		System.out.printf("  multiply: %.0f ms, %s%n", (System.nanoTime() - begin) / 1e6,
+				Arrays.equals(c, expected) ? "same" : "DIFFERENT");
+	}
+
+	public static void main(String[] args) {
+		int[][] A = { { 2, 2 }, { 5, 7 } };
+		int[][] B = { { 3, 4 }, { 7, 8 } };
+		printMat(multiply(A, B));
+
+		int[] sizes = args.length > 0 ? new int[args.length] : new int[] { 500, 1000, 2000 };
+		for (int i = 0; i < args.length; i++) {
+			sizes[i] = Integer.parseInt(args[i]);
+		}
+		Random random = new Random(42);
+		System.out.println(ForkJoinPool.commonPool().getParallelism() + " threads");
+		for (int n : sizes) {
+			compare("sparse", randomGraph(n, 8, random), randomGraph(n, 8, random), n);
+			long[] a = new long[n * n];
+			long[] b = new long[n * n];
+			for (int i = 0; i < n * n; i++) {
+				a[i] = random.nextInt(100);
+				b[i] = random.nextInt(100);
+			}
+			compare("dense", a, b, n);
+		}
+	}
 }
@@ -23,7 +23,21 @@ public class GeographicPoint extends Double {
 	}
 	
     
-    private double getDist(double lat1, double lon1, double lat2, double lon2)
+    /**
+     * Calculates the geographic distance in km between two lat, lon pairs
+     * without creating GeographicPoint objects.
+     * @param lat1 latitude of the first point
+     * @param lon1 longitude of the first point
+     * @param lat2 latitude of the second point
+     * @param lon2 longitude of the second point
+     * @return The distance between the two points
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2)
+    {
+    	return getDist(lat1, lon1, lat2, lon2);
+    }
+    
+    private static double getDist(double lat1, double lon1, double lat2, double lon2)
     {
     	int R = 6373; // radius of the earth in kilometres
     	double lat1rad = Math.toRadians(lat1);
@@ -109,6 +109,21 @@ public class RoadSegment {
 	// get the length of the road segment
 	public double getLength() { return this.length; }
 	
+	// get the name of the road
+	public String getRoadName() { return this.roadName; }
+	
+	// get the type of the road, e.g. "residential"
+	public String getRoadType() { return this.roadType; }
+	
+	// get the intermediate points between the two end points, from point1 to point2
+	public List<GeographicPoint> getGeometryPoints() { return Collections.unmodifiableList(this.geometryPoints); }
+	
+	// get the end point the geometry starts from
+	public GeographicPoint getPoint1() { return this.point1; }
+	
+	// get the end point the geometry ends at
+	public GeographicPoint getPoint2() { return this.point2; }
+	
 	
 	// given one end, return the other.
 	public geography.GeographicPoint getOtherPoint(geography.GeographicPoint point) {
@@ -0,0 +1,582 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Finds a few sensible alternatives to the shortest route between two
+ * intersections. Two methods are offered:
+ *
+ * yen() runs Yen's k shortest loopless paths algorithm and keeps the paths
+ * in order of cost, so the alternatives are exact. The spur searches of one
+ * round are independent and run in parallel.
+ *
+ * plateaus() grows a shortest path tree from the start and one towards the
+ * goal, in the two pooled search contexts of the thread, and looks for
+ * plateaus: chains of edges that are in both trees. Every plateau gives a
+ * route that is locally optimal, and long plateaus make good alternatives.
+ * It needs just two searches, which makes it the method for interactive
+ * use.
+ *
+ * Both methods reject routes that cost more than maxStretch times the
+ * shortest route, or that share more than maxOverlap of their cost with a
+ * route already chosen. Costs are in the units of the graph's metric.
+ */
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+
+public class AlternativeRoutes {
+	/** Default limit on the cost of an alternative relative to the shortest route */
+	public static final double DEFAULT_MAX_STRETCH = 1.4;
+	/** Default limit on the share of an alternative used by another route */
+	public static final double DEFAULT_MAX_OVERLAP = 0.7;
+
+	// Yen's algorithm gives up after this many paths per requested route,
+	// the plateau method after this many plateaus
+	private static final int PATHS_PER_ROUTE = 10;
+
+	private final CompactGraph graph;
+	private double maxStretch = DEFAULT_MAX_STRETCH;
+	private double maxOverlap = DEFAULT_MAX_OVERLAP;
+
+	/** A route as the edges it follows */
+	public static class Route implements Comparable<Route> {
+		private final int[] vertices;
+		private final int[] edges;
+		private final double cost;
+		private BitSet edgeSet; // built when the route is first compared
+
+		Route(int[] vertices, int[] edges, double cost) {
+			this.vertices = vertices;
+			this.edges = edges;
+			this.cost = cost;
+		}
+
+		public double getCost() {
+			return cost;
+		}
+
+		public int[] getEdges() {
+			return edges.clone();
+		}
+
+		public int[] getVertices() {
+			return vertices.clone();
+		}
+
+		/**
+		 * returns the locations of the intersections on the route
+		 * @param graph the graph the route was found in
+		 * @return the path from the start to the goal
+		 */
+		public List<GeographicPoint> getPath(CompactGraph graph) {
+			List<GeographicPoint> path = new ArrayList<GeographicPoint>();
+			for (int v : vertices) {
+				path.add(graph.getLocation(v));
+			}
+			return path;
+		}
+
+		// Whether the route uses an edge.
+		boolean uses(int edge) {
+			if (edgeSet == null) {
+				edgeSet = new BitSet();
+				for (int e : edges) {
+					edgeSet.set(e);
+				}
+			}
+			return edgeSet.get(edge);
+		}
+
+		@Override
+		public int compareTo(Route other) {
+			return Double.compare(cost, other.cost);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Route && Arrays.equals(edges, ((Route) other).edges);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(edges);
+		}
+	}
+
+	/**
+	 * Creates an engine for a graph
+	 * @param graph the graph to route on
+	 */
+	public AlternativeRoutes(CompactGraph graph) {
+		this.graph = Objects.requireNonNull(graph);
+	}
+
+	public double getMaxStretch() {
+		return maxStretch;
+	}
+
+	/**
+	 * sets how much more than the shortest route an alternative may cost
+	 * @param maxStretch the largest ratio of the costs, at least 1
+	 */
+	public void setMaxStretch(double maxStretch) {
+		if (maxStretch < 1) {
+			throw new IllegalArgumentException("Invalid stretch: " + maxStretch);
+		}
+		this.maxStretch = maxStretch;
+	}
+
+	public double getMaxOverlap() {
+		return maxOverlap;
+	}
+
+	/**
+	 * sets how much of an alternative may be shared with a route chosen
+	 * before it
+	 * @param maxOverlap the largest shared part of the cost, from 0 to 1
+	 */
+	public void setMaxOverlap(double maxOverlap) {
+		if (maxOverlap < 0 || maxOverlap > 1) {
+			throw new IllegalArgumentException("Invalid overlap: " + maxOverlap);
+		}
+		this.maxOverlap = maxOverlap;
+	}
+
+	/**
+	 * finds the shortest route and alternatives with Yen's algorithm
+	 * @param start the start location, snapped to the closest vertex
+	 * @param goal the goal location, snapped to the closest vertex
+	 * @param count the largest number of routes, the shortest included
+	 * @return the routes by increasing cost, empty if goal cannot be reached
+	 */
+	public List<Route> yen(GeographicPoint start, GeographicPoint goal, int count) {
+		return yen(graph.nearestVertex(start), graph.nearestVertex(goal), count);
+	}
+
+	/**
+	 * finds the shortest route and alternatives with Yen's algorithm
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @param count the largest number of routes, the shortest included
+	 * @return the routes by increasing cost, empty if target cannot be
+	 *   reached
+	 */
+	public List<Route> yen(int source, int target, int count) {
+		// the costs are read once, so updates cannot change them halfway
+		double[] costs = graph.weightArray();
+		List<Route> accepted = new ArrayList<Route>();
+		if (!canReach(source, target) || count <= 0) {
+			return accepted;
+		}
+		Route shortest = search(costs, source, target, null, null, null);
+		if (shortest == null) {
+			return accepted;
+		}
+		accepted.add(shortest);
+
+		// the k shortest paths so far, and the candidates for the next one
+		List<Route> found = new ArrayList<Route>();
+		found.add(shortest);
+		PriorityQueue<Route> candidates = new PriorityQueue<Route>();
+		Set<Route> seen = new HashSet<Route>();
+		seen.add(shortest);
+
+		while (accepted.size() < count && found.size() < count * PATHS_PER_ROUTE) {
+			Route last = found.get(found.size() - 1);
+			List<Route> spurs = IntStream.range(0, last.edges.length).parallel()
+					.mapToObj(i -> spur(costs, last, i, found, target))
+					.filter(Objects::nonNull)
+					.collect(Collectors.toList());
+			for (Route route : spurs) {
+				if (seen.add(route)) {
+					candidates.add(route);
+				}
+			}
+
+			Route next = candidates.poll();
+			if (next == null || next.cost > maxStretch * shortest.cost) {
+				break;
+			}
+			found.add(next);
+			if (isDistinct(costs, next, accepted)) {
+				accepted.add(next);
+			}
+		}
+		return accepted;
+	}
+
+	// The shortest path that follows the first i edges of last and then
+	// leaves it with an edge no path found so far takes after the same
+	// first i edges, or null if there is none.
+	private Route spur(double[] costs, Route last, int i, List<Route> found, int target) {
+		int spurVertex = last.vertices[i];
+		BitSet bannedVertices = new BitSet(graph.getNumVertices());
+		for (int j = 0; j < i; j++) {
+			bannedVertices.set(last.vertices[j]);
+		}
+		BitSet bannedEdges = new BitSet(graph.getNumEdges());
+		for (Route route : found) {
+			if (route.edges.length > i && sharesPrefix(route, last, i)) {
+				bannedEdges.set(route.edges[i]);
+			}
+		}
+
+		double rootCost = 0;
+		for (int j = 0; j < i; j++) {
+			rootCost += costs[last.edges[j]];
+		}
+		return search(costs, spurVertex, target, bannedVertices, bannedEdges,
+				new Route(Arrays.copyOf(last.vertices, i), Arrays.copyOf(last.edges, i), rootCost));
+	}
+
+	private static boolean sharesPrefix(Route a, Route b, int length) {
+		for (int j = 0; j < length; j++) {
+			if (a.edges[j] != b.edges[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Dijkstra from source to target around the banned vertices and edges,
+	// appended to root if it is not null.
+	private Route search(double[] costs, int source, int target, BitSet bannedVertices,
+			BitSet bannedEdges, Route root) {
+		if (source < 0 || target < 0) {
+			return null;
+		}
+		SearchContext context = SearchContext.acquire(graph.getNumVertices());
+		context.update(source, 0, -1);
+		context.push(source, 0);
+		while (!context.isQueueEmpty()) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			if (curr == target) {
+				break;
+			}
+
+			double currDistance = context.getDistance(curr);
+			int end = graph.getFirstEdge(curr) + graph.getOutDegree(curr);
+			for (int e = graph.getFirstEdge(curr); e < end; e++) {
+				int next = graph.getEdgeTarget(e);
+				if ((bannedEdges != null && bannedEdges.get(e))
+						|| (bannedVertices != null && bannedVertices.get(next))) {
+					continue;
+				}
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+		if (!context.isSettled(target)) {
+			return null;
+		}
+
+		// the path back from the target, then the root in front of it
+		IntList path = new IntList();
+		for (int v = target; v != source; v = context.getParent(v)) {
+			path.add(cheapestEdge(costs, context.getParent(v), v, bannedEdges));
+		}
+		int rootLength = root == null ? 0 : root.edges.length;
+		int[] edges = new int[rootLength + path.size()];
+		int[] vertices = new int[edges.length + 1];
+		if (root != null) {
+			System.arraycopy(root.edges, 0, edges, 0, rootLength);
+			System.arraycopy(root.vertices, 0, vertices, 0, rootLength);
+		}
+		for (int j = 0; j < path.size(); j++) {
+			edges[rootLength + j] = path.get(path.size() - 1 - j);
+		}
+		fillVertices(vertices, edges, source, rootLength);
+		double cost = (root == null ? 0 : root.cost) + context.getDistance(target);
+		return new Route(vertices, edges, cost);
+	}
+
+	// The vertices of a path from its edges, starting at position from.
+	private void fillVertices(int[] vertices, int[] edges, int first, int from) {
+		vertices[from] = first;
+		for (int j = from; j < edges.length; j++) {
+			vertices[j + 1] = graph.getEdgeTarget(edges[j]);
+		}
+	}
+
+	// Parallel roads may join the same two intersections, the parents only
+	// record the vertex so the cheapest allowed edge is the one searched.
+	private int cheapestEdge(double[] costs, int from, int to, BitSet bannedEdges) {
+		int best = -1;
+		int end = graph.getFirstEdge(from) + graph.getOutDegree(from);
+		for (int e = graph.getFirstEdge(from); e < end; e++) {
+			if (graph.getEdgeTarget(e) == to && (bannedEdges == null || !bannedEdges.get(e))
+					&& (best < 0 || costs[e] < costs[best])) {
+				best = e;
+			}
+		}
+		return best;
+	}
+
+	// Whether there is a path from source to target, so that no search
+	// runs through everything source reaches when there is none.
+	private boolean canReach(int source, int target) {
+		return source >= 0 && target >= 0 && graph.getComponents().canReach(source, target);
+	}
+
+	// Whether a route shares at most maxOverlap of its cost with each of
+	// the routes chosen so far.
+	private boolean isDistinct(double[] costs, Route route, List<Route> chosen) {
+		for (Route other : chosen) {
+			double shared = 0;
+			for (int e : route.edges) {
+				if (other.uses(e)) {
+					shared += costs[e];
+				}
+			}
+			if (shared > maxOverlap * route.cost) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * finds the shortest route and alternatives with the plateau method
+	 * @param start the start location, snapped to the closest vertex
+	 * @param goal the goal location, snapped to the closest vertex
+	 * @param count the largest number of routes, the shortest included
+	 * @return the shortest route first, then the alternatives with the
+	 *   longest plateaus, empty if goal cannot be reached
+	 */
+	public List<Route> plateaus(GeographicPoint start, GeographicPoint goal, int count) {
+		return plateaus(graph.nearestVertex(start), graph.nearestVertex(goal), count);
+	}
+
+	/**
+	 * finds the shortest route and alternatives with the plateau method
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @param count the largest number of routes, the shortest included
+	 * @return the shortest route first, then the alternatives with the
+	 *   longest plateaus, empty if target cannot be reached
+	 */
+	public List<Route> plateaus(int source, int target, int count) {
+		double[] costs = graph.weightArray();
+		List<Route> accepted = new ArrayList<Route>();
+		if (!canReach(source, target) || count <= 0) {
+			return accepted;
+		}
+		// the tree from the source and the tree towards the target
+		SearchContext forward = SearchContext.acquire(graph.getNumVertices(), QueueType.INDEXED_HEAP,
+				SearchContext.FORWARD);
+		SearchContext backward = SearchContext.acquire(graph.getNumVertices(), QueueType.INDEXED_HEAP,
+				SearchContext.BACKWARD);
+		IntList settled = grow(costs, forward, source, target, true, Double.MAX_VALUE, null);
+		if (!forward.isSettled(target)) {
+			return accepted;
+		}
+		double limit = maxStretch * forward.getDistance(target);
+		grow(costs, backward, target, source, false, limit, forward);
+
+		// the last vertex of every plateau with the length of the plateau.
+		// Along a plateau the distances from the source grow by the cost of
+		// its edges, so its length is how much they grew since its first
+		// vertex. Plateaus do not share vertices, so walking every one back
+		// takes time linear in the size of the trees.
+		IntList ends = new IntList();
+		double[] lengths = new double[settled.size()];
+		for (int k = 0; k < settled.size(); k++) {
+			int v = settled.get(k);
+			if (v == target || !isPlateauEdge(forward, backward, parentEdge(forward, v))) {
+				continue;
+			}
+			// a plateau ends where the next edge towards the target is not
+			// in the forward tree
+			int next = parentEdge(backward, v);
+			if (next >= 0 && parentEdge(forward, graph.getEdgeTarget(next)) == next) {
+				continue;
+			}
+			if (forward.getDistance(v) + backward.getDistance(v) > limit) {
+				continue;
+			}
+			int first = v;
+			while (isPlateauEdge(forward, backward, parentEdge(forward, first))) {
+				first = graph.getEdgeSource(parentEdge(forward, first));
+			}
+			lengths[ends.size()] = forward.getDistance(v) - forward.getDistance(first);
+			ends.add(v);
+		}
+
+		// only the longest few plateaus are tried, so they are picked one at
+		// a time instead of sorting all of them
+		accepted.add(viaRoute(forward, backward, target));
+		for (int k = 0; k < ends.size() && k < count * PATHS_PER_ROUTE; k++) {
+			if (accepted.size() >= count) {
+				break;
+			}
+			int longest = -1;
+			for (int j = 0; j < ends.size(); j++) {
+				if (lengths[j] >= 0 && (longest < 0 || lengths[j] > lengths[longest])) {
+					longest = j;
+				}
+			}
+			lengths[longest] = -1;
+			Route route = viaRoute(forward, backward, ends.get(longest));
+			if (route != null && isDistinct(costs, route, accepted)) {
+				accepted.add(route);
+			}
+		}
+		return accepted;
+	}
+
+	// The edge from a vertex towards the root of a tree grown by grow, -1
+	// for the root and the vertices that were not settled.
+	private static int parentEdge(SearchContext tree, int v) {
+		return tree.isSettled(v) ? tree.getParent(v) : -1;
+	}
+
+	// Whether an edge of the forward tree is also in the backward tree.
+	private boolean isPlateauEdge(SearchContext forward, SearchContext backward, int edge) {
+		return edge >= 0 && parentEdge(backward, graph.getEdgeSource(edge)) == edge;
+	}
+
+	// Dijkstra from root along the edges, or against them when growing the
+	// tree towards a goal, until everything that can be on a route of at
+	// most maxStretch times the distance to other is settled. The limit is
+	// found when other is settled unless it is given. A route within the
+	// limit only passes vertices the forward tree settled, so the backward
+	// tree stays inside the tree within, pruned with its exact distances.
+	// The context records the edge to the parent of every vertex instead of
+	// the parent, so parallel roads need no lookup. Returns the settled
+	// vertices.
+	private IntList grow(double[] costs, SearchContext context, int root, int other, boolean forward,
+			double limit, SearchContext within) {
+		IntList settled = new IntList();
+		context.update(root, 0, -1);
+		context.push(root, 0);
+		double minCostPerKm = graph.getMetric().getMinCostPerKm();
+		while (!context.isQueueEmpty() && context.peekPriority() <= limit) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			settled.add(curr);
+			double currDistance = context.getDistance(curr);
+			if (curr == other && limit == Double.MAX_VALUE) {
+				limit = maxStretch * currDistance;
+			}
+
+			int first = forward ? graph.getFirstEdge(curr) : graph.getFirstInEdge(curr);
+			int degree = forward ? graph.getOutDegree(curr) : graph.getInDegree(curr);
+			for (int i = first; i < first + degree; i++) {
+				int e = forward ? i : graph.getInEdge(i);
+				int next = forward ? graph.getEdgeTarget(e) : graph.getEdgeSource(e);
+				double disAndCost = currDistance + costs[e];
+				if (within != null && (!within.isSettled(next)
+						|| disAndCost + within.getDistance(next) > limit)) {
+					continue;
+				}
+				// once the limit is known, no route within it passes a vertex
+				// outside the ellipse around the two ends
+				if (disAndCost < context.getDistance(next) && (limit == Double.MAX_VALUE || within != null
+						|| disAndCost + minCostPerKm * graph.straightLineDistance(next, other) <= limit)) {
+					context.update(next, disAndCost, e);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+		return settled;
+	}
+
+	// The route through v: the forward tree up to v, then the backward tree
+	// to the target, or null if it visits a vertex twice.
+	private Route viaRoute(SearchContext forward, SearchContext backward, int via) {
+		if (!backward.isSettled(via)) {
+			return null;
+		}
+		IntList edges = new IntList();
+		for (int v = via; parentEdge(forward, v) >= 0; v = graph.getEdgeSource(parentEdge(forward, v))) {
+			edges.add(parentEdge(forward, v));
+		}
+		int[] path = new int[edges.size()];
+		for (int j = 0; j < path.length; j++) {
+			path[j] = edges.get(edges.size() - 1 - j);
+		}
+		IntList rest = new IntList();
+		for (int v = via; parentEdge(backward, v) >= 0; v = graph.getEdgeTarget(parentEdge(backward, v))) {
+			rest.add(parentEdge(backward, v));
+		}
+		int[] all = Arrays.copyOf(path, path.length + rest.size());
+		for (int j = 0; j < rest.size(); j++) {
+			all[path.length + j] = rest.get(j);
+		}
+
+		int[] vertices = new int[all.length + 1];
+		int first = all.length == 0 ? via : graph.getEdgeSource(all[0]);
+		fillVertices(vertices, all, first, 0);
+		int[] sorted = vertices.clone();
+		Arrays.sort(sorted);
+		for (int j = 1; j < sorted.length; j++) {
+			if (sorted[j] == sorted[j - 1]) {
+				return null;
+			}
+		}
+		return new Route(vertices, all, forward.getDistance(via) + backward.getDistance(via));
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/san_diego.map";
+		CompactGraph graph = MapSnapshot.loadOrBuild(file);
+		AlternativeRoutes alternatives = new AlternativeRoutes(graph);
+
+		int queries = 200;
+		Random random = new Random(42);
+		int[] from = new int[queries];
+		int[] to = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			from[i] = random.nextInt(graph.getNumVertices());
+			to[i] = random.nextInt(graph.getNumVertices());
+		}
+
+		long[] times = new long[3];
+		int[] routes = new int[3];
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the JIT
+			Arrays.fill(times, 0);
+			Arrays.fill(routes, 0);
+			for (int i = 0; i < queries; i++) {
+				long begin = System.nanoTime();
+				routes[0] += graph.dijkstra(graph.getLocation(from[i]), graph.getLocation(to[i])) == null ? 0 : 1;
+				times[0] += System.nanoTime() - begin;
+
+				begin = System.nanoTime();
+				routes[1] += alternatives.plateaus(from[i], to[i], 3).size();
+				times[1] += System.nanoTime() - begin;
+
+				begin = System.nanoTime();
+				routes[2] += alternatives.yen(from[i], to[i], 3).size();
+				times[2] += System.nanoTime() - begin;
+			}
+		}
+		String[] names = { "single dijkstra", "plateaus, 3 routes", "yen, 3 routes" };
+		for (int k = 0; k < 3; k++) {
+			System.out.printf("%s: %s %.1f us/query, %.2f routes/query%n", file, names[k],
+					times[k] / 1000.0 / queries, (double) routes[k] / queries);
+		}
+	}
+}
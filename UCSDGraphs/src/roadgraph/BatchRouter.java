@@ -0,0 +1,316 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Routes a file of origin and destination pairs, for jobs that run
+ * millions of queries at once. Every input line holds four numbers,
+ * origin latitude, origin longitude, destination latitude and destination
+ * longitude, separated by commas. A first line that does not parse is
+ * taken as a header, other lines that do not parse are reported as
+ * invalid. Both ends are snapped to the closest vertex.
+ *
+ * The file is processed in chunks of lines: while a pool of worker threads
+ * routes one chunk, each with its own pooled SearchContext, the main
+ * thread writes the results of the previous chunk and reads the next one,
+ * so only two chunks are ever held in memory. The results come out in the
+ * order of the input as
+ *   line,origin,destination,cost,nodes[,path]
+ * where line counts the lines after the header from 1, origin and
+ * destination are the snapped vertex ids, cost is in the
+ * units of the metric (empty if there is no route), nodes is the number
+ * of intersections on the route and path lists them as lat lon pairs
+ * separated by semicolons. Lines that are invalid have the word invalid
+ * in the nodes column.
+ *
+ * Usage: BatchRouter map input output [--threads n] [--astar]
+ *   [--metric distance|time] [--paths] [--sample n]
+ * where --sample first writes n random pairs to the input file.
+ */
+package roadgraph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+public class BatchRouter {
+	private static final int CHUNK_SIZE = 8192;
+	// how often the progress is reported, in lines
+	private static final long PROGRESS_EVERY = 100000;
+
+	private final CompactGraph graph;
+	private final int threads;
+	private final boolean isAStar;
+	private final boolean withPaths;
+
+	private long lines; // read so far, without the header
+	private final AtomicLong routed = new AtomicLong();
+	private final AtomicLong unreachable = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+
+	/**
+	 * Creates a router for a graph
+	 * @param graph the graph to route on, with the metric already selected
+	 * @param threads the number of worker threads
+	 * @param isAStar whether to run A* instead of Dijkstra
+	 * @param withPaths whether to write the intersections of every route
+	 */
+	public BatchRouter(CompactGraph graph, int threads, boolean isAStar, boolean withPaths) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+		this.graph = graph;
+		this.threads = threads;
+		this.isAStar = isAStar;
+		this.withPaths = withPaths;
+	}
+
+	/**
+	 * routes every pair of the input and writes the results
+	 * @param input the pairs, one per line
+	 * @param output where the results are written, in the order of the input
+	 * @param progress where progress is reported, may be null
+	 * @throws IOException if reading or writing fails
+	 */
+	public void run(BufferedReader input, Writer output, PrintWriter progress) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			long begin = System.nanoTime();
+			long nextReport = PROGRESS_EVERY;
+			output.write(withPaths ? "line,origin,destination,cost,nodes,path\n"
+					: "line,origin,destination,cost,nodes\n");
+
+			String[] chunk = new String[CHUNK_SIZE];
+			String[] nextChunk = new String[CHUNK_SIZE];
+			String[] results = new String[CHUNK_SIZE];
+			String[] pendingResults = new String[CHUNK_SIZE];
+			int pending = 0;
+			long firstLine = lines + 1;
+			int size = readChunk(input, chunk, true);
+			while (size > 0 || pending > 0) {
+				final String[] lineChunk = chunk;
+				final String[] lineResults = results;
+				final int count = size;
+				final long first = firstLine;
+				ForkJoinTask<?> task = pool.submit(() -> IntStream.range(0, count).parallel()
+						.forEach(i -> lineResults[i] = routeLine(first + i, lineChunk[i])));
+
+				// write the previous chunk and read the next one meanwhile
+				for (int i = 0; i < pending; i++) {
+					output.write(pendingResults[i]);
+				}
+				firstLine = lines + 1;
+				int nextSize = readChunk(input, nextChunk, false);
+				task.join();
+
+				String[] swap = pendingResults;
+				pendingResults = results;
+				results = swap;
+				pending = size;
+				swap = chunk;
+				chunk = nextChunk;
+				nextChunk = swap;
+				size = nextSize;
+
+				if (progress != null && getProcessedCount() >= nextReport) {
+					report(progress, begin);
+					nextReport += PROGRESS_EVERY;
+				}
+			}
+			output.flush();
+			if (progress != null) {
+				report(progress, begin);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Reads up to a chunk of lines, and skips the header of the file.
+	private int readChunk(BufferedReader input, String[] chunk, boolean first) throws IOException {
+		int size = 0;
+		String line;
+		while (size < chunk.length && (line = input.readLine()) != null) {
+			if (first && size == 0 && parse(line) == null) {
+				first = false;
+				continue;
+			}
+			lines++;
+			chunk[size++] = line;
+		}
+		return size;
+	}
+
+	private void report(PrintWriter progress, long begin) {
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		long processed = getProcessedCount();
+		progress.printf("%d lines, %d routed, %d unreachable, %d invalid, %.0f routes/s%n",
+				processed, routed.get(), unreachable.get(), invalid.get(),
+				processed / Math.max(seconds, 1e-9));
+		progress.flush();
+	}
+
+	// The four coordinates of a line, or null if it is not four numbers.
+	private static double[] parse(String line) {
+		String[] fields = line.split(",");
+		if (fields.length != 4) {
+			return null;
+		}
+		double[] values = new double[4];
+		try {
+			for (int i = 0; i < 4; i++) {
+				values[i] = Double.parseDouble(fields[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return values;
+	}
+
+	// The output line of one input line, run by the worker threads.
+	private String routeLine(long number, String line) {
+		double[] values = parse(line);
+		VertexIndex index = graph.getVertexIndex();
+		int source = values == null ? -1 : index.nearest(values[0], values[1]);
+		int target = values == null ? -1 : index.nearest(values[2], values[3]);
+		if (source < 0 || target < 0) {
+			invalid.incrementAndGet();
+			return number + ",,,,invalid\n";
+		}
+
+		StringBuilder result = new StringBuilder(withPaths ? 256 : 48);
+		result.append(number).append(',').append(source).append(',').append(target).append(',');
+		SearchContext context = SearchContext.acquire(graph.getNumVertices(), graph.getQueueType());
+		if (!graph.route(source, target, null, isAStar, context)) {
+			unreachable.incrementAndGet();
+			result.append(",0");
+			if (withPaths) {
+				result.append(',');
+			}
+			return result.append('\n').toString();
+		}
+
+		routed.incrementAndGet();
+		int nodes = 0;
+		for (int v = target; v != -1; v = context.getParent(v)) {
+			nodes++;
+		}
+		result.append(context.getDistance(target)).append(',').append(nodes);
+		if (withPaths) {
+			int[] path = new int[nodes];
+			int i = nodes;
+			for (int v = target; v != -1; v = context.getParent(v)) {
+				path[--i] = v;
+			}
+			result.append(',');
+			for (int j = 0; j < nodes; j++) {
+				if (j > 0) {
+					result.append(';');
+				}
+				result.append(graph.getLatitude(path[j])).append(' ').append(graph.getLongitude(path[j]));
+			}
+		}
+		return result.append('\n').toString();
+	}
+
+	/**
+	 * returns the number of input lines routed so far, whether a route
+	 * was found or not
+	 * @return the number of lines written
+	 */
+	public long getProcessedCount() {
+		return routed.get() + unreachable.get() + invalid.get();
+	}
+
+	public long getRoutedCount() {
+		return routed.get();
+	}
+
+	public long getUnreachableCount() {
+		return unreachable.get();
+	}
+
+	public long getInvalidCount() {
+		return invalid.get();
+	}
+
+	// Writes count random pairs around the vertices of the graph, for trying
+	// the router out.
+	private static void writeSample(CompactGraph graph, String file, int count) throws IOException {
+		Random random = new Random(42);
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			out.println("origin_lat,origin_lon,destination_lat,destination_lon");
+			for (int i = 0; i < count; i++) {
+				int from = random.nextInt(graph.getNumVertices());
+				int to = random.nextInt(graph.getNumVertices());
+				out.println(graph.getLatitude(from) + "," + graph.getLongitude(from) + ","
+						+ graph.getLatitude(to) + "," + graph.getLongitude(to));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3) {
+			System.err.println("usage: BatchRouter map input output [--threads n] [--astar]"
+					+ " [--metric distance|time] [--paths] [--sample n]");
+			System.exit(2);
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean isAStar = false;
+		boolean withPaths = false;
+		EdgeMetric metric = EdgeMetric.DISTANCE;
+		int sample = 0;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+			case "--threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "--astar":
+				isAStar = true;
+				break;
+			case "--paths":
+				withPaths = true;
+				break;
+			case "--metric":
+				metric = "time".equals(args[++i]) ? EdgeMetric.travelTime() : EdgeMetric.DISTANCE;
+				break;
+			case "--sample":
+				sample = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.err.println("unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		long begin = System.nanoTime();
+		CompactGraph graph = MapSnapshot.loadOrBuild(args[0]);
+		graph.setMetric(metric);
+		System.err.printf("%s: %d vertices loaded in %d ms%n", args[0], graph.getNumVertices(),
+				(System.nanoTime() - begin) / 1000000);
+		if (sample > 0) {
+			writeSample(graph, args[1], sample);
+		}
+
+		BatchRouter router = new BatchRouter(graph, threads, isAStar, withPaths);
+		PrintWriter progress = new PrintWriter(System.err);
+		begin = System.nanoTime();
+		try (BufferedReader input = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8);
+				Writer output = Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+			router.run(input, output, progress);
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		System.err.printf("%d lines in %.2f s on %d threads: %.0f routes/s%n",
+				router.getProcessedCount(), seconds, threads, router.getProcessedCount() / seconds);
+	}
+}
@@ -0,0 +1,1277 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A frozen, read-only copy of a MapGraph stored in compressed sparse row
+ * (CSR) form. Vertices are numbered 0 .. n-1, the outgoing edges of vertex
+ * v are stored at positions offsets[v] .. offsets[v + 1] - 1 of the edge
+ * arrays, and the coordinates are kept in primitive arrays, so the searches
+ * never hash a GeographicPoint once they have found the start vertex.
+ * Only the costs of the edges can change, see updateEdgeWeights.
+ */
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import util.GraphLoader;
+
+public class CompactGraph {
+	private final int numVertices;
+	private final int numEdges;
+
+	private final int[] offsets; // first edge of every vertex, length n + 1
+	private final int[] targets; // end vertex of every edge
+	private final double[] lengths; // length of every edge in km
+	private final byte[] roadClasses; // RoadClass ordinal of every edge
+
+	private final double[] latitudes;
+	private final double[] longitudes;
+
+	// road names and types are stored once and referenced by index
+	private final String[] names;
+	private final int[] nameIds; // index into names of every edge
+	private final String[] types; // null if the road types are unknown
+	private final int[] typeIds;
+
+	// intermediate points of every edge, from geometryOffsets[e] to
+	// geometryOffsets[e + 1] - 1, null if the geometry is unknown
+	private final int[] geometryOffsets;
+	private final double[] geometryLatitudes;
+	private final double[] geometryLongitudes;
+
+	// the same edges grouped by their end vertex, for backward searches
+	private int[] inOffsets; // first incoming edge of every vertex, length n + 1
+	private int[] inEdges; // ids of the incoming edges
+	private int[] sources; // start vertex of every edge
+
+	// only used to translate the start and goal of a query into ids
+	private HashMap<GeographicPoint, Integer> ids;
+	private VertexIndex vertexIndex; // for locations that are not a vertex
+	private StronglyConnectedComponents components; // rejects unreachable queries
+
+	// the priority queue used by dijkstra and aStarSearch
+	private volatile QueueType queueType;
+
+	// lower bounds used by aStarSearch on top of the straight line distance
+	private volatile Landmarks landmarks;
+
+	// the cost of every edge under the selected metric, and the costs of
+	// the distance and of the metrics used last, from the least recently
+	// selected, so switching back costs nothing. Metrics made for a single
+	// call, like lambdas, drop out instead of keeping their costs forever.
+	// The cache is guarded by the lock of the graph.
+	private volatile Weights weights;
+	private final LinkedHashMap<EdgeMetric, Weights> weightCache = new LinkedHashMap<>();
+	private long weightVersion; // written under the lock of the graph
+
+	// the edges that are closed and the costs updates set under every
+	// metric, NaN where none was set. They are kept apart from the cost
+	// arrays, so a closed edge stays closed under every metric and permute
+	// carries the updates over. Guarded by the lock of the graph.
+	private final BitSet closedEdges = new BitSet();
+	private final HashMap<EdgeMetric, double[]> setCosts = new HashMap<>();
+
+	// the most metrics whose costs are kept, the distance included
+	private static final int CACHED_METRICS = 4;
+
+	// A metric with its edge costs, replaced as a whole so a search never
+	// mixes the costs of one metric with the heuristic of another. The
+	// costs are never written once published: an update copies them, so a
+	// search that read weights once sees the same costs until it ends.
+	private static class Weights {
+		final EdgeMetric metric;
+		final double[] costs;
+		final double minCostPerKm;
+		final long version;
+
+		Weights(EdgeMetric metric, double[] costs, long version) {
+			this.metric = metric;
+			this.costs = costs;
+			this.minCostPerKm = metric.getMinCostPerKm();
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Builds the compact form of the given graph. The graph is copied, so
+	 * later changes to it are not seen by this object.
+	 * @param graph the graph to copy
+	 */
+	public CompactGraph(MapGraph graph) {
+		this(graph, null);
+	}
+
+	/**
+	 * Builds the compact form of the given graph together with the road
+	 * types and the geometry of its road segments
+	 * @param graph the graph to copy
+	 * @param segments the road segments loaded with the graph, may be null
+	 */
+	public CompactGraph(MapGraph graph, HashMap<GeographicPoint, HashSet<RoadSegment>> segments) {
+		numVertices = graph.getNumVertices();
+		numEdges = graph.getNumEdges();
+
+		offsets = new int[numVertices + 1];
+		targets = new int[numEdges];
+		lengths = new double[numEdges];
+		roadClasses = new byte[numEdges];
+		latitudes = new double[numVertices];
+		longitudes = new double[numVertices];
+		nameIds = new int[numEdges];
+		typeIds = segments == null ? null : new int[numEdges];
+		geometryOffsets = segments == null ? null : new int[numEdges + 1];
+
+		StringTable nameTable = new StringTable();
+		StringTable typeTable = new StringTable();
+		List<GeographicPoint> geometry = new ArrayList<>();
+
+		int edge = 0;
+		for (int v = 0; v < numVertices; v++) {
+			MapNode node = graph.getNode(v);
+			GeographicPoint location = node.getLocation();
+
+			latitudes[v] = location.getX();
+			longitudes[v] = location.getY();
+
+			offsets[v] = edge;
+			for (MapEdges e : node.getEdges()) {
+				targets[edge] = graph.getNode(e.getEnd()).getId();
+				lengths[edge] = e.getLength();
+				roadClasses[edge] = (byte) e.getRoadClass().ordinal();
+				nameIds[edge] = nameTable.indexOf(e.getStreetName());
+				if (segments != null) {
+					RoadSegment segment = findSegment(segments, e);
+					typeIds[edge] = typeTable.indexOf(segment == null ? "" : segment.getRoadType());
+					geometryOffsets[edge] = geometry.size();
+					if (segment != null) {
+						// the loader keeps one segment for both directions of a
+						// two way road, its geometry may run from the end to the start
+						List<GeographicPoint> points = segment.getPoints(e.getStart(), e.getEnd());
+						geometry.addAll(points.subList(1, points.size() - 1));
+					}
+				}
+				edge++;
+			}
+		}
+		offsets[numVertices] = edge;
+		names = nameTable.toArray();
+
+		if (segments != null) {
+			geometryOffsets[numEdges] = geometry.size();
+			types = typeTable.toArray();
+			geometryLatitudes = new double[geometry.size()];
+			geometryLongitudes = new double[geometry.size()];
+			for (int i = 0; i < geometry.size(); i++) {
+				geometryLatitudes[i] = geometry.get(i).getX();
+				geometryLongitudes[i] = geometry.get(i).getY();
+			}
+		} else {
+			types = null;
+			geometryLatitudes = null;
+			geometryLongitudes = null;
+		}
+		buildIndexes();
+	}
+
+	/**
+	 * Builds a graph directly from its arrays, as stored in a MapSnapshot.
+	 * The arrays are used as they are, not copied.
+	 */
+	CompactGraph(int[] offsets, int[] targets, double[] lengths,
+			double[] latitudes, double[] longitudes,
+			String[] names, int[] nameIds, String[] types, int[] typeIds,
+			int[] geometryOffsets, double[] geometryLatitudes, double[] geometryLongitudes) {
+		this.numVertices = latitudes.length;
+		this.numEdges = targets.length;
+		if (offsets.length != numVertices + 1 || lengths.length != numEdges
+				|| longitudes.length != numVertices || nameIds.length != numEdges) {
+			throw new IllegalArgumentException("array lengths do not match");
+		}
+		this.offsets = offsets;
+		this.targets = targets;
+		this.lengths = lengths;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.names = names;
+		this.nameIds = nameIds;
+		this.types = types;
+		this.typeIds = typeIds;
+		this.geometryOffsets = geometryOffsets;
+		this.geometryLatitudes = geometryLatitudes;
+		this.geometryLongitudes = geometryLongitudes;
+		this.roadClasses = new byte[numEdges];
+		Arrays.fill(roadClasses, (byte) RoadClass.OTHER.ordinal());
+		if (types != null) {
+			for (int e = 0; e < numEdges; e++) {
+				roadClasses[e] = (byte) RoadClass.fromType(types[typeIds[e]]).ordinal();
+			}
+		}
+		buildIndexes();
+	}
+
+	// The segment the loader created for this edge, or null. Segments are
+	// equal when they join the same points in either direction.
+	private static RoadSegment findSegment(HashMap<GeographicPoint, HashSet<RoadSegment>> segments,
+			MapEdges edge) {
+		HashSet<RoadSegment> candidates = segments.get(edge.getStart());
+		if (candidates == null) {
+			return null;
+		}
+		for (RoadSegment segment : candidates) {
+			boolean sameEnds = segment.getPoint1().equals(edge.getStart())
+					&& segment.getPoint2().equals(edge.getEnd())
+					|| segment.getPoint2().equals(edge.getStart())
+					&& segment.getPoint1().equals(edge.getEnd());
+			if (sameEnds && segment.getRoadName().equals(edge.getStreetName())
+					&& segment.getLength() == edge.getLength()) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	// Gives every distinct string an index, in order of first appearance.
+	private static class StringTable {
+		private final HashMap<String, Integer> indexes = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		int indexOf(String value) {
+			Integer index = indexes.get(value);
+			if (index == null) {
+				index = values.size();
+				indexes.put(value, index);
+				values.add(value);
+			}
+			return index;
+		}
+
+		String[] toArray() {
+			return values.toArray(new String[values.size()]);
+		}
+	}
+
+	// Builds the location lookup and the incoming edges from the arrays.
+	private void buildIndexes() {
+		ids = new HashMap<>(numVertices * 2);
+		for (int v = 0; v < numVertices; v++) {
+			ids.put(new GeographicPoint(latitudes[v], longitudes[v]), v);
+		}
+
+		sources = new int[numEdges];
+		inOffsets = new int[numVertices + 1];
+		for (int v = 0; v < numVertices; v++) {
+			for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+				sources[e] = v;
+				inOffsets[targets[e] + 1]++;
+			}
+		}
+		for (int v = 0; v < numVertices; v++) {
+			inOffsets[v + 1] += inOffsets[v];
+		}
+		inEdges = new int[numEdges];
+		int[] next = Arrays.copyOf(inOffsets, numVertices);
+		for (int e = 0; e < numEdges; e++) {
+			inEdges[next[targets[e]]++] = e;
+		}
+		vertexIndex = new VertexIndex(latitudes, longitudes);
+		components = new StronglyConnectedComponents(offsets, targets);
+		queueType = QueueType.INDEXED_HEAP;
+		weights = new Weights(EdgeMetric.DISTANCE, lengths, 0);
+		weightCache.put(EdgeMetric.DISTANCE, weights);
+	}
+
+	/**
+	 * Get the number of vertices (road intersections) in the graph
+	 * @return The number of vertices in the graph.
+	 */
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	/**
+	 * Get the number of road segments in the graph
+	 * @return The number of edges in the graph.
+	 */
+	public int getNumEdges() {
+		return numEdges;
+	}
+
+	public QueueType getQueueType() {
+		return queueType;
+	}
+
+	/**
+	 * selects the priority queue dijkstra and aStarSearch use
+	 * @param queueType the queue the next searches run with
+	 */
+	public void setQueueType(QueueType queueType) {
+		if (queueType == null) {
+			throw new IllegalArgumentException("null argument is invalid");
+		}
+		this.queueType = queueType;
+	}
+
+	public EdgeMetric getMetric() {
+		return weights.metric;
+	}
+
+	/**
+	 * selects the cost dijkstra and aStarSearch minimise. The cost of every
+	 * edge is computed when a metric is selected and kept for the distance
+	 * and the last few metrics, so switching between them is free.
+	 * @param metric the metric the next searches run with
+	 */
+	public synchronized void setMetric(EdgeMetric metric) {
+		if (metric == null) {
+			throw new IllegalArgumentException("null argument is invalid");
+		}
+		Weights selected = weightCache.get(metric);
+		if (selected == null) {
+			selected = new Weights(metric, computeCosts(metric), weightVersion);
+		}
+		cacheWeights(selected);
+		weights = selected;
+	}
+
+	// Keeps the costs of a metric as the most recently selected, and drops
+	// the least recently selected metric other than the distance when too
+	// many are kept. Called with the lock of the graph held.
+	private void cacheWeights(Weights selected) {
+		weightCache.remove(selected.metric);
+		weightCache.put(selected.metric, selected);
+		Iterator<EdgeMetric> metrics = weightCache.keySet().iterator();
+		while (weightCache.size() > CACHED_METRICS) {
+			if (metrics.next() != EdgeMetric.DISTANCE) {
+				metrics.remove();
+			}
+		}
+	}
+
+	// The cost of every edge under a metric, with the costs updates set
+	// under it and the closed edges. Called with the lock of the graph held.
+	private double[] computeCosts(EdgeMetric metric) {
+		double[] costs = new double[numEdges];
+		double[] set = setCosts.get(metric);
+		for (int e = 0; e < numEdges; e++) {
+			costs[e] = metric.cost(lengths[e], RoadClass.fromCode(roadClasses[e]));
+			if (!(costs[e] >= 0)) {
+				throw new IllegalArgumentException("metric gave edge " + e + " the cost " + costs[e]);
+			}
+			if (set != null && !Double.isNaN(set[e])) {
+				costs[e] = set[e];
+			}
+		}
+		for (int e = closedEdges.nextSetBit(0); e >= 0; e = closedEdges.nextSetBit(e + 1)) {
+			costs[e] = Double.POSITIVE_INFINITY;
+		}
+		return costs;
+	}
+
+	/**
+	 * returns the version of the edge costs, which changes with every
+	 * update of the costs
+	 * @return the number of updates applied so far
+	 */
+	public long getWeightVersion() {
+		return weights.version;
+	}
+
+	/**
+	 * changes the cost of edges under the selected metric, for example for
+	 * traffic, without rebuilding the graph. The costs are copied and the
+	 * copy is published at once, so searches never wait for an update and
+	 * a search that is running keeps seeing the costs it started with.
+	 * Updates of a batch cost one copy, so many updates are best applied
+	 * together. A closed edge stays closed under every metric, other costs
+	 * belong to the selected metric and come back when it is selected
+	 * again. Searches prepared before, like a ContractionHierarchy, do not
+	 * see the new costs.
+	 * @param edges ids of the edges to change
+	 * @param costs the new cost of every edge, Double.POSITIVE_INFINITY to
+	 *   close it
+	 * @return the new version of the costs
+	 * @throws IllegalArgumentException if a cost is below the lower bound
+	 *   A* relies on, the length of the edge times the smallest cost per
+	 *   km of the metric
+	 */
+	public synchronized long updateEdgeWeights(int[] edges, double[] costs) {
+		if (edges.length != costs.length) {
+			throw new IllegalArgumentException("one cost is needed for every edge");
+		}
+		Weights current = weights;
+		for (int i = 0; i < edges.length; i++) {
+			int e = edges[i];
+			// with some room for rounding, the metric may compute the same
+			// bound in another order
+			if (!(costs[i] >= lengths[e] * current.minCostPerKm * (1 - 1e-9))) {
+				throw new IllegalArgumentException("edge " + e + " cannot cost " + costs[i]);
+			}
+		}
+
+		double[] updated = current.costs.clone();
+		double[] set = null;
+		boolean closuresChanged = false;
+		for (int i = 0; i < edges.length; i++) {
+			int e = edges[i];
+			if (costs[i] == Double.POSITIVE_INFINITY) {
+				closuresChanged |= !closedEdges.get(e);
+				closedEdges.set(e);
+			} else {
+				closuresChanged |= closedEdges.get(e);
+				closedEdges.clear(e);
+				if (set == null) {
+					set = setCosts.computeIfAbsent(current.metric, m -> unsetCosts());
+				}
+				set[e] = costs[i];
+			}
+			updated[e] = costs[i];
+		}
+		weightVersion++;
+		if (closuresChanged) {
+			// the costs of the other metrics are computed again with the
+			// closed edges when they are next selected
+			weightCache.clear();
+		}
+		weights = new Weights(current.metric, updated, weightVersion);
+		cacheWeights(weights);
+		return weightVersion;
+	}
+
+	// A cost for every edge where none is set yet.
+	private double[] unsetCosts() {
+		double[] costs = new double[numEdges];
+		Arrays.fill(costs, Double.NaN);
+		return costs;
+	}
+
+	/**
+	 * changes the cost of one edge under the selected metric, see
+	 * updateEdgeWeights
+	 * @param edge id of the edge
+	 * @param cost the new cost
+	 * @return the new version of the costs
+	 */
+	public long setEdgeWeight(int edge, double cost) {
+		return updateEdgeWeights(new int[] { edge }, new double[] { cost });
+	}
+
+	/**
+	 * closes an edge, no search uses it under any metric until it is reset
+	 * @param edge id of the edge
+	 * @return the new version of the costs
+	 */
+	public long closeEdge(int edge) {
+		return setEdgeWeight(edge, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * gives an edge back the cost the selected metric computes for it, and
+	 * opens it if it was closed
+	 * @param edge id of the edge
+	 * @return the new version of the costs
+	 */
+	public synchronized long resetEdgeWeight(int edge) {
+		EdgeMetric metric = weights.metric;
+		long version = setEdgeWeight(edge, metric.cost(lengths[edge], RoadClass.fromCode(roadClasses[edge])));
+		setCosts.get(metric)[edge] = Double.NaN;
+		return version;
+	}
+
+	/**
+	 * returns the edge between two intersections along a named road
+	 * @param from location of the start of the edge
+	 * @param to location of the end of the edge
+	 * @param roadName name of the road, or null for any road
+	 * @return the id of the edge, the shortest if there are several, or -1
+	 *   if there is none
+	 */
+	public int findEdge(GeographicPoint from, GeographicPoint to, String roadName) {
+		int source = getVertexId(from);
+		int target = getVertexId(to);
+		if (source < 0 || target < 0) {
+			return -1;
+		}
+		int best = -1;
+		for (int e = offsets[source]; e < offsets[source + 1]; e++) {
+			if (targets[e] == target && (roadName == null || roadName.equals(names[nameIds[e]]))
+					&& (best < 0 || lengths[e] < lengths[best])) {
+				best = e;
+			}
+		}
+		return best;
+	}
+
+	public Landmarks getLandmarks() {
+		return landmarks;
+	}
+
+	/**
+	 * makes aStarSearch use the landmark lower bounds as well as the
+	 * straight line distance, or only the straight line distance if null
+	 * @param landmarks landmark distances computed for this graph
+	 */
+	public void setLandmarks(Landmarks landmarks) {
+		if (landmarks != null && landmarks.getNumVertices() != numVertices) {
+			throw new IllegalArgumentException("landmarks were computed for another graph");
+		}
+		this.landmarks = landmarks;
+	}
+
+	/**
+	 * returns the id of the vertex at the given location
+	 * @param location location of the intersection
+	 * @return the id of the vertex or -1 if there is no vertex there
+	 */
+	public int getVertexId(GeographicPoint location) {
+		Integer id = ids.get(location);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * returns the vertex at a location, or the closest vertex if there is
+	 * none exactly there
+	 * @param location any location
+	 * @return the id of the vertex, -1 if the graph is empty or location
+	 *   is null
+	 */
+	public int nearestVertex(GeographicPoint location) {
+		if (location == null) {
+			return -1;
+		}
+		Integer id = ids.get(location);
+		return id != null ? id : vertexIndex.nearest(location.getX(), location.getY());
+	}
+
+	public VertexIndex getVertexIndex() {
+		return vertexIndex;
+	}
+
+	/**
+	 * returns the strongly connected components of the graph, found when
+	 * it was built. The searches use them to give up at once when the
+	 * goal cannot be reached.
+	 * @return the components of this graph
+	 */
+	public StronglyConnectedComponents getComponents() {
+		return components;
+	}
+
+	/**
+	 * returns a new GeographicPoint with the location of a vertex
+	 * @param v id of the vertex
+	 * @return the location of the vertex
+	 */
+	public GeographicPoint getLocation(int v) {
+		return new GeographicPoint(latitudes[v], longitudes[v]);
+	}
+
+	public double getLatitude(int v) {
+		return latitudes[v];
+	}
+
+	public double getLongitude(int v) {
+		return longitudes[v];
+	}
+
+	/**
+	 * returns the index of the first outgoing edge of a vertex
+	 * @param v id of the vertex
+	 * @return the first edge, the edges of v end at getFirstEdge(v + 1)
+	 */
+	public int getFirstEdge(int v) {
+		return offsets[v];
+	}
+
+	public int getOutDegree(int v) {
+		return offsets[v + 1] - offsets[v];
+	}
+
+	public int getEdgeTarget(int edge) {
+		return targets[edge];
+	}
+
+	public double getEdgeLength(int edge) {
+		return lengths[edge];
+	}
+
+	public RoadClass getEdgeRoadClass(int edge) {
+		return RoadClass.fromCode(roadClasses[edge]);
+	}
+
+	/**
+	 * returns the cost of an edge under the selected metric
+	 * @param edge id of the edge
+	 * @return the cost the searches use for this edge
+	 */
+	public double getEdgeWeight(int edge) {
+		return weights.costs[edge];
+	}
+
+	// The costs of every edge under the selected metric, not a copy.
+	double[] weightArray() {
+		return weights.costs;
+	}
+
+	/**
+	 * returns the index of the first incoming edge of a vertex in the
+	 * incoming edge list
+	 * @param v id of the vertex
+	 * @return the first position, the incoming edges of v end at
+	 *   getFirstInEdge(v + 1)
+	 */
+	public int getFirstInEdge(int v) {
+		return inOffsets[v];
+	}
+
+	public int getInDegree(int v) {
+		return inOffsets[v + 1] - inOffsets[v];
+	}
+
+	/**
+	 * returns an incoming edge
+	 * @param i position in the incoming edge list
+	 * @return the id of the edge
+	 */
+	public int getInEdge(int i) {
+		return inEdges[i];
+	}
+
+	public int getEdgeSource(int edge) {
+		return sources[edge];
+	}
+
+	/**
+	 * returns the name of the road an edge belongs to
+	 * @param edge id of the edge
+	 * @return the road name
+	 */
+	public String getEdgeName(int edge) {
+		return names[nameIds[edge]];
+	}
+
+	/**
+	 * returns the type of the road an edge belongs to
+	 * @param edge id of the edge
+	 * @return the road type, or null if the graph was built without types
+	 */
+	public String getEdgeType(int edge) {
+		return types == null ? null : types[typeIds[edge]];
+	}
+
+	public boolean hasGeometry() {
+		return geometryOffsets != null;
+	}
+
+	/**
+	 * returns the points between the two ends of an edge, in driving order
+	 * @param edge id of the edge
+	 * @return the intermediate points, empty if the graph has no geometry
+	 */
+	public List<GeographicPoint> getEdgeGeometry(int edge) {
+		List<GeographicPoint> points = new ArrayList<>();
+		if (geometryOffsets != null) {
+			for (int i = geometryOffsets[edge]; i < geometryOffsets[edge + 1]; i++) {
+				points.add(new GeographicPoint(geometryLatitudes[i], geometryLongitudes[i]));
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * returns the road segment of an edge, as the loader builds it for
+	 * displaying routes
+	 * @param edge id of the edge
+	 * @return a new RoadSegment from the start to the end of the edge
+	 */
+	public RoadSegment getRoadSegment(int edge) {
+		return new RoadSegment(getLocation(sources[edge]), getLocation(targets[edge]),
+				getEdgeGeometry(edge), getEdgeName(edge), getEdgeType(edge), lengths[edge]);
+	}
+
+	// The raw arrays, for writing snapshots.
+	int[] offsetArray() { return offsets; }
+	int[] targetArray() { return targets; }
+	double[] lengthArray() { return lengths; }
+	double[] latitudeArray() { return latitudes; }
+	double[] longitudeArray() { return longitudes; }
+	String[] nameTable() { return names; }
+	int[] nameIdArray() { return nameIds; }
+	String[] typeTable() { return types; }
+	int[] typeIdArray() { return typeIds; }
+	int[] geometryOffsetArray() { return geometryOffsets; }
+	double[] geometryLatitudeArray() { return geometryLatitudes; }
+	double[] geometryLongitudeArray() { return geometryLongitudes; }
+
+	/**
+	 * returns the great circle distance between two vertices
+	 * @param v id of the first vertex
+	 * @param w id of the second vertex
+	 * @return the straight line distance in km
+	 */
+	public double straightLineDistance(int v, int w) {
+		return GeographicPoint.distance(latitudes[v], longitudes[v],
+				latitudes[w], longitudes[w]);
+	}
+
+	/**
+	 * returns a lower bound of the cost from v to target, the straight line
+	 * distance times the smallest cost per km, and the landmark bound when
+	 * the metric is the distance
+	 * @param v id of the vertex
+	 * @param target id of the goal vertex
+	 * @param current the metric of the search
+	 * @return the estimated cost
+	 */
+	private double estimate(int v, int target, Weights current) {
+		double estimate = straightLineDistance(v, target) * current.minCostPerKm;
+		Landmarks landmarks = this.landmarks;
+		if (landmarks != null && current.metric == EdgeMetric.DISTANCE) {
+			estimate = Math.max(estimate, landmarks.lowerBound(v, target));
+		}
+		return estimate;
+	}
+
+	/**
+	 * computes the length of the shortest path from source to every vertex,
+	 * always in km whatever the selected metric
+	 * @param source id of the start vertex
+	 * @return the distances, Double.MAX_VALUE for unreachable vertices
+	 */
+	public double[] distancesFrom(int source) {
+		return shortestPathTree(source, true);
+	}
+
+	/**
+	 * computes the length of the shortest path from every vertex to target
+	 * @param target id of the goal vertex
+	 * @return the distances, Double.MAX_VALUE for vertices that cannot
+	 *   reach target
+	 */
+	public double[] distancesTo(int target) {
+		return shortestPathTree(target, false);
+	}
+
+	// Dijkstra over the outgoing edges, or the incoming edges when
+	// isForward is false, until every reachable vertex is settled.
+	private double[] shortestPathTree(int root, boolean isForward) {
+		double[] distance = new double[numVertices];
+		Arrays.fill(distance, Double.MAX_VALUE);
+		IndexedMinHeap heap = new IndexedMinHeap(numVertices);
+		distance[root] = 0;
+		heap.push(root, 0);
+		while (!heap.isEmpty()) {
+			int curr = heap.poll();
+			int end = isForward ? offsets[curr + 1] : inOffsets[curr + 1];
+			for (int i = isForward ? offsets[curr] : inOffsets[curr]; i < end; i++) {
+				int e = isForward ? i : inEdges[i];
+				int next = isForward ? targets[e] : sources[e];
+				double disAndCost = distance[curr] + lengths[e];
+				if (disAndCost < distance[next]) {
+					distance[next] = disAndCost;
+					heap.push(next, disAndCost);
+				}
+			}
+		}
+		return distance;
+	}
+
+	/**
+	 * returns a hash of the vertices and edges, files derived from this
+	 * graph store it to detect that the map has changed
+	 * @return the fingerprint of the graph
+	 */
+	public long fingerprint() {
+		long hash = 1125899906842597L;
+		hash = 31 * hash + numVertices;
+		hash = 31 * hash + numEdges;
+		for (int v = 0; v < numVertices; v++) {
+			hash = 31 * hash + Double.doubleToLongBits(latitudes[v]);
+			hash = 31 * hash + Double.doubleToLongBits(longitudes[v]);
+			hash = 31 * hash + offsets[v];
+		}
+		for (int e = 0; e < numEdges; e++) {
+			hash = 31 * hash + targets[e];
+			hash = 31 * hash + Double.doubleToLongBits(lengths[e]);
+		}
+		return hash;
+	}
+
+	/**
+	 * returns a copy of this graph with the vertices renumbered, so that
+	 * vertices that are searched together can be stored together. The
+	 * edges of every vertex keep their order and carry their road class,
+	 * name, type and geometry along. The selected metric and queue, the
+	 * closed edges and the costs set by updates are kept.
+	 * @param newIds the new id of every vertex, a permutation of the ids
+	 * @return the renumbered graph
+	 */
+	public CompactGraph permute(int[] newIds) {
+		if (newIds.length != numVertices) {
+			throw new IllegalArgumentException("Expected " + numVertices + " ids, got " + newIds.length);
+		}
+		int[] oldIds = new int[numVertices];
+		Arrays.fill(oldIds, -1);
+		for (int v = 0; v < numVertices; v++) {
+			int id = newIds[v];
+			if (id < 0 || id >= numVertices || oldIds[id] != -1) {
+				throw new IllegalArgumentException("Not a permutation, id " + id + " of vertex " + v);
+			}
+			oldIds[id] = v;
+		}
+
+		int[] newOffsets = new int[numVertices + 1];
+		int[] newTargets = new int[numEdges];
+		double[] newLengths = new double[numEdges];
+		byte[] newRoadClasses = new byte[numEdges];
+		double[] newLatitudes = new double[numVertices];
+		double[] newLongitudes = new double[numVertices];
+		int[] newNameIds = new int[numEdges];
+		int[] newTypeIds = typeIds == null ? null : new int[numEdges];
+		int[] newGeometryOffsets = geometryOffsets == null ? null : new int[numEdges + 1];
+		int points = geometryOffsets == null ? 0 : geometryOffsets[numEdges];
+		double[] newGeometryLatitudes = geometryOffsets == null ? null : new double[points];
+		double[] newGeometryLongitudes = geometryOffsets == null ? null : new double[points];
+
+		int[] newEdges = new int[numEdges]; // the new id of every edge
+		int edge = 0;
+		int point = 0;
+		for (int id = 0; id < numVertices; id++) {
+			int v = oldIds[id];
+			newLatitudes[id] = latitudes[v];
+			newLongitudes[id] = longitudes[v];
+			newOffsets[id] = edge;
+			for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+				newEdges[e] = edge;
+				newTargets[edge] = newIds[targets[e]];
+				newLengths[edge] = lengths[e];
+				newRoadClasses[edge] = roadClasses[e];
+				newNameIds[edge] = nameIds[e];
+				if (newTypeIds != null) {
+					newTypeIds[edge] = typeIds[e];
+				}
+				if (newGeometryOffsets != null) {
+					newGeometryOffsets[edge] = point;
+					int count = geometryOffsets[e + 1] - geometryOffsets[e];
+					System.arraycopy(geometryLatitudes, geometryOffsets[e], newGeometryLatitudes, point, count);
+					System.arraycopy(geometryLongitudes, geometryOffsets[e], newGeometryLongitudes, point, count);
+					point += count;
+				}
+				edge++;
+			}
+		}
+		newOffsets[numVertices] = edge;
+		if (newGeometryOffsets != null) {
+			newGeometryOffsets[numEdges] = point;
+		}
+
+		CompactGraph permuted = new CompactGraph(newOffsets, newTargets, newLengths,
+				newLatitudes, newLongitudes, names, newNameIds, types, newTypeIds,
+				newGeometryOffsets, newGeometryLatitudes, newGeometryLongitudes);
+		System.arraycopy(newRoadClasses, 0, permuted.roadClasses, 0, numEdges);
+		permuted.setQueueType(queueType);
+		synchronized (this) {
+			for (int e = closedEdges.nextSetBit(0); e >= 0; e = closedEdges.nextSetBit(e + 1)) {
+				permuted.closedEdges.set(newEdges[e]);
+			}
+			for (Map.Entry<EdgeMetric, double[]> entry : setCosts.entrySet()) {
+				double[] set = new double[numEdges];
+				for (int e = 0; e < numEdges; e++) {
+					set[newEdges[e]] = entry.getValue()[e];
+				}
+				permuted.setCosts.put(entry.getKey(), set);
+			}
+			permuted.weightVersion = weightVersion;
+			// the distances were cached before the updates were copied
+			permuted.weightCache.clear();
+			permuted.setMetric(getMetric());
+		}
+		return permuted;
+	}
+
+	/**
+	 * approximate number of bytes used by the arrays of this graph
+	 * @return the size of the graph in bytes
+	 */
+	public long getMemoryFootprint() {
+		return 4L * offsets.length + 4L * targets.length + 8L * lengths.length + roadClasses.length
+				+ 16L * numVertices + 4L * inOffsets.length + 8L * numEdges;
+	}
+
+	/** Find the path from start to goal using breadth first search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest (unweighted)
+	 *   path from start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bfs(GeographicPoint start, GeographicPoint goal) {
+		return bfs(start, goal, null);
+	}
+
+	/** Find the path from start to goal using breadth first search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return The list of intersections that form the shortest (unweighted)
+	 *   path from start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bfs(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		int source = nearestVertex(start);
+		int target = nearestVertex(goal);
+		if (source < 0 || target < 0) {
+			return null;
+		}
+
+		if (!components.canReach(source, target)) {
+			return null;
+		}
+
+		SearchContext context = SearchContext.acquire(numVertices);
+		int[] queue = context.getFifo();
+		int head = 0;
+		int tail = 0;
+
+		queue[tail++] = source;
+		context.update(source, 0, -1);
+
+		while (head < tail) {
+			int curr = queue[head++];
+			if (nodeSearched != null) {
+				nodeSearched.accept(getLocation(curr));
+			}
+			if (curr == target) {
+				return graphPath(context, target);
+			}
+
+			for (int e = offsets[curr]; e < offsets[curr + 1]; e++) {
+				int next = targets[e];
+				if (!context.isReached(next)) {
+					context.update(next, 0, curr);
+					queue[tail++] = next;
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Find the path from start to goal using Dijkstra's algorithm
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> dijkstra(GeographicPoint start, GeographicPoint goal) {
+		return dijkstra(start, goal, null);
+	}
+
+	/** Find the path from start to goal using Dijkstra's algorithm
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> dijkstra(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return search(start, goal, nodeSearched, false);
+	}
+
+	/** Find the path from start to goal using A-Star search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> aStarSearch(GeographicPoint start, GeographicPoint goal) {
+		return aStarSearch(start, goal, null);
+	}
+
+	/** Find the path from start to goal using A-Star search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> aStarSearch(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return search(start, goal, nodeSearched, true);
+	}
+
+	// Dijkstra's algorithm, guided by the straight line distance to the
+	// goal when isAStar is true.
+	private List<GeographicPoint> search(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, boolean isAStar) {
+		int source = nearestVertex(start);
+		int target = nearestVertex(goal);
+		if (source < 0 || target < 0) {
+			return null;
+		}
+		SearchContext context = SearchContext.acquire(numVertices, queueType);
+		return route(source, target, nodeSearched, isAStar, context)
+				? graphPath(context, target) : null;
+	}
+
+	/**
+	 * runs Dijkstra's algorithm from source until target is settled, guided
+	 * by the straight line distance to the target when isAStar is true
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @param isAStar whether to run A* instead of Dijkstra
+	 * @param context an empty search context, which holds the cost and the
+	 *   path to target afterwards
+	 * @return true if target was reached
+	 */
+	boolean route(int source, int target, Consumer<GeographicPoint> nodeSearched,
+			boolean isAStar, SearchContext context) {
+		if (!components.canReach(source, target)) {
+			return false;
+		}
+		Weights current = weights;
+		double[] costs = current.costs;
+		context.update(source, 0, -1);
+		context.push(source, 0);
+
+		while (!context.isQueueEmpty()) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			if (nodeSearched != null) {
+				nodeSearched.accept(getLocation(curr));
+			}
+
+			if (curr == target) {
+				return true;
+			}
+
+			double currDistance = context.getDistance(curr);
+			for (int e = offsets[curr]; e < offsets[curr + 1]; e++) {
+				int next = targets[e];
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					double priority = disAndCost;
+					if (isAStar) {
+						priority += estimate(next, target, current);
+					}
+					context.push(next, priority);
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Find the path between two positions on edges using Dijkstra's
+	 * algorithm. The search starts from a virtual vertex at the start
+	 * position: the end of its edge, and the start of its edge when the road
+	 * is two way, are reached at the part of the edge cost that remains.
+	 * When both positions are on the same road and the goal lies ahead of
+	 * the start in one of its directions, the goal can also be reached
+	 * without leaving the road.
+	 *
+	 * @param start The starting position, from SegmentIndex.snap
+	 * @param goal The goal position, from SegmentIndex.snap
+	 * @return The location of start, the intersections on the way and the
+	 *   location of goal, or null if goal cannot be reached.
+	 */
+	public List<GeographicPoint> dijkstra(EdgePosition start, EdgePosition goal) {
+		double[] costs = weights.costs;
+		double best = Double.MAX_VALUE;
+		int bestVertex = -1;
+		// a position on a two way road is also on the reverse edge, at the
+		// other fraction. Any edge both positions are on, with the goal ahead,
+		// leads straight from the start to the goal.
+		for (int i = 0; i < 2; i++) {
+			int startEdge = i == 0 ? start.getEdge() : start.getReverseEdge();
+			double startFraction = i == 0 ? start.getFraction() : 1 - start.getFraction();
+			for (int j = 0; j < 2 && startEdge >= 0; j++) {
+				int goalEdge = j == 0 ? goal.getEdge() : goal.getReverseEdge();
+				double goalFraction = j == 0 ? goal.getFraction() : 1 - goal.getFraction();
+				if (goalEdge == startEdge && startFraction <= goalFraction) {
+					double direct = partCost(goalFraction - startFraction, costs[startEdge]);
+					if (direct < best) {
+						best = direct;
+					}
+				}
+			}
+		}
+
+		SearchContext context = SearchContext.acquire(numVertices, queueType);
+		seed(context, targets[start.getEdge()], partCost(1 - start.getFraction(), costs[start.getEdge()]));
+		if (start.getReverseEdge() >= 0) {
+			int reverse = start.getReverseEdge();
+			seed(context, targets[reverse], partCost(start.getFraction(), costs[reverse]));
+		}
+
+		while (!context.isQueueEmpty() && context.peekPriority() < best) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+
+			// the goal is reached along its edge, or along the reverse edge
+			double currDistance = context.getDistance(curr);
+			if (curr == sources[goal.getEdge()]) {
+				double total = currDistance + partCost(goal.getFraction(), costs[goal.getEdge()]);
+				if (total < best) {
+					best = total;
+					bestVertex = curr;
+				}
+			}
+			if (goal.getReverseEdge() >= 0 && curr == sources[goal.getReverseEdge()]) {
+				double total = currDistance + partCost(1 - goal.getFraction(), costs[goal.getReverseEdge()]);
+				if (total < best) {
+					best = total;
+					bestVertex = curr;
+				}
+			}
+
+			for (int e = offsets[curr]; e < offsets[curr + 1]; e++) {
+				int next = targets[e];
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+		if (best == Double.MAX_VALUE) {
+			return null;
+		}
+
+		List<GeographicPoint> path = new ArrayList<GeographicPoint>();
+		path.add(start.getLocation());
+		if (bestVertex >= 0) {
+			path.addAll(graphPath(context, bestVertex));
+		}
+		path.add(goal.getLocation());
+		return path;
+	}
+
+	// The cost of driving the given fraction of an edge. None of a closed
+	// edge, whose cost is infinite, costs nothing rather than NaN.
+	private static double partCost(double fraction, double cost) {
+		return fraction == 0 ? 0 : fraction * cost;
+	}
+
+	private void seed(SearchContext context, int v, double distance) {
+		if (distance < context.getDistance(v)) {
+			context.update(v, distance, -1);
+			context.push(v, distance);
+		}
+	}
+
+	/**
+	 * returns the edge that runs along the same road as an edge in the other
+	 * direction, with the same name and length
+	 * @param edge id of the edge
+	 * @return id of the reverse edge, or -1 if the road is one way
+	 */
+	int findReverseEdge(int edge) {
+		int from = sources[edge];
+		int to = targets[edge];
+		for (int e = offsets[to]; e < offsets[to + 1]; e++) {
+			if (targets[e] == from && nameIds[e] == nameIds[edge] && lengths[e] == lengths[edge]) {
+				return e;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * follows the parents recorded by a search back from the goal and
+	 * returns the path from the start to the goal
+	 * @param context the state of the search that reached the goal
+	 * @param goal id of the last vertex of the path
+	 * @return the path from the starting node to the goal node
+	 */
+	List<GeographicPoint> graphPath(SearchContext context, int goal) {
+		List<GeographicPoint> list = new ArrayList<GeographicPoint>();
+		for (int curr = goal; curr != -1; curr = context.getParent(curr)) {
+			list.add(getLocation(curr));
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		CompactGraph compact = theMap.toCompactGraph();
+
+		System.out.println(file + ": " + compact.getNumVertices() + " vertices, "
+				+ compact.getNumEdges() + " edges, "
+				+ compact.getMemoryFootprint() / 1024 + " KB in compact form");
+
+		// route between pseudo random pairs of intersections
+		int queries = 200;
+		Random random = new Random(42);
+		GeographicPoint[] from = new GeographicPoint[queries];
+		GeographicPoint[] to = new GeographicPoint[queries];
+		for (int i = 0; i < queries; i++) {
+			from[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+			to[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+		}
+
+		for (QueueType type : QueueType.values()) {
+			compact.setQueueType(type);
+			long begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				compact.dijkstra(from[i], to[i]);
+			}
+			long compactTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				compact.aStarSearch(from[i], to[i]);
+			}
+			long compactAStarTime = System.nanoTime() - begin;
+
+			System.out.println(type + " dijkstra: " + compactTime / queries / 1000 + " us/query");
+			System.out.println(type + " A*: " + compactAStarTime / queries / 1000 + " us/query");
+		}
+
+		// live traffic: one update at a time, then in batches of 100
+		compact.setMetric(EdgeMetric.travelTime());
+		int updates = 20000;
+		for (int batch : new int[] { 1, 100 }) {
+			long begin = System.nanoTime();
+			for (int b = 0; b < updates / batch; b++) {
+				int[] edges = new int[batch];
+				double[] costs = new double[batch];
+				for (int i = 0; i < batch; i++) {
+					edges[i] = random.nextInt(compact.getNumEdges());
+					costs[i] = compact.getEdgeWeight(edges[i]) * (1 + random.nextDouble());
+				}
+				compact.updateEdgeWeights(edges, costs);
+			}
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			System.out.printf("weight updates in batches of %d: %.0f updates/s, version %d%n",
+					batch, updates / seconds, compact.getWeightVersion());
+		}
+	}
+}
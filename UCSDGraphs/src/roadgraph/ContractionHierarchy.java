@@ -0,0 +1,681 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A Contraction Hierarchies index built from a loaded graph. Preprocessing
+ * contracts the vertices one by one in the order of their importance and
+ * adds a shortcut edge u -> w whenever removing v would destroy the only
+ * shortest path u -> v -> w. A query then runs a bidirectional Dijkstra
+ * that only follows edges towards more important vertices, which settles
+ * a few hundred vertices instead of most of the map, and unpacks the
+ * shortcuts of the path it finds back into the original intersections.
+ *
+ * Contraction runs in rounds: every round picks the vertices that are less
+ * important than all their neighbors, which form an independent set, finds
+ * their shortcuts in parallel and then applies them. The witness searches
+ * of a round avoid all the vertices of the round, because a witness path
+ * through one of them is gone once it is contracted too.
+ */
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class ContractionHierarchy {
+	// witness searches give up after settling this many vertices, which
+	// can only add shortcuts that are not needed
+	private static final int WITNESS_SETTLE_LIMIT = 500;
+
+	private final CompactGraph graph;
+	private final int numVertices;
+	private final int[] rank; // position of every vertex in the contraction order
+
+	// edges v -> w with rank[w] > rank[v], stored at v
+	private final int[] upOffsets;
+	private final int[] upTargets;
+	private final double[] upWeights;
+	private final int[] upMiddles; // contracted vertex of a shortcut, -1 for road edges
+
+	// edges u -> v with rank[u] > rank[v], stored at v
+	private final int[] downOffsets;
+	private final int[] downSources;
+	private final double[] downWeights;
+	private final int[] downMiddles;
+
+	private final int numShortcuts;
+	private final long preprocessingMillis;
+
+	/**
+	 * Builds the hierarchy for a snapshot of the given graph
+	 * @param graph the graph to preprocess
+	 */
+	public ContractionHierarchy(MapGraph graph) {
+		this(graph.toCompactGraph());
+	}
+
+	/**
+	 * Builds the hierarchy for the given graph
+	 * @param graph the graph to preprocess
+	 */
+	public ContractionHierarchy(CompactGraph graph) {
+		long begin = System.currentTimeMillis();
+		this.graph = graph;
+		this.numVertices = graph.getNumVertices();
+		this.rank = new int[numVertices];
+
+		EdgeList[] out = new EdgeList[numVertices];
+		EdgeList[] in = new EdgeList[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			out[v] = new EdgeList();
+			in[v] = new EdgeList();
+		}
+		for (int v = 0; v < numVertices; v++) {
+			int end = graph.getFirstEdge(v) + graph.getOutDegree(v);
+			for (int e = graph.getFirstEdge(v); e < end; e++) {
+				int w = graph.getEdgeTarget(e);
+				if (w != v) {
+					out[v].addOrImprove(w, graph.getEdgeLength(e), -1);
+					in[w].addOrImprove(v, graph.getEdgeLength(e), -1);
+				}
+			}
+		}
+
+		Contraction contraction = new Contraction(out, in);
+		int shortcuts = contraction.run();
+
+		// the edges of every vertex at the time it was contracted go
+		// towards more important vertices
+		upOffsets = new int[numVertices + 1];
+		downOffsets = new int[numVertices + 1];
+		for (int v = 0; v < numVertices; v++) {
+			upOffsets[v + 1] = upOffsets[v] + contraction.up[v].size;
+			downOffsets[v + 1] = downOffsets[v] + contraction.down[v].size;
+		}
+		upTargets = new int[upOffsets[numVertices]];
+		upWeights = new double[upTargets.length];
+		upMiddles = new int[upTargets.length];
+		downSources = new int[downOffsets[numVertices]];
+		downWeights = new double[downSources.length];
+		downMiddles = new int[downSources.length];
+		for (int v = 0; v < numVertices; v++) {
+			contraction.up[v].copyTo(upTargets, upWeights, upMiddles, upOffsets[v]);
+			contraction.down[v].copyTo(downSources, downWeights, downMiddles, downOffsets[v]);
+		}
+
+		numShortcuts = shortcuts;
+		preprocessingMillis = System.currentTimeMillis() - begin;
+	}
+
+	public CompactGraph getGraph() {
+		return graph;
+	}
+
+	public int getNumShortcuts() {
+		return numShortcuts;
+	}
+
+	public long getPreprocessingMillis() {
+		return preprocessingMillis;
+	}
+
+	/**
+	 * returns the position of a vertex in the contraction order, vertices
+	 * with a higher rank are more important
+	 * @param v id of the vertex
+	 * @return the rank of v, between 0 and getNumVertices() - 1
+	 */
+	public int getRank(int v) {
+		return rank[v];
+	}
+
+	int getUpFirstEdge(int v) {
+		return upOffsets[v];
+	}
+
+	int getUpEndEdge(int v) {
+		return upOffsets[v + 1];
+	}
+
+	int getUpTarget(int edge) {
+		return upTargets[edge];
+	}
+
+	double getUpWeight(int edge) {
+		return upWeights[edge];
+	}
+
+	int getDownFirstEdge(int v) {
+		return downOffsets[v];
+	}
+
+	int getDownEndEdge(int v) {
+		return downOffsets[v + 1];
+	}
+
+	int getDownSource(int edge) {
+		return downSources[edge];
+	}
+
+	double getDownWeight(int edge) {
+		return downWeights[edge];
+	}
+
+	/** Find the shortest path from start to goal
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or null if there is none
+	 */
+	public List<GeographicPoint> shortestPath(GeographicPoint start, GeographicPoint goal) {
+		return shortestPath(start, goal, null);
+	}
+
+	/** Find the shortest path from start to goal
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or null if there is none
+	 */
+	public List<GeographicPoint> shortestPath(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		int source = graph.nearestVertex(start);
+		int target = graph.nearestVertex(goal);
+		if (source < 0 || target < 0) {
+			return null;
+		}
+		int[] path = shortestPath(source, target, nodeSearched);
+		if (path == null) {
+			return null;
+		}
+		List<GeographicPoint> list = new ArrayList<GeographicPoint>(path.length);
+		for (int v : path) {
+			list.add(graph.getLocation(v));
+		}
+		return list;
+	}
+
+	/**
+	 * returns the length of the shortest path between two vertices
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @return the distance in km or Double.MAX_VALUE if there is no path
+	 */
+	public double distance(int source, int target) {
+		SearchContext forward = SearchContext.acquire(numVertices, QueueType.INDEXED_HEAP,
+				SearchContext.FORWARD);
+		SearchContext backward = SearchContext.acquire(numVertices, QueueType.INDEXED_HEAP,
+				SearchContext.BACKWARD);
+		int meeting = search(source, target, forward, backward, null);
+		return meeting < 0 ? Double.MAX_VALUE
+				: forward.getDistance(meeting) + backward.getDistance(meeting);
+	}
+
+	/**
+	 * returns the shortest path between two vertices as vertex ids
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return the ids from source to target, or null if there is no path
+	 */
+	public int[] shortestPath(int source, int target, Consumer<GeographicPoint> nodeSearched) {
+		SearchContext forward = SearchContext.acquire(numVertices, QueueType.INDEXED_HEAP,
+				SearchContext.FORWARD);
+		SearchContext backward = SearchContext.acquire(numVertices, QueueType.INDEXED_HEAP,
+				SearchContext.BACKWARD);
+		int meeting = search(source, target, forward, backward, nodeSearched);
+		if (meeting < 0) {
+			return null;
+		}
+
+		// the up-down path through the hierarchy, with shortcuts
+		List<Integer> packed = new ArrayList<>();
+		for (int v = meeting; v != -1; v = forward.getParent(v)) {
+			packed.add(v);
+		}
+		Collections.reverse(packed);
+		for (int v = backward.getParent(meeting); v != -1; v = backward.getParent(v)) {
+			packed.add(v);
+		}
+
+		IntList path = new IntList();
+		path.add(packed.get(0));
+		for (int i = 0; i + 1 < packed.size(); i++) {
+			unpack(packed.get(i), packed.get(i + 1), path);
+		}
+		return path.toArray();
+	}
+
+	// Bidirectional Dijkstra on the upward graph from source and the
+	// reversed downward graph from target. Returns the vertex where the
+	// shortest path is the most important, or -1 if there is no path.
+	private int search(int source, int target, SearchContext forward,
+			SearchContext backward, Consumer<GeographicPoint> nodeSearched) {
+		forward.update(source, 0, -1);
+		forward.push(source, 0);
+		backward.update(target, 0, -1);
+		backward.push(target, 0);
+
+		double best = Double.MAX_VALUE;
+		int meeting = -1;
+		while (true) {
+			boolean forwardOpen = !forward.isQueueEmpty() && forward.peekPriority() < best;
+			boolean backwardOpen = !backward.isQueueEmpty() && backward.peekPriority() < best;
+			if (!forwardOpen && !backwardOpen) {
+				break;
+			}
+			boolean isForward = forwardOpen
+					&& (!backwardOpen || forward.peekPriority() <= backward.peekPriority());
+			SearchContext context = isForward ? forward : backward;
+			SearchContext other = isForward ? backward : forward;
+
+			int curr = context.poll();
+			context.settle(curr);
+			if (nodeSearched != null) {
+				nodeSearched.accept(graph.getLocation(curr));
+			}
+
+			double currDistance = context.getDistance(curr);
+			if (other.isReached(curr) && currDistance + other.getDistance(curr) < best) {
+				best = currDistance + other.getDistance(curr);
+				meeting = curr;
+			}
+
+			int end = isForward ? upOffsets[curr + 1] : downOffsets[curr + 1];
+			for (int e = isForward ? upOffsets[curr] : downOffsets[curr]; e < end; e++) {
+				int next = isForward ? upTargets[e] : downSources[e];
+				double disAndCost = currDistance + (isForward ? upWeights[e] : downWeights[e]);
+				if (disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+		return meeting;
+	}
+
+	// Appends the original vertices of the edge from -> to, without from.
+	private void unpack(int from, int to, IntList path) {
+		int middle;
+		if (rank[from] < rank[to]) {
+			int e = upOffsets[from];
+			while (upTargets[e] != to) {
+				e++;
+			}
+			middle = upMiddles[e];
+		} else {
+			int e = downOffsets[to];
+			while (downSources[e] != from) {
+				e++;
+			}
+			middle = downMiddles[e];
+		}
+
+		if (middle < 0) {
+			path.add(to);
+		} else {
+			unpack(from, middle, path);
+			unpack(middle, to, path);
+		}
+	}
+
+	// The state of the preprocessing, it is dropped once the up and down
+	// arrays have been built.
+	private class Contraction {
+		private final EdgeList[] out;
+		private final EdgeList[] in;
+		private final EdgeList[] up;
+		private final EdgeList[] down;
+		private final boolean[] contracted;
+		private final boolean[] inBatch; // contracted in the current round
+		private final int[] priority;
+		private final int[] contractedNeighbors;
+
+		Contraction(EdgeList[] out, EdgeList[] in) {
+			this.out = out;
+			this.in = in;
+			this.up = new EdgeList[numVertices];
+			this.down = new EdgeList[numVertices];
+			this.contracted = new boolean[numVertices];
+			this.inBatch = new boolean[numVertices];
+			this.priority = new int[numVertices];
+			this.contractedNeighbors = new int[numVertices];
+		}
+
+		// Contracts every vertex and returns the number of shortcuts added.
+		int run() {
+			IntStream.range(0, numVertices).parallel()
+					.forEach(v -> priority[v] = computePriority(v));
+
+			int shortcuts = 0;
+			int nextRank = 0;
+			int[] remaining = IntStream.range(0, numVertices).toArray();
+			while (remaining.length > 0) {
+				int[] batch = Arrays.stream(remaining).parallel()
+						.filter(this::isLocalMinimum).toArray();
+
+				for (int v : batch) {
+					inBatch[v] = true;
+				}
+				List<List<Shortcut>> found = Arrays.stream(batch).parallel()
+						.mapToObj(this::findShortcuts).collect(Collectors.toList());
+
+				IntList touched = new IntList();
+				for (int i = 0; i < batch.length; i++) {
+					int v = batch[i];
+					rank[v] = nextRank++;
+					inBatch[v] = false;
+					contract(v, found.get(i), touched);
+					shortcuts += found.get(i).size();
+				}
+
+				int[] neighbors = touched.toArray();
+				Arrays.stream(neighbors).parallel().distinct()
+						.forEach(v -> priority[v] = computePriority(v));
+				remaining = Arrays.stream(remaining).filter(v -> !contracted[v]).toArray();
+			}
+			return shortcuts;
+		}
+
+		// A vertex is contracted in this round if it is less important
+		// than every remaining neighbor, ties are broken by id.
+		private boolean isLocalMinimum(int v) {
+			return isBefore(v, out[v]) && isBefore(v, in[v]);
+		}
+
+		private boolean isBefore(int v, EdgeList edges) {
+			for (int i = 0; i < edges.size; i++) {
+				int w = edges.vertices[i];
+				if (!contracted[w] && (priority[w] < priority[v]
+						|| (priority[w] == priority[v] && w < v))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Edge difference plus the number of contracted neighbors, which
+		// spreads the contraction evenly over the map.
+		private int computePriority(int v) {
+			int degree = 0;
+			for (int i = 0; i < out[v].size; i++) {
+				if (!contracted[out[v].vertices[i]]) {
+					degree++;
+				}
+			}
+			for (int i = 0; i < in[v].size; i++) {
+				if (!contracted[in[v].vertices[i]]) {
+					degree++;
+				}
+			}
+			return 2 * (findShortcuts(v).size() - degree) + contractedNeighbors[v];
+		}
+
+		// The shortcuts needed if v was removed from the remaining graph.
+		private List<Shortcut> findShortcuts(int v) {
+			List<Shortcut> shortcuts = new ArrayList<>();
+			EdgeList incoming = in[v];
+			EdgeList outgoing = out[v];
+			for (int i = 0; i < incoming.size; i++) {
+				int u = incoming.vertices[i];
+				if (contracted[u]) {
+					continue;
+				}
+				double maxTotal = 0;
+				boolean hasPair = false;
+				for (int j = 0; j < outgoing.size; j++) {
+					int w = outgoing.vertices[j];
+					if (!contracted[w] && w != u) {
+						maxTotal = Math.max(maxTotal, incoming.weights[i] + outgoing.weights[j]);
+						hasPair = true;
+					}
+				}
+				if (!hasPair) {
+					continue;
+				}
+
+				SearchContext witness = witnessSearch(u, v, maxTotal);
+				for (int j = 0; j < outgoing.size; j++) {
+					int w = outgoing.vertices[j];
+					if (contracted[w] || w == u) {
+						continue;
+					}
+					double viaV = incoming.weights[i] + outgoing.weights[j];
+					if (witness.getDistance(w) > viaV) {
+						shortcuts.add(new Shortcut(u, w, viaV, v));
+					}
+				}
+			}
+			return shortcuts;
+		}
+
+		// Dijkstra from u in the remaining graph without v and the other
+		// vertices of the round, limited to the distance maxDistance and to
+		// WITNESS_SETTLE_LIMIT vertices.
+		private SearchContext witnessSearch(int u, int v, double maxDistance) {
+			SearchContext context = SearchContext.acquire(numVertices);
+			context.update(u, 0, -1);
+			context.push(u, 0);
+			int settledCount = 0;
+			while (!context.isQueueEmpty() && settledCount < WITNESS_SETTLE_LIMIT) {
+				int curr = context.poll();
+				context.settle(curr);
+				settledCount++;
+				double currDistance = context.getDistance(curr);
+				if (currDistance > maxDistance) {
+					break;
+				}
+				EdgeList edges = out[curr];
+				for (int i = 0; i < edges.size; i++) {
+					int next = edges.vertices[i];
+					if (next == v || contracted[next] || inBatch[next]) {
+						continue;
+					}
+					double disAndCost = currDistance + edges.weights[i];
+					if (disAndCost < context.getDistance(next)) {
+						context.update(next, disAndCost, curr);
+						context.push(next, disAndCost);
+					}
+				}
+			}
+			return context;
+		}
+
+		// Removes v from the remaining graph: its edges to remaining
+		// vertices become its up and down edges, and the shortcuts replace
+		// the paths through it.
+		private void contract(int v, List<Shortcut> shortcuts, IntList touched) {
+			up[v] = new EdgeList();
+			down[v] = new EdgeList();
+			for (int i = 0; i < out[v].size; i++) {
+				int w = out[v].vertices[i];
+				if (!contracted[w]) {
+					up[v].addOrImprove(w, out[v].weights[i], out[v].middles[i]);
+					contractedNeighbors[w]++;
+					touched.add(w);
+				}
+			}
+			for (int i = 0; i < in[v].size; i++) {
+				int u = in[v].vertices[i];
+				if (!contracted[u]) {
+					down[v].addOrImprove(u, in[v].weights[i], in[v].middles[i]);
+					contractedNeighbors[u]++;
+					touched.add(u);
+				}
+			}
+			for (Shortcut s : shortcuts) {
+				out[s.from].addOrImprove(s.to, s.weight, s.middle);
+				in[s.to].addOrImprove(s.from, s.weight, s.middle);
+			}
+			contracted[v] = true;
+			// the lists of v are only needed again through up and down
+			out[v] = new EdgeList();
+			in[v] = new EdgeList();
+		}
+	}
+
+	// A shortcut edge from -> to that replaces from -> middle -> to.
+	private static class Shortcut {
+		private final int from;
+		private final int to;
+		private final double weight;
+		private final int middle;
+
+		Shortcut(int from, int to, double weight, int middle) {
+			this.from = from;
+			this.to = to;
+			this.weight = weight;
+			this.middle = middle;
+		}
+	}
+
+	// A growable list of edges of one vertex, kept in parallel arrays.
+	private static class EdgeList {
+		private int[] vertices = new int[4];
+		private double[] weights = new double[4];
+		private int[] middles = new int[4];
+		private int size;
+
+		// Adds the edge, or lowers the weight of an existing edge to the
+		// same vertex.
+		void addOrImprove(int vertex, double weight, int middle) {
+			for (int i = 0; i < size; i++) {
+				if (vertices[i] == vertex) {
+					if (weight < weights[i]) {
+						weights[i] = weight;
+						middles[i] = middle;
+					}
+					return;
+				}
+			}
+			if (size == vertices.length) {
+				vertices = Arrays.copyOf(vertices, size * 2);
+				weights = Arrays.copyOf(weights, size * 2);
+				middles = Arrays.copyOf(middles, size * 2);
+			}
+			vertices[size] = vertex;
+			weights[size] = weight;
+			middles[size] = middle;
+			size++;
+		}
+
+		void copyTo(int[] toVertices, double[] toWeights, int[] toMiddles, int offset) {
+			System.arraycopy(vertices, 0, toVertices, offset, size);
+			System.arraycopy(weights, 0, toWeights, offset, size);
+			System.arraycopy(middles, 0, toMiddles, offset, size);
+		}
+	}
+
+	// A graph of n vertices with m random edges of length 0, 1 or 2.
+	// Equal lengths make ties between paths, which the witness searches
+	// must not miss. HubLabels checks its labels on the same graphs.
+	static CompactGraph randomGraph(int n, int m, Random random) {
+		int[] offsets = new int[n + 1];
+		int[] sources = new int[m];
+		for (int e = 0; e < m; e++) {
+			sources[e] = random.nextInt(n);
+			offsets[sources[e] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] next = Arrays.copyOf(offsets, n);
+		int[] targets = new int[m];
+		double[] lengths = new double[m];
+		for (int e = 0; e < m; e++) {
+			int i = next[sources[e]]++;
+			targets[i] = random.nextInt(n);
+			lengths[i] = random.nextInt(3);
+		}
+		double[] latitudes = new double[n];
+		double[] longitudes = new double[n];
+		for (int v = 0; v < n; v++) {
+			latitudes[v] = 32 + random.nextDouble() * 0.01;
+			longitudes[v] = -117 + random.nextDouble() * 0.01;
+		}
+		return new CompactGraph(offsets, targets, lengths, latitudes, longitudes,
+				new String[] { "" }, new int[m], null, null, null, null, null);
+	}
+
+	// The number of pairs where the hierarchy and Dijkstra disagree, over
+	// every target of the given number of random sources.
+	private static int countWrongDistances(ContractionHierarchy ch, int sources, Random random) {
+		CompactGraph graph = ch.getGraph();
+		int wrong = 0;
+		for (int i = 0; i < sources; i++) {
+			int source = random.nextInt(graph.getNumVertices());
+			double[] expected = graph.distancesFrom(source);
+			for (int target = 0; target < expected.length; target++) {
+				if (Math.abs(ch.distance(source, target) - expected[target]) > 1e-9) {
+					wrong++;
+				}
+			}
+		}
+		return wrong;
+	}
+
+	public static void main(String[] args)
+	{
+		// small graphs full of ties, where contracting two vertices of a
+		// round against each other's witnesses used to lose paths
+		Random check = new Random(1);
+		int wrongGraphs = 0;
+		for (int i = 0; i < 300; i++) {
+			int n = 4 + check.nextInt(40);
+			CompactGraph graph = randomGraph(n, n * (1 + check.nextInt(3)), check);
+			if (countWrongDistances(new ContractionHierarchy(graph), n, check) > 0) {
+				wrongGraphs++;
+			}
+		}
+		System.out.println("random graphs: " + wrongGraphs + " of 300 with wrong distances");
+
+		String[] files = args.length > 0 ? args
+				: new String[] {"data/maps/san_diego.map", "data/maps/hollywood_large.map",
+						"data/maps/new_york.map"};
+		int queries = 2000;
+
+		for (String file : files) {
+			MapGraph theMap = new MapGraph();
+			GraphLoader.loadRoadMap(file, theMap);
+			CompactGraph compact = theMap.toCompactGraph();
+			ContractionHierarchy ch = new ContractionHierarchy(compact);
+			System.out.println(file + ": " + compact.getNumVertices() + " vertices, "
+					+ ch.getNumShortcuts() + " shortcuts, preprocessing "
+					+ ch.getPreprocessingMillis() + " ms");
+
+			Random random = new Random(42);
+			GeographicPoint[] starts = new GeographicPoint[queries];
+			GeographicPoint[] goals = new GeographicPoint[queries];
+			for (int i = 0; i < queries; i++) {
+				starts[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+				goals[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+			}
+
+			long begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				compact.dijkstra(starts[i], goals[i]);
+			}
+			long dijkstraTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				ch.shortestPath(starts[i], goals[i]);
+			}
+			long chTime = System.nanoTime() - begin;
+
+			System.out.println("  dijkstra: " + dijkstraTime / queries / 1000 + " us/query, "
+					+ "contraction hierarchies: " + chTime / queries / 1000 + " us/query");
+			System.out.println("  " + countWrongDistances(ch, 20, random) + " wrong distances from 20 sources");
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Computes full shortest path trees of a CompactGraph on several threads
+ * with delta-stepping, for analytics and precomputation where a serial
+ * Dijkstra would leave all cores but one idle.
+ *
+ * The tentative distances are kept in buckets of width delta. All the
+ * vertices of the lowest bucket are relaxed at once by a fork-join pool:
+ * first along their light edges, those no longer than delta, which can
+ * put vertices back into the same bucket, until the bucket stays empty,
+ * and then once along their heavy edges. A small delta is close to
+ * Dijkstra and leaves little to do in parallel, a large one is close to
+ * Bellman-Ford and relaxes edges many times. It is tuned from the costs
+ * of the edges unless given.
+ *
+ * The distances are lowered with compare-and-set, so the threads never
+ * lock. Parents are only chosen once every distance is final, which keeps
+ * them consistent whichever thread won a race.
+ */
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+public class DeltaStepping {
+	// smaller frontiers are relaxed by the calling thread, forking them
+	// costs more than it saves
+	private static final int PARALLEL_THRESHOLD = 512;
+	// number of edge costs looked at to tune delta
+	private static final int SAMPLE_SIZE = 10000;
+
+	private final CompactGraph graph;
+	private final double delta;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a search on the common pool with delta tuned from the
+	 * costs of the edges under the metric selected now
+	 * @param graph the graph to search
+	 */
+	public DeltaStepping(CompactGraph graph) {
+		this(graph, tuneDelta(graph), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a search
+	 * @param graph the graph to search
+	 * @param delta the width of the buckets, in the units of the metric
+	 * @param pool the threads that relax the edges
+	 */
+	public DeltaStepping(CompactGraph graph, double delta, ForkJoinPool pool) {
+		if (!(delta > 0) || Double.isInfinite(delta)) {
+			throw new IllegalArgumentException("Invalid bucket width: " + delta);
+		}
+		this.graph = graph;
+		this.delta = delta;
+		this.pool = pool;
+	}
+
+	/**
+	 * chooses the width of the buckets from the costs of the edges. It is
+	 * the typical cost times the average out-degree, so a vertex has about
+	 * one light edge leading into the bucket of its own, capped so that
+	 * at least nine edges out of ten are light.
+	 * @param graph the graph to search, with the metric selected
+	 * @return the width of the buckets
+	 */
+	public static double tuneDelta(CompactGraph graph) {
+		double[] costs = graph.weightArray();
+		int m = graph.getNumEdges();
+		if (m == 0) {
+			return 1;
+		}
+		int size = Math.min(m, SAMPLE_SIZE);
+		double[] sample = new double[size];
+		int count = 0;
+		Random random = new Random(m);
+		for (int i = 0; i < size; i++) {
+			double cost = costs[size == m ? i : random.nextInt(m)];
+			if (cost > 0 && !Double.isInfinite(cost)) {
+				sample[count++] = cost;
+			}
+		}
+		if (count == 0) {
+			return 1;
+		}
+		Arrays.sort(sample, 0, count);
+		double median = sample[count / 2];
+		double high = sample[Math.min(count - 1, (int) (count * 0.9))];
+		double degree = (double) m / Math.max(1, graph.getNumVertices());
+		return Math.max(median, Math.min(median * degree, high));
+	}
+
+	public double getDelta() {
+		return delta;
+	}
+
+	/**
+	 * The distances and parents of a shortest path tree. The arrays are
+	 * returned as they are, not copied.
+	 */
+	public static class Tree {
+		private final int root;
+		private final double[] distances;
+		private final int[] parents;
+
+		Tree(int root, double[] distances, int[] parents) {
+			this.root = root;
+			this.distances = distances;
+			this.parents = parents;
+		}
+
+		public int getRoot() {
+			return root;
+		}
+
+		/**
+		 * returns the distances from the root, in the units of the metric
+		 * @return the distance of every vertex, Double.MAX_VALUE for
+		 *   unreachable vertices
+		 */
+		public double[] getDistances() {
+			return distances;
+		}
+
+		/**
+		 * returns the vertex before every vertex on its shortest path
+		 * @return the parent of every vertex, -1 for the root and for
+		 *   unreachable vertices
+		 */
+		public int[] getParents() {
+			return parents;
+		}
+	}
+
+	/**
+	 * computes the shortest paths from source to every vertex under the
+	 * metric selected in the graph
+	 * @param source id of the start vertex
+	 * @return the shortest path tree rooted at source
+	 */
+	public Tree run(int source) {
+		if (source < 0 || source >= graph.getNumVertices()) {
+			throw new IllegalArgumentException("Invalid vertex: " + source);
+		}
+		return new Search(graph.weightArray()).run(source);
+	}
+
+	// The state of one run, so that runs on several threads do not mix.
+	private class Search {
+		final double[] costs;
+		final int n;
+		// the distances as the bits of doubles, which for positive values
+		// are ordered like the values
+		final AtomicLongArray distance;
+		// the phase in which a vertex was last put in changed
+		final AtomicIntegerArray marks;
+		final int[] changed;
+		final AtomicInteger changedCount = new AtomicInteger();
+		int phase;
+		// the vertices of every bucket, with copies and vertices that have
+		// since moved to a lower bucket
+		final ArrayList<IntList> buckets = new ArrayList<>();
+
+		Search(double[] costs) {
+			this.costs = costs;
+			this.n = graph.getNumVertices();
+			distance = new AtomicLongArray(n);
+			marks = new AtomicIntegerArray(n);
+			changed = new int[n];
+		}
+
+		Tree run(int source) {
+			long unreached = Double.doubleToLongBits(Double.MAX_VALUE);
+			for (int v = 0; v < n; v++) {
+				distance.lazySet(v, unreached);
+			}
+			distance.set(source, Double.doubleToLongBits(0));
+			addToBucket(source);
+
+			int[] seen = new int[n]; // the bucket a vertex was last taken from, plus one
+			int[] frontier = new int[n];
+			int[] taken = new int[n]; // the bucket a vertex was first taken from, plus one
+			for (int i = 0; i < buckets.size(); i++) {
+				IntList settled = new IntList();
+				IntList bucket;
+				while ((bucket = buckets.get(i)) != null && bucket.size() > 0) {
+					buckets.set(i, null);
+					int size = 0;
+					for (int j = 0; j < bucket.size(); j++) {
+						int v = bucket.get(j);
+						if (bucketOf(v) == i && seen[v] != i + 1) {
+							seen[v] = i + 1;
+							frontier[size++] = v;
+						}
+					}
+					relax(frontier, size, true);
+					for (int j = 0; j < size; j++) {
+						if (taken[frontier[j]] != i + 1) {
+							taken[frontier[j]] = i + 1;
+							settled.add(frontier[j]);
+						}
+					}
+					distribute();
+					// a vertex lowered again within bucket i is taken again
+					for (int j = 0; j < changedCount.get(); j++) {
+						seen[changed[j]] = 0;
+					}
+					changedCount.set(0);
+				}
+				int size = settled.size();
+				for (int j = 0; j < size; j++) {
+					frontier[j] = settled.get(j);
+				}
+				relax(frontier, size, false);
+				distribute();
+				changedCount.set(0);
+			}
+
+			double[] distances = new double[n];
+			for (int v = 0; v < n; v++) {
+				distances[v] = Double.longBitsToDouble(distance.get(v));
+			}
+			return new Tree(source, distances, parents(source, distances));
+		}
+
+		private int bucketOf(int v) {
+			return (int) (Double.longBitsToDouble(distance.get(v)) / delta);
+		}
+
+		private void addToBucket(int v) {
+			int i = bucketOf(v);
+			while (buckets.size() <= i) {
+				buckets.add(null);
+			}
+			IntList bucket = buckets.get(i);
+			if (bucket == null) {
+				bucket = new IntList();
+				buckets.set(i, bucket);
+			}
+			bucket.add(v);
+		}
+
+		// Puts the vertices lowered by the last relaxation into the buckets
+		// of their new distances.
+		private void distribute() {
+			int count = changedCount.get();
+			for (int j = 0; j < count; j++) {
+				addToBucket(changed[j]);
+			}
+		}
+
+		// Relaxes the light or the heavy edges of the frontier.
+		private void relax(int[] frontier, int size, boolean light) {
+			phase++;
+			if (size < PARALLEL_THRESHOLD) {
+				for (int j = 0; j < size; j++) {
+					relax(frontier[j], light);
+				}
+			} else {
+				pool.submit(() -> IntStream.range(0, size).parallel()
+						.forEach(j -> relax(frontier[j], light))).join();
+			}
+		}
+
+		private void relax(int u, boolean light) {
+			double du = Double.longBitsToDouble(distance.get(u));
+			int end = graph.getFirstEdge(u + 1);
+			for (int e = graph.getFirstEdge(u); e < end; e++) {
+				double cost = costs[e];
+				if ((cost <= delta) != light) {
+					continue;
+				}
+				int v = graph.getEdgeTarget(e);
+				if (lower(v, du + cost) && mark(v)) {
+					changed[changedCount.getAndIncrement()] = v;
+				}
+			}
+		}
+
+		// Sets the distance of v to d if that is lower.
+		private boolean lower(int v, double d) {
+			long bits = Double.doubleToLongBits(d);
+			long current = distance.get(v);
+			while (bits < current) {
+				if (distance.compareAndSet(v, current, bits)) {
+					return true;
+				}
+				current = distance.get(v);
+			}
+			return false;
+		}
+
+		// Whether v is marked by this phase for the first time.
+		private boolean mark(int v) {
+			int mark = marks.get(v);
+			while (mark != phase) {
+				if (marks.compareAndSet(v, mark, phase)) {
+					return true;
+				}
+				mark = marks.get(v);
+			}
+			return false;
+		}
+
+		// The parent of a vertex is a vertex whose distance plus the cost of
+		// the edge between them gives exactly the distance of the vertex.
+		// Among vertices at the same distance, behind edges that cost
+		// nothing, the parents are handed out from the root outwards so
+		// that they cannot form a cycle.
+		private int[] parents(int source, double[] distances) {
+			int[] parents = new int[n];
+			Arrays.fill(parents, -1);
+			boolean[] hasParent = new boolean[n];
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(v -> {
+				if (v == source || distances[v] == Double.MAX_VALUE) {
+					return;
+				}
+				int end = graph.getFirstInEdge(v + 1);
+				for (int i = graph.getFirstInEdge(v); i < end; i++) {
+					int e = graph.getInEdge(i);
+					int u = graph.getEdgeSource(e);
+					if (distances[u] < distances[v] && distances[u] + costs[e] == distances[v]) {
+						parents[v] = u;
+						hasParent[v] = true;
+						return;
+					}
+				}
+			})).join();
+
+			int missing = 0;
+			for (int v = 0; v < n; v++) {
+				if (v != source && !hasParent[v] && distances[v] != Double.MAX_VALUE) {
+					missing++;
+				}
+			}
+			if (missing > 0) {
+				hasParent[source] = true;
+				int[] queue = new int[n];
+				int tail = 0;
+				for (int v = 0; v < n; v++) {
+					if (hasParent[v]) {
+						queue[tail++] = v;
+					}
+				}
+				for (int head = 0; head < tail; head++) {
+					int u = queue[head];
+					int end = graph.getFirstEdge(u + 1);
+					for (int e = graph.getFirstEdge(u); e < end; e++) {
+						int v = graph.getEdgeTarget(e);
+						if (!hasParent[v] && distances[u] + costs[e] == distances[v]) {
+							parents[v] = u;
+							hasParent[v] = true;
+							queue[tail++] = v;
+						}
+					}
+				}
+			}
+			return parents;
+		}
+	}
+
+	// A grid of rows * columns intersections joined both ways to their
+	// neighbours, with streets of random lengths, as a larger graph than
+	// the maps.
+	static CompactGraph grid(int rows, int columns, long seed) {
+		int n = rows * columns;
+		int[] offsets = new int[n + 1];
+		IntList targets = new IntList();
+		double[] latitudes = new double[n];
+		double[] longitudes = new double[n];
+		int[][] moves = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				int v = r * columns + c;
+				latitudes[v] = 32 + r * 0.001;
+				longitudes[v] = -117 + c * 0.001;
+				offsets[v] = targets.size();
+				for (int[] move : moves) {
+					int nr = r + move[0];
+					int nc = c + move[1];
+					if (nr >= 0 && nr < rows && nc >= 0 && nc < columns) {
+						targets.add(nr * columns + nc);
+					}
+				}
+			}
+		}
+		offsets[n] = targets.size();
+		int m = targets.size();
+		double[] lengths = new double[m];
+		Random random = new Random(seed);
+		for (int e = 0; e < m; e++) {
+			// 0.1 km apart, streets wind up to three times longer
+			lengths[e] = 0.1 * (1 + 2 * random.nextDouble());
+		}
+		return new CompactGraph(offsets, targets.toArray(), lengths, latitudes, longitudes,
+				new String[] { "" }, new int[m], null, null, null, null, null);
+	}
+
+	// Times serial Dijkstra against delta-stepping over a few sources and
+	// checks that they agree.
+	private static void compare(String name, CompactGraph graph, int sources) {
+		DeltaStepping search = new DeltaStepping(graph);
+		Random random = new Random(7);
+		int[] roots = new int[sources];
+		for (int i = 0; i < sources; i++) {
+			roots[i] = random.nextInt(graph.getNumVertices());
+		}
+		// warm up both before timing
+		for (int i = 0; i < Math.min(3, sources); i++) {
+			graph.distancesFrom(roots[i]);
+			search.run(roots[i]);
+		}
+
+		long serial = 0;
+		long parallel = 0;
+		int mismatches = 0;
+		for (int root : roots) {
+			long begin = System.nanoTime();
+			double[] expected = graph.distancesFrom(root);
+			serial += System.nanoTime() - begin;
+			begin = System.nanoTime();
+			Tree tree = search.run(root);
+			parallel += System.nanoTime() - begin;
+			mismatches += check(graph, tree, expected);
+		}
+		System.out.printf("%s: %d vertices, delta %.3f, dijkstra %.2f ms, delta-stepping %.2f ms"
+				+ " (%.2fx), %d mismatches%n", name, graph.getNumVertices(), search.getDelta(),
+				serial / 1e6 / sources, parallel / 1e6 / sources, (double) serial / parallel, mismatches);
+	}
+
+	// The number of vertices whose distance or parent is wrong.
+	private static int check(CompactGraph graph, Tree tree, double[] expected) {
+		double[] distances = tree.getDistances();
+		int[] parents = tree.getParents();
+		int wrong = 0;
+		for (int v = 0; v < expected.length; v++) {
+			if (distances[v] != expected[v]) {
+				wrong++;
+			} else if (v != tree.getRoot() && expected[v] != Double.MAX_VALUE) {
+				int u = parents[v];
+				boolean tight = false;
+				for (int e = u < 0 ? 0 : graph.getFirstEdge(u); u >= 0 && e < graph.getFirstEdge(u + 1); e++) {
+					tight |= graph.getEdgeTarget(e) == v && distances[u] + graph.getEdgeLength(e) == distances[v];
+				}
+				if (!tight) {
+					wrong++;
+				}
+			}
+		}
+		return wrong;
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		int side = args.length > 1 ? Integer.parseInt(args[1]) : 700;
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores, pool of "
+				+ ForkJoinPool.commonPool().getParallelism() + " threads");
+		compare(file, MapSnapshot.loadOrBuild(file), 200);
+		compare("grid " + side + "x" + side, grid(side, side, 42), 10);
+	}
+}
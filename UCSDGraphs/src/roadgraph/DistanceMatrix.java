@@ -0,0 +1,167 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Road distances between every source and every target of two sets of
+ * intersections. The matrix is computed with one Dijkstra search per
+ * source that stops as soon as the last target it can reach is settled,
+ * and the sources are searched in parallel on all cores. The searches use the
+ * metric selected on the graph, so the matrix can also hold travel times.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class DistanceMatrix {
+	private DistanceMatrix() {
+	}
+
+	/**
+	 * computes the cost of the shortest path from every source to every
+	 * target
+	 * @param graph the graph to search
+	 * @param sources the start locations, snapped to the closest vertex
+	 * @param targets the goal locations, snapped to the closest vertex
+	 * @return matrix[i][j] is the cost from sources[i] to targets[j],
+	 *   Double.MAX_VALUE if there is no path
+	 * @throws IllegalArgumentException if a location is null or the graph
+	 *   is empty
+	 */
+	public static double[][] compute(CompactGraph graph, List<GeographicPoint> sources,
+			List<GeographicPoint> targets) {
+		return compute(graph, toIds(graph, sources), toIds(graph, targets));
+	}
+
+	private static int[] toIds(CompactGraph graph, List<GeographicPoint> locations) {
+		int[] ids = new int[locations.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = graph.nearestVertex(locations.get(i));
+			if (ids[i] < 0) {
+				throw new IllegalArgumentException("No vertex near " + locations.get(i));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * computes the cost of the shortest path from every source to every
+	 * target
+	 * @param graph the graph to search
+	 * @param sources ids of the start vertices
+	 * @param targets ids of the goal vertices, may contain duplicates
+	 * @return matrix[i][j] is the cost from sources[i] to targets[j],
+	 *   Double.MAX_VALUE if there is no path
+	 */
+	public static double[][] compute(final CompactGraph graph, final int[] sources,
+			final int[] targets) {
+		int n = graph.getNumVertices();
+		// the columns of every target vertex, chained through nextColumn
+		// since a vertex may be asked for more than once
+		final int[] firstColumn = new int[n];
+		final int[] nextColumn = new int[targets.length];
+		Arrays.fill(firstColumn, -1);
+		IntList distinct = new IntList();
+		for (int j = targets.length - 1; j >= 0; j--) {
+			if (firstColumn[targets[j]] < 0) {
+				distinct.add(targets[j]);
+			}
+			nextColumn[j] = firstColumn[targets[j]];
+			firstColumn[targets[j]] = j;
+		}
+		final int[] targetVertices = distinct.toArray();
+		final double[] costs = graph.weightArray();
+
+		final double[][] matrix = new double[sources.length][];
+		IntStream.range(0, sources.length).parallel().forEach(i -> {
+			double[] row = new double[targets.length];
+			Arrays.fill(row, Double.MAX_VALUE);
+			search(graph, costs, sources[i], firstColumn, nextColumn, targetVertices, row);
+			matrix[i] = row;
+		});
+		return matrix;
+	}
+
+	// Dijkstra from source until every target vertex it can reach is
+	// settled. Without the components one unreachable target would keep
+	// the search going through everything source reaches.
+	private static void search(CompactGraph graph, double[] costs, int source,
+			int[] firstColumn, int[] nextColumn, int[] targetVertices, double[] row) {
+		StronglyConnectedComponents components = graph.getComponents();
+		int remaining = 0;
+		for (int target : targetVertices) {
+			if (components.canReach(source, target)) {
+				remaining++;
+			}
+		}
+		if (remaining == 0) {
+			return;
+		}
+		SearchContext context = SearchContext.acquire(graph.getNumVertices());
+		context.update(source, 0, -1);
+		context.push(source, 0);
+		while (remaining > 0 && !context.isQueueEmpty()) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			double currDistance = context.getDistance(curr);
+			if (firstColumn[curr] >= 0) {
+				for (int j = firstColumn[curr]; j >= 0; j = nextColumn[j]) {
+					row[j] = currDistance;
+				}
+				remaining--;
+			}
+
+			int end = graph.getFirstEdge(curr) + graph.getOutDegree(curr);
+			for (int e = graph.getFirstEdge(curr); e < end; e++) {
+				int next = graph.getEdgeTarget(e);
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/san_diego.map";
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		CompactGraph graph = theMap.toCompactGraph();
+
+		Random random = new Random(42);
+		int[] sources = new int[size];
+		int[] targets = new int[size];
+		for (int i = 0; i < size; i++) {
+			sources[i] = random.nextInt(graph.getNumVertices());
+			targets[i] = random.nextInt(graph.getNumVertices());
+		}
+
+		// warm up the JIT before measuring
+		compute(graph, sources, targets);
+		long begin = System.nanoTime();
+		double[][] matrix = compute(graph, sources, targets);
+		long time = System.nanoTime() - begin;
+
+		int unreachable = 0;
+		for (double[] row : matrix) {
+			for (double d : row) {
+				if (d == Double.MAX_VALUE) {
+					unreachable++;
+				}
+			}
+		}
+		System.out.println(file + ": " + size + "x" + size + " matrix in " + time / 1000000
+				+ " ms on " + Runtime.getRuntime().availableProcessors() + " cores, "
+				+ unreachable + " unreachable pairs");
+	}
+}
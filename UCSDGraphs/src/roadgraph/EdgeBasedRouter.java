@@ -0,0 +1,262 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Finds shortest paths that pay for turns, see TurnCosts. A search over
+ * intersections cannot tell how it arrived at one, so it cannot ban a
+ * left turn there or charge for turning back. This search runs Dijkstra's
+ * algorithm over the edges of a CompactGraph instead: the state is the
+ * edge the route arrived on, and going on along the next edge costs the
+ * turn between the two plus the cost of the next edge. The same
+ * intersection can then be passed twice, which a route around a banned
+ * turn needs.
+ *
+ * The search keeps its state in the pooled SearchContext of the thread,
+ * sized by the number of edges, so it allocates nothing per query and its
+ * memory does not grow with the number of queries.
+ */
+package roadgraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+
+public class EdgeBasedRouter {
+	private final CompactGraph graph;
+	private final TurnCosts turns;
+
+	/**
+	 * Creates a router
+	 * @param turns the turn costs, which belong to the graph that is searched
+	 */
+	public EdgeBasedRouter(TurnCosts turns) {
+		this.graph = turns.getGraph();
+		this.turns = turns;
+	}
+
+	public CompactGraph getGraph() {
+		return graph;
+	}
+
+	public TurnCosts getTurnCosts() {
+		return turns;
+	}
+
+	/** Find the shortest path from start to goal with the turn costs
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or null if there is none
+	 */
+	public List<GeographicPoint> shortestPath(GeographicPoint start, GeographicPoint goal) {
+		return shortestPath(start, goal, null);
+	}
+
+	/** Find the shortest path from start to goal with the turn costs
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or null if there is none
+	 */
+	public List<GeographicPoint> shortestPath(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		int source = graph.nearestVertex(start);
+		int target = graph.nearestVertex(goal);
+		if (source < 0 || target < 0) {
+			return null;
+		}
+		int[] path = shortestPath(source, target, nodeSearched);
+		if (path == null) {
+			return null;
+		}
+		List<GeographicPoint> list = new ArrayList<GeographicPoint>(path.length);
+		for (int v : path) {
+			list.add(graph.getLocation(v));
+		}
+		return list;
+	}
+
+	/**
+	 * returns the shortest path between two vertices as vertex ids, a
+	 * vertex can appear more than once
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @param nodeSearched A hook for visualization, may be null
+	 * @return the ids from source to target, or null if there is no path
+	 */
+	public int[] shortestPath(int source, int target, Consumer<GeographicPoint> nodeSearched) {
+		if (source == target) {
+			return new int[] { source };
+		}
+		SearchContext context = SearchContext.acquire(graph.getNumEdges(), graph.getQueueType());
+		int last = search(source, target, nodeSearched, context);
+		if (last < 0) {
+			return null;
+		}
+		int count = 1;
+		for (int e = last; e != -1; e = context.getParent(e)) {
+			count++;
+		}
+		int[] path = new int[count];
+		for (int e = last; e != -1; e = context.getParent(e)) {
+			path[--count] = graph.getEdgeTarget(e);
+		}
+		path[0] = source;
+		return path;
+	}
+
+	/**
+	 * returns the cost of the shortest path between two vertices, with
+	 * the turns it takes
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @return the cost in the units of the metric, or Double.MAX_VALUE if
+	 *   there is no path
+	 */
+	public double distance(int source, int target) {
+		if (source == target) {
+			return 0;
+		}
+		SearchContext context = SearchContext.acquire(graph.getNumEdges(), graph.getQueueType());
+		int last = search(source, target, null, context);
+		return last < 0 ? Double.MAX_VALUE : context.getDistance(last);
+	}
+
+	// Dijkstra over the edges from the edges leaving source until an edge
+	// into target is settled. Returns that edge, or -1 if there is none.
+	private int search(int source, int target, Consumer<GeographicPoint> nodeSearched,
+			SearchContext context) {
+		if (!graph.getComponents().canReach(source, target)) {
+			return -1;
+		}
+		double[] costs = graph.weightArray();
+		for (int e = graph.getFirstEdge(source); e < graph.getFirstEdge(source + 1); e++) {
+			if (costs[e] < context.getDistance(e)) {
+				context.update(e, costs[e], -1);
+				context.push(e, costs[e]);
+			}
+		}
+
+		while (!context.isQueueEmpty()) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			int v = graph.getEdgeTarget(curr);
+			if (nodeSearched != null) {
+				nodeSearched.accept(graph.getLocation(v));
+			}
+			if (v == target) {
+				return curr;
+			}
+
+			double currDistance = context.getDistance(curr);
+			for (int e = graph.getFirstEdge(v); e < graph.getFirstEdge(v + 1); e++) {
+				double turn = turns.getCost(curr, e);
+				if (turn == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				double disAndCost = currDistance + turn + costs[e];
+				if (disAndCost < context.getDistance(e)) {
+					context.update(e, disAndCost, curr);
+					context.push(e, disAndCost);
+				}
+			}
+		}
+		return -1;
+	}
+
+	// Bans some random turns and sets a U-turn penalty, and writes them as
+	// a turn file.
+	private static void writeSample(CompactGraph graph, File file, int bans, double uTurnPenalty)
+			throws IOException {
+		Random random = new Random(42);
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("# from via to cost");
+			out.println("uturn " + uTurnPenalty);
+			for (int i = 0; i < bans; i++) {
+				int in = random.nextInt(graph.getNumEdges());
+				int via = graph.getEdgeTarget(in);
+				if (graph.getOutDegree(via) < 2) {
+					continue;
+				}
+				int next = graph.getFirstEdge(via) + random.nextInt(graph.getOutDegree(via));
+				GeographicPoint from = graph.getLocation(graph.getEdgeSource(in));
+				GeographicPoint to = graph.getLocation(graph.getEdgeTarget(next));
+				out.println(from.getX() + " " + from.getY() + " " + graph.getLocation(via).getX() + " "
+						+ graph.getLocation(via).getY() + " " + to.getX() + " " + to.getY() + " banned");
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		CompactGraph graph = MapSnapshot.loadOrBuild(file);
+		int n = graph.getNumVertices();
+		TurnCosts turns;
+		if (TurnCosts.turnFile(file).exists()) {
+			turns = TurnCosts.loadFor(graph, file);
+		} else {
+			// no turn file for this map, so one is made up
+			File sample = File.createTempFile("sample", ".turns");
+			sample.deleteOnExit();
+			writeSample(graph, sample, graph.getNumEdges() / 10, 0.2);
+			turns = TurnCosts.load(graph, sample);
+		}
+		System.out.printf("%s: %d vertices, %d edges, %d turns with a cost, U-turn penalty %s, %d bytes%n",
+				file, n, graph.getNumEdges(), turns.size(), turns.getUTurnPenalty(),
+				turns.getMemoryFootprint());
+
+		int queries = 2000;
+		Random random = new Random(7);
+		int[] sources = new int[queries];
+		int[] targets = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			sources[i] = random.nextInt(n);
+			targets[i] = random.nextInt(n);
+		}
+
+		EdgeBasedRouter free = new EdgeBasedRouter(new TurnCosts(graph));
+		EdgeBasedRouter router = new EdgeBasedRouter(turns);
+		long[] times = new long[3];
+		int differ = 0; // without turn costs the edge based search must agree
+		int longer = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			times[0] = 0;
+			times[1] = 0;
+			times[2] = 0;
+			for (int i = 0; i < queries; i++) {
+				long begin = System.nanoTime();
+				SearchContext context = SearchContext.acquire(n, graph.getQueueType());
+				boolean found = graph.route(sources[i], targets[i], null, false, context);
+				double nodeBased = sources[i] == targets[i] ? 0
+						: found ? context.getDistance(targets[i]) : Double.MAX_VALUE;
+				times[0] += System.nanoTime() - begin;
+				begin = System.nanoTime();
+				double edgeBased = free.distance(sources[i], targets[i]);
+				times[1] += System.nanoTime() - begin;
+				begin = System.nanoTime();
+				double withTurns = router.distance(sources[i], targets[i]);
+				times[2] += System.nanoTime() - begin;
+				if (pass == 1) {
+					differ += edgeBased != nodeBased ? 1 : 0;
+					longer += withTurns > nodeBased ? 1 : 0;
+				}
+			}
+		}
+		System.out.printf("  node based %.1f us/query, edge based %.1f us/query, with turns"
+				+ " %.1f us/query%n", times[0] / 1000.0 / queries, times[1] / 1000.0 / queries,
+				times[2] / 1000.0 / queries);
+		System.out.printf("  %d costs differ without turns, %d routes longer with turns%n", differ, longer);
+	}
+}
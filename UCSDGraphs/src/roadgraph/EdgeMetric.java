@@ -0,0 +1,62 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The cost of driving along an edge, which is what dijkstra and
+ * aStarSearch minimise. A metric sees the length and the class of the
+ * edge, so a custom metric can be written as a lambda, for example
+ * (length, roadClass) -> roadClass == RoadClass.MOTORWAY ? 2 * length : length
+ *
+ * CompactGraph evaluates a metric once per edge when it is selected and
+ * keeps the costs in an array, so the metric is never called by a search.
+ */
+package roadgraph;
+
+@FunctionalInterface
+public interface EdgeMetric {
+	/** the length of the edge in km, the default metric */
+	EdgeMetric DISTANCE = new EdgeMetric() {
+		@Override
+		public double cost(double length, RoadClass roadClass) {
+			return length;
+		}
+
+		@Override
+		public double getMinCostPerKm() {
+			return 1;
+		}
+
+		@Override
+		public String toString() {
+			return "distance";
+		}
+	};
+
+	/**
+	 * returns the cost of an edge, which must not be negative
+	 * @param length the length of the edge in km
+	 * @param roadClass the class of the road the edge is part of
+	 * @return the cost of driving along the edge
+	 */
+	double cost(double length, RoadClass roadClass);
+
+	/**
+	 * returns the smallest cost of one km on any road. A* multiplies the
+	 * straight line distance to the goal by it, which never overestimates
+	 * the cost of the rest of the path since no road is shorter than the
+	 * straight line. The default of 0 is always safe and makes A* behave
+	 * like Dijkstra's algorithm.
+	 * @return a lower bound of cost(length, c) / length over all classes
+	 */
+	default double getMinCostPerKm() {
+		return 0;
+	}
+
+	/**
+	 * returns the travel time metric with the default speed of every class,
+	 * the same instance on every call
+	 * @return a metric in seconds
+	 */
+	static EdgeMetric travelTime() {
+		return TravelTimeMetric.DEFAULT;
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A location on an edge of a CompactGraph, found by snapping a location to
+ * the closest road with a SegmentIndex. Routes can start and end at such a
+ * position, in the middle of a block.
+ */
+package roadgraph;
+
+import geography.GeographicPoint;
+
+public class EdgePosition {
+	private final int edge;
+	private final double fraction;
+	private final int reverseEdge;
+	private final GeographicPoint location;
+	private final double distance;
+
+	/**
+	 * Creates a position on an edge
+	 * @param edge id of the edge
+	 * @param fraction how far along the edge the position is, 0 at its
+	 *   start and 1 at its end
+	 * @param reverseEdge id of the edge along the same road in the other
+	 *   direction, or -1 if the road is one way
+	 * @param location the point on the road
+	 * @param distance distance in km from the snapped location to the road
+	 */
+	EdgePosition(int edge, double fraction, int reverseEdge, GeographicPoint location,
+			double distance) {
+		this.edge = edge;
+		this.fraction = fraction;
+		this.reverseEdge = reverseEdge;
+		this.location = location;
+		this.distance = distance;
+	}
+
+	public int getEdge() {
+		return edge;
+	}
+
+	/**
+	 * returns how far along the edge the position is
+	 * @return 0 at the start of the edge, 1 at its end
+	 */
+	public double getFraction() {
+		return fraction;
+	}
+
+	/**
+	 * returns the edge along the same road in the other direction, on
+	 * which the position is at 1 - getFraction()
+	 * @return id of the edge, or -1 if the road is one way
+	 */
+	public int getReverseEdge() {
+		return reverseEdge;
+	}
+
+	public GeographicPoint getLocation() {
+		return location;
+	}
+
+	/**
+	 * returns how far the snapped location was from the road
+	 * @return the distance in km
+	 */
+	public double getDistance() {
+		return distance;
+	}
+
+	@Override
+	public String toString() {
+		return "edge " + edge + " at " + fraction + " (" + location + ")";
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Renumbers the vertices of a CompactGraph so that vertices which are
+ * searched one after the other are also next to each other in memory.
+ * The ids of a graph built from a MapGraph follow the order of a hash map,
+ * which scatters neighboring intersections over the arrays, so almost
+ * every edge a search relaxes touches a new cache line.
+ *
+ * Three orders are offered:
+ *   HILBERT sorts the vertices along a Hilbert curve through their
+ *     coordinates, so vertices close on the map get close ids
+ *   BFS numbers the vertices in the order a breadth first search over the
+ *     roads reaches them
+ *   REVERSE_CUTHILL_MCKEE is a breadth first search from a vertex at the
+ *     edge of the map that visits neighbors of low degree first, numbered
+ *     backwards, which keeps the ids of every edge's ends close
+ * The orders are applied with CompactGraph.permute.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+
+public class GraphReordering {
+	// bits per coordinate of the Hilbert curve
+	private static final int HILBERT_ORDER = 16;
+
+	public enum Ordering {
+		HILBERT, BFS, REVERSE_CUTHILL_MCKEE
+	}
+
+	private GraphReordering() {
+	}
+
+	/**
+	 * returns a copy of a graph with its vertices in the given order
+	 * @param graph the graph to renumber
+	 * @param ordering the order of the new ids
+	 * @return the renumbered graph
+	 */
+	public static CompactGraph reorder(CompactGraph graph, Ordering ordering) {
+		return graph.permute(newIds(graph, ordering));
+	}
+
+	/**
+	 * computes the new id of every vertex
+	 * @param graph the graph to renumber
+	 * @param ordering the order of the new ids
+	 * @return the new id of every vertex, a permutation of the ids
+	 */
+	public static int[] newIds(CompactGraph graph, Ordering ordering) {
+		switch (ordering) {
+		case HILBERT:
+			return hilbert(graph);
+		case BFS:
+			return breadthFirst(graph, false);
+		case REVERSE_CUTHILL_MCKEE:
+			return breadthFirst(graph, true);
+		default:
+			throw new IllegalArgumentException("Unknown ordering: " + ordering);
+		}
+	}
+
+	// Sorts the vertices by their position on a Hilbert curve over the
+	// bounding box of the graph.
+	private static int[] hilbert(CompactGraph graph) {
+		int n = graph.getNumVertices();
+		double minLat = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE;
+		double maxLon = -Double.MAX_VALUE;
+		for (int v = 0; v < n; v++) {
+			minLat = Math.min(minLat, graph.getLatitude(v));
+			maxLat = Math.max(maxLat, graph.getLatitude(v));
+			minLon = Math.min(minLon, graph.getLongitude(v));
+			maxLon = Math.max(maxLon, graph.getLongitude(v));
+		}
+		int cells = (1 << HILBERT_ORDER) - 1;
+		double latScale = maxLat > minLat ? cells / (maxLat - minLat) : 0;
+		double lonScale = maxLon > minLon ? cells / (maxLon - minLon) : 0;
+
+		// the curve index in the high bits and the vertex in the low bits,
+		// so sorting the keys sorts the vertices
+		long[] keys = new long[n];
+		final double lat0 = minLat;
+		final double lon0 = minLon;
+		IntStream.range(0, n).parallel().forEach(v -> {
+			int x = (int) ((graph.getLongitude(v) - lon0) * lonScale);
+			int y = (int) ((graph.getLatitude(v) - lat0) * latScale);
+			keys[v] = hilbertIndex(x, y) << 31 | v;
+		});
+		Arrays.parallelSort(keys);
+		int[] newIds = new int[n];
+		for (int i = 0; i < n; i++) {
+			newIds[(int) (keys[i] & Integer.MAX_VALUE)] = i;
+		}
+		return newIds;
+	}
+
+	// The distance along the Hilbert curve of the cell x, y.
+	static long hilbertIndex(int x, int y) {
+		long d = 0;
+		for (int s = 1 << (HILBERT_ORDER - 1); s > 0; s >>= 1) {
+			int rx = (x & s) != 0 ? 1 : 0;
+			int ry = (y & s) != 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// turn the quadrant so the curve inside it runs the same way
+			if (ry == 0) {
+				if (rx == 1) {
+					x = ~x;
+					y = ~y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	// Numbers the vertices in breadth first order over the roads in both
+	// directions, one component after the other. For Cuthill-McKee every
+	// component starts at a vertex far from the others, the neighbors are
+	// visited by increasing degree and the order is reversed at the end.
+	private static int[] breadthFirst(CompactGraph graph, boolean isCuthillMcKee) {
+		int n = graph.getNumVertices();
+		int[] order = new int[n];
+		boolean[] numbered = new boolean[n];
+		// for finding the start of a component
+		int[] level = new int[n];
+		int[] queue = new int[n];
+		int[] neighbors = new int[16];
+		int count = 0;
+		for (int v = 0; v < n; v++) {
+			if (numbered[v]) {
+				continue;
+			}
+			int start = isCuthillMcKee ? peripheral(graph, v, level, queue) : v;
+			int head = count;
+			order[count++] = start;
+			numbered[start] = true;
+			while (head < count) {
+				int curr = order[head++];
+				int degree = degree(graph, curr);
+				if (neighbors.length < degree) {
+					neighbors = new int[degree];
+				}
+				int found = 0;
+				for (int i = 0; i < degree; i++) {
+					int next = neighbor(graph, curr, i);
+					if (!numbered[next]) {
+						numbered[next] = true;
+						neighbors[found++] = next;
+					}
+				}
+				if (isCuthillMcKee) {
+					sortByDegree(graph, neighbors, found);
+				}
+				System.arraycopy(neighbors, 0, order, count, found);
+				count += found;
+			}
+		}
+
+		int[] newIds = new int[n];
+		for (int i = 0; i < n; i++) {
+			newIds[order[i]] = isCuthillMcKee ? n - 1 - i : i;
+		}
+		return newIds;
+	}
+
+	// The number of roads into and out of v.
+	private static int degree(CompactGraph graph, int v) {
+		return graph.getOutDegree(v) + graph.getInDegree(v);
+	}
+
+	// The i-th vertex joined to v, the targets of its edges first and then
+	// the sources of its incoming edges.
+	private static int neighbor(CompactGraph graph, int v, int i) {
+		int out = graph.getOutDegree(v);
+		return i < out ? graph.getEdgeTarget(graph.getFirstEdge(v) + i)
+				: graph.getEdgeSource(graph.getInEdge(graph.getFirstInEdge(v) + i - out));
+	}
+
+	// Insertion sort, the lists are as short as the degree of a vertex.
+	private static void sortByDegree(CompactGraph graph, int[] vertices, int size) {
+		for (int i = 1; i < size; i++) {
+			int v = vertices[i];
+			int d = degree(graph, v);
+			int j = i - 1;
+			while (j >= 0 && degree(graph, vertices[j]) > d) {
+				vertices[j + 1] = vertices[j];
+				j--;
+			}
+			vertices[j + 1] = v;
+		}
+	}
+
+	// A vertex of the component of v that is far from the rest of it: the
+	// vertex of lowest degree on the last level of a breadth first search,
+	// searched from again while that makes the search deeper.
+	private static int peripheral(CompactGraph graph, int v, int[] level, int[] queue) {
+		int depth = -1;
+		int start = v;
+		for (int round = 0; round < 5; round++) {
+			// level holds the level plus one, 0 for not reached
+			int count = 0;
+			queue[count++] = start;
+			level[start] = 1;
+			for (int head = 0; head < count; head++) {
+				int curr = queue[head];
+				int degree = degree(graph, curr);
+				for (int i = 0; i < degree; i++) {
+					int next = neighbor(graph, curr, i);
+					if (level[next] == 0) {
+						level[next] = level[curr] + 1;
+						queue[count++] = next;
+					}
+				}
+			}
+			int last = level[queue[count - 1]];
+			int best = queue[count - 1];
+			for (int i = count - 1; i >= 0 && level[queue[i]] == last; i--) {
+				if (degree(graph, queue[i]) < degree(graph, best)) {
+					best = queue[i];
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				level[queue[i]] = 0;
+			}
+			if (last <= depth) {
+				break;
+			}
+			depth = last;
+			start = best;
+		}
+		return start;
+	}
+
+	/**
+	 * returns the average difference between the ids of the two ends of
+	 * an edge, lower means neighbors are stored closer together
+	 * @param graph the graph to measure
+	 * @return the average id gap of the edges
+	 */
+	public static double averageEdgeGap(CompactGraph graph) {
+		long sum = 0;
+		for (int e = 0; e < graph.getNumEdges(); e++) {
+			sum += Math.abs(graph.getEdgeTarget(e) - graph.getEdgeSource(e));
+		}
+		return graph.getNumEdges() == 0 ? 0 : (double) sum / graph.getNumEdges();
+	}
+
+	// Times full Dijkstra trees and BFS routes on a graph in every order.
+	private static void compare(String name, CompactGraph graph, int trees, int routes) {
+		System.out.println(name + ": " + graph.getNumVertices() + " vertices, "
+				+ graph.getNumEdges() + " edges");
+		Random random = new Random(42);
+		GeographicPoint[] sources = new GeographicPoint[trees];
+		for (int i = 0; i < trees; i++) {
+			sources[i] = graph.getLocation(random.nextInt(graph.getNumVertices()));
+		}
+		GeographicPoint[] from = new GeographicPoint[routes];
+		GeographicPoint[] to = new GeographicPoint[routes];
+		for (int i = 0; i < routes; i++) {
+			from[i] = graph.getLocation(random.nextInt(graph.getNumVertices()));
+			to[i] = graph.getLocation(random.nextInt(graph.getNumVertices()));
+		}
+
+		// as loaded, then shuffled like ids handed out by a hash map
+		int[] shuffle = new int[graph.getNumVertices()];
+		for (int i = 0; i < shuffle.length; i++) {
+			int j = random.nextInt(i + 1);
+			shuffle[i] = shuffle[j];
+			shuffle[j] = i;
+		}
+		String[] names = { "loaded", "random", "hilbert", "bfs", "rcm" };
+		CompactGraph[] graphs = { graph, graph.permute(shuffle), reorder(graph, Ordering.HILBERT),
+				reorder(graph, Ordering.BFS), reorder(graph, Ordering.REVERSE_CUTHILL_MCKEE) };
+		for (int i = 0; i < graphs.length; i++) {
+			CompactGraph g = graphs[i];
+			int[] sourceIds = new int[trees];
+			for (int j = 0; j < trees; j++) {
+				sourceIds[j] = g.getVertexId(sources[j]);
+			}
+			long treeTime = 0;
+			long routeTime = 0;
+			// the second pass is timed, after the JIT has compiled the searches
+			for (int pass = 0; pass < 2; pass++) {
+				long begin = System.nanoTime();
+				for (int source : sourceIds) {
+					g.distancesFrom(source);
+				}
+				treeTime = System.nanoTime() - begin;
+				begin = System.nanoTime();
+				for (int j = 0; j < routes; j++) {
+					g.bfs(from[j], to[j]);
+				}
+				routeTime = System.nanoTime() - begin;
+			}
+			System.out.printf("  %-7s edge gap %8.1f, dijkstra tree %8.1f us, bfs route %6.1f us%n",
+					names[i], averageEdgeGap(g), treeTime / 1000.0 / trees, routeTime / 1000.0 / routes);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String[] files = args.length > 0 ? args
+				: new String[] { "data/maps/hollywood_large.map", "data/maps/new_york.map" };
+		for (String file : files) {
+			compare(file, MapSnapshot.loadOrBuild(file), 2000, 20000);
+		}
+		// the maps fit in the cache whatever the order, a larger graph does not
+		compare("grid 600x600", DeltaStepping.grid(600, 600, 42), 20, 200);
+	}
+}
@@ -0,0 +1,529 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A hub labeling index for distance queries that must answer in
+ * microseconds. Every vertex v gets a forward label, a list of hubs h with
+ * the distance from v to h, and a backward label with the distances from
+ * hubs to v, such that every shortest path s -> t passes through a hub of
+ * both the forward label of s and the backward label of t. A query is then
+ * one merge of two short sorted lists, without any search.
+ *
+ * The labels follow the contraction order of a ContractionHierarchy: the
+ * forward label of v is the upward search space of v, built from the
+ * labels of its upward neighbors, which are more important and so built
+ * before. Vertices whose neighbors are all built are labeled in parallel.
+ * Hubs that a label reaches on a path longer than the one the labels
+ * built so far already give are pruned.
+ *
+ * The labels are kept in flat arrays, sorted by hub, and never change
+ * after they are built, so any number of threads can query them. They can
+ * be saved next to the .map file and are read back from a memory mapped
+ * buffer.
+ */
+package roadgraph;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+
+public class HubLabels {
+	private static final int MAGIC = 0x4855424C; // "HUBL"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4 * 3;
+
+	private final int numVertices;
+	private final long fingerprint; // of the graph the labels belong to
+
+	// the forward label of v holds the hubs forwardHubs[i] at distance
+	// forwardDistances[i] for forwardOffsets[v] <= i < forwardOffsets[v + 1],
+	// by increasing hub id, and the backward labels likewise
+	private final int[] forwardOffsets;
+	private final int[] forwardHubs;
+	private final double[] forwardDistances;
+	private final int[] backwardOffsets;
+	private final int[] backwardHubs;
+	private final double[] backwardDistances;
+
+	private long buildMillis;
+
+	private HubLabels(int numVertices, long fingerprint,
+			int[] forwardOffsets, int[] forwardHubs, double[] forwardDistances,
+			int[] backwardOffsets, int[] backwardHubs, double[] backwardDistances) {
+		this.numVertices = numVertices;
+		this.fingerprint = fingerprint;
+		this.forwardOffsets = forwardOffsets;
+		this.forwardHubs = forwardHubs;
+		this.forwardDistances = forwardDistances;
+		this.backwardOffsets = backwardOffsets;
+		this.backwardHubs = backwardHubs;
+		this.backwardDistances = backwardDistances;
+	}
+
+	/**
+	 * Builds the labels of a graph from a new ContractionHierarchy
+	 * @param graph the graph to index
+	 * @return the labels, for distances in km
+	 */
+	public static HubLabels compute(CompactGraph graph) {
+		long begin = System.currentTimeMillis();
+		HubLabels labels = compute(new ContractionHierarchy(graph));
+		labels.buildMillis = System.currentTimeMillis() - begin;
+		return labels;
+	}
+
+	/**
+	 * Builds the labels from the order and the shortcuts of a hierarchy
+	 * @param ch the contraction hierarchy of the graph to index
+	 * @return the labels, for distances in km
+	 */
+	public static HubLabels compute(ContractionHierarchy ch) {
+		long begin = System.currentTimeMillis();
+		CompactGraph graph = ch.getGraph();
+		int n = graph.getNumVertices();
+
+		// a vertex can be labeled once every more important neighbor is,
+		// so the vertices are labeled in levels from the top
+		int[] order = new int[n];
+		for (int v = 0; v < n; v++) {
+			order[n - 1 - ch.getRank(v)] = v;
+		}
+		int[] level = new int[n];
+		int levels = 0;
+		for (int v : order) {
+			int top = -1;
+			for (int e = ch.getUpFirstEdge(v); e < ch.getUpEndEdge(v); e++) {
+				top = Math.max(top, level[ch.getUpTarget(e)]);
+			}
+			for (int e = ch.getDownFirstEdge(v); e < ch.getDownEndEdge(v); e++) {
+				top = Math.max(top, level[ch.getDownSource(e)]);
+			}
+			level[v] = top + 1;
+			levels = Math.max(levels, top + 2);
+		}
+		int[] levelOffsets = new int[levels + 1];
+		for (int v = 0; v < n; v++) {
+			levelOffsets[level[v] + 1]++;
+		}
+		for (int i = 0; i < levels; i++) {
+			levelOffsets[i + 1] += levelOffsets[i];
+		}
+		int[] byLevel = new int[n];
+		int[] next = Arrays.copyOf(levelOffsets, levels);
+		for (int v : order) {
+			byLevel[next[level[v]]++] = v;
+		}
+
+		Label[] forward = new Label[n];
+		Label[] backward = new Label[n];
+		ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> new Scratch(n));
+		for (int i = 0; i < levels; i++) {
+			IntStream.range(levelOffsets[i], levelOffsets[i + 1]).parallel().forEach(j -> {
+				int v = byLevel[j];
+				Scratch s = scratch.get();
+				forward[v] = s.label(ch, v, true, forward, backward);
+				backward[v] = s.label(ch, v, false, backward, forward);
+			});
+		}
+
+		HubLabels labels = flatten(graph.fingerprint(), forward, backward);
+		labels.buildMillis = System.currentTimeMillis() - begin;
+		return labels;
+	}
+
+	// The label of one vertex while the labels are built.
+	private static class Label {
+		final int[] hubs;
+		final double[] distances;
+
+		Label(int[] hubs, double[] distances) {
+			this.hubs = hubs;
+			this.distances = distances;
+		}
+	}
+
+	// Per-thread arrays for building labels: the best distance to every hub
+	// seen so far, NaN for hubs not seen.
+	private static class Scratch {
+		final double[] best;
+		final int[] seen;
+
+		Scratch(int n) {
+			best = new double[n];
+			Arrays.fill(best, Double.NaN);
+			seen = new int[n];
+		}
+
+		// The forward label of v from the labels of the targets of its up
+		// edges, or the backward label from the sources of its down edges.
+		// other holds the labels of the opposite direction, which are used
+		// to prune hubs that have a shorter path.
+		Label label(ContractionHierarchy ch, int v, boolean isForward, Label[] same, Label[] other) {
+			int count = 0;
+			best[v] = 0;
+			seen[count++] = v;
+			int end = isForward ? ch.getUpEndEdge(v) : ch.getDownEndEdge(v);
+			for (int e = isForward ? ch.getUpFirstEdge(v) : ch.getDownFirstEdge(v); e < end; e++) {
+				Label neighbor = same[isForward ? ch.getUpTarget(e) : ch.getDownSource(e)];
+				double cost = isForward ? ch.getUpWeight(e) : ch.getDownWeight(e);
+				for (int i = 0; i < neighbor.hubs.length; i++) {
+					int hub = neighbor.hubs[i];
+					double distance = cost + neighbor.distances[i];
+					if (Double.isNaN(best[hub])) {
+						best[hub] = distance;
+						seen[count++] = hub;
+					} else if (distance < best[hub]) {
+						best[hub] = distance;
+					}
+				}
+			}
+
+			Arrays.sort(seen, 0, count);
+			int[] hubs = new int[count];
+			double[] distances = new double[count];
+			for (int i = 0; i < count; i++) {
+				hubs[i] = seen[i];
+				distances[i] = best[seen[i]];
+				best[seen[i]] = Double.NaN;
+			}
+
+			// a hub is only needed if no other hub gives a shorter path to it
+			int kept = 0;
+			int[] keptHubs = new int[count];
+			double[] keptDistances = new double[count];
+			for (int i = 0; i < count; i++) {
+				int hub = hubs[i];
+				if (hub == v || merge(hubs, distances, 0, count, other[hub].hubs,
+						other[hub].distances, 0, other[hub].hubs.length) >= distances[i]) {
+					keptHubs[kept] = hub;
+					keptDistances[kept] = distances[i];
+					kept++;
+				}
+			}
+			return new Label(Arrays.copyOf(keptHubs, kept), Arrays.copyOf(keptDistances, kept));
+		}
+	}
+
+	// Copies the labels into the flat arrays.
+	private static HubLabels flatten(long fingerprint, Label[] forward, Label[] backward) {
+		int numVertices = forward.length;
+		int[] forwardOffsets = new int[numVertices + 1];
+		int[] backwardOffsets = new int[numVertices + 1];
+		int[] fHubs = new int[count(forward, forwardOffsets)];
+		double[] fDistances = new double[fHubs.length];
+		int[] bHubs = new int[count(backward, backwardOffsets)];
+		double[] bDistances = new double[bHubs.length];
+		for (int v = 0; v < numVertices; v++) {
+			System.arraycopy(forward[v].hubs, 0, fHubs, forwardOffsets[v], forward[v].hubs.length);
+			System.arraycopy(forward[v].distances, 0, fDistances, forwardOffsets[v],
+					forward[v].hubs.length);
+			System.arraycopy(backward[v].hubs, 0, bHubs, backwardOffsets[v], backward[v].hubs.length);
+			System.arraycopy(backward[v].distances, 0, bDistances, backwardOffsets[v],
+					backward[v].hubs.length);
+		}
+		return new HubLabels(numVertices, fingerprint, forwardOffsets, fHubs, fDistances,
+				backwardOffsets, bHubs, bDistances);
+	}
+
+	// Fills the offsets of the labels and returns the number of entries.
+	private static int count(Label[] labels, int[] offsets) {
+		for (int v = 0; v < labels.length; v++) {
+			offsets[v + 1] = offsets[v] + labels[v].hubs.length;
+		}
+		return offsets[labels.length];
+	}
+
+	// The shortest distance through a hub common to both sorted labels, or
+	// Double.MAX_VALUE if they have none.
+	private static double merge(int[] hubs, double[] distances, int i, int end,
+			int[] otherHubs, double[] otherDistances, int j, int otherEnd) {
+		double best = Double.MAX_VALUE;
+		while (i < end && j < otherEnd) {
+			int hub = hubs[i];
+			int otherHub = otherHubs[j];
+			if (hub < otherHub) {
+				i++;
+			} else if (hub > otherHub) {
+				j++;
+			} else {
+				best = Math.min(best, distances[i++] + otherDistances[j++]);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * returns the length of the shortest path between two vertices
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @return the distance in km or Double.MAX_VALUE if there is no path
+	 */
+	public double distance(int source, int target) {
+		return merge(forwardHubs, forwardDistances, forwardOffsets[source], forwardOffsets[source + 1],
+				backwardHubs, backwardDistances, backwardOffsets[target], backwardOffsets[target + 1]);
+	}
+
+	/**
+	 * returns the length of the shortest path between the intersections
+	 * closest to two locations
+	 * @param graph the graph the labels were built for
+	 * @param start the starting location
+	 * @param goal the goal location
+	 * @return the distance in km or Double.MAX_VALUE if there is no path
+	 */
+	public double distance(CompactGraph graph, GeographicPoint start, GeographicPoint goal) {
+		int source = graph.nearestVertex(start);
+		int target = graph.nearestVertex(goal);
+		if (source < 0 || target < 0) {
+			return Double.MAX_VALUE;
+		}
+		return distance(source, target);
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	/**
+	 * returns the time it took to build the labels, including the
+	 * contraction hierarchy when it was built for them
+	 * @return the time in ms, 0 for loaded labels
+	 */
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+
+	/**
+	 * returns the number of hubs in the forward and backward labels of
+	 * every vertex together
+	 * @return the number of label entries
+	 */
+	public long getNumEntries() {
+		return forwardHubs.length + (long) backwardHubs.length;
+	}
+
+	/**
+	 * returns the size of the largest forward or backward label
+	 * @return the most hubs of a label
+	 */
+	public int getMaxLabelSize() {
+		int max = 0;
+		for (int v = 0; v < numVertices; v++) {
+			max = Math.max(max, forwardOffsets[v + 1] - forwardOffsets[v]);
+			max = Math.max(max, backwardOffsets[v + 1] - backwardOffsets[v]);
+		}
+		return max;
+	}
+
+	/**
+	 * approximate number of bytes used by the label arrays
+	 * @return the size of the labels in bytes
+	 */
+	public long getMemoryFootprint() {
+		return 4L * (forwardOffsets.length + backwardOffsets.length) + 12L * getNumEntries();
+	}
+
+	/**
+	 * Loads the labels saved next to the map file, or computes and saves
+	 * them if there are none or they belong to a different version of the map
+	 * @param graph the graph loaded from mapFile
+	 * @param mapFile the .map file the graph was loaded from
+	 * @return the labels
+	 */
+	public static HubLabels loadOrCompute(CompactGraph graph, String mapFile) {
+		File file = new File(mapFile + ".hublabels");
+		if (file.exists()) {
+			try {
+				HubLabels saved = load(file);
+				if (saved.fingerprint == graph.fingerprint()) {
+					return saved;
+				}
+			} catch (IOException e) {
+				System.err.println("Problem loading hub labels file: " + file);
+			}
+		}
+
+		HubLabels computed = compute(graph);
+		try {
+			computed.save(file);
+		} catch (IOException e) {
+			System.err.println("Problem saving hub labels file: " + file);
+			e.printStackTrace();
+		}
+		return computed;
+	}
+
+	/**
+	 * Writes the labels to a file as little endian arrays
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		long size = HEADER_BYTES + 4L * (forwardOffsets.length + backwardOffsets.length)
+				+ 12L * getNumEntries();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Labels too large for a hub labels file");
+		}
+
+		// written to a temporary file first so a reader never sees half the labels
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp);
+				FileChannel channel = out.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(fingerprint);
+			buffer.putInt(numVertices).putInt(forwardHubs.length).putInt(backwardHubs.length);
+			buffer.asIntBuffer().put(forwardOffsets).put(forwardHubs).put(backwardOffsets).put(backwardHubs);
+			buffer.position(buffer.position() + 4 * (forwardOffsets.length + forwardHubs.length
+					+ backwardOffsets.length + backwardHubs.length));
+			buffer.asDoubleBuffer().put(forwardDistances).put(backwardDistances);
+			buffer.position(buffer.position() + 8 * (forwardDistances.length + backwardDistances.length));
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			throw new IOException("Cannot replace hub labels file: " + file);
+		}
+	}
+
+	/**
+	 * Reads labels written by save
+	 * @param file the file to read
+	 * @return the labels
+	 * @throws IOException if the file cannot be read or is not a hub labels file
+	 */
+	public static HubLabels load(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r");
+				FileChannel channel = in.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < HEADER_BYTES
+					|| buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a hub labels file: " + file);
+			}
+			long fingerprint = buffer.getLong();
+			int n = buffer.getInt();
+			int forwardEntries = buffer.getInt();
+			int backwardEntries = buffer.getInt();
+			try {
+				int[] forwardOffsets = new int[n + 1];
+				int[] forwardHubs = new int[forwardEntries];
+				int[] backwardOffsets = new int[n + 1];
+				int[] backwardHubs = new int[backwardEntries];
+				buffer.asIntBuffer().get(forwardOffsets).get(forwardHubs).get(backwardOffsets)
+						.get(backwardHubs);
+				buffer.position(buffer.position() + 4 * (2 * (n + 1) + forwardEntries + backwardEntries));
+				double[] forwardDistances = new double[forwardEntries];
+				double[] backwardDistances = new double[backwardEntries];
+				buffer.asDoubleBuffer().get(forwardDistances).get(backwardDistances);
+				return new HubLabels(n, fingerprint, forwardOffsets, forwardHubs, forwardDistances,
+						backwardOffsets, backwardHubs, backwardDistances);
+			} catch (RuntimeException e) {
+				// a truncated file or counts that do not fit the arrays
+				throw new IOException("Corrupt hub labels file: " + file, e);
+			}
+		}
+	}
+
+	// The number of pairs where the labels and Dijkstra disagree, over
+	// every target of the given number of random sources.
+	private static int countWrongDistances(HubLabels labels, CompactGraph graph, int sources,
+			Random random) {
+		int n = graph.getNumVertices();
+		int wrong = 0;
+		for (int i = 0; i < sources; i++) {
+			int source = random.nextInt(n);
+			double[] expected = graph.distancesFrom(source);
+			for (int v = 0; v < n; v++) {
+				double d = labels.distance(source, v);
+				if (expected[v] == Double.MAX_VALUE ? d != Double.MAX_VALUE
+						: Math.abs(d - expected[v]) > 1e-9 * Math.max(1, expected[v])) {
+					wrong++;
+				}
+			}
+		}
+		return wrong;
+	}
+
+	public static void main(String[] args)
+	{
+		// the small graphs full of ties that ContractionHierarchy checks
+		// itself on, since the labels are only as good as its shortcuts
+		Random check = new Random(1);
+		int wrongGraphs = 0;
+		for (int i = 0; i < 300; i++) {
+			int n = 4 + check.nextInt(40);
+			CompactGraph graph = ContractionHierarchy.randomGraph(n, n * (1 + check.nextInt(3)), check);
+			if (countWrongDistances(compute(new ContractionHierarchy(graph)), graph, n, check) > 0) {
+				wrongGraphs++;
+			}
+		}
+		System.out.println("random graphs: " + wrongGraphs + " of 300 with wrong distances");
+
+		String[] files = args;
+		if (files.length == 0) {
+			File[] maps = new File("data/maps").listFiles((dir, name) -> name.endsWith(".map"));
+			Arrays.sort(maps);
+			files = new String[maps.length];
+			for (int i = 0; i < maps.length; i++) {
+				files[i] = maps[i].getPath();
+			}
+		}
+		int queries = 100000;
+
+		for (String file : files) {
+			CompactGraph graph = MapSnapshot.loadOrBuild(file);
+			int n = graph.getNumVertices();
+			ContractionHierarchy ch = new ContractionHierarchy(graph);
+			HubLabels labels = compute(ch);
+			System.out.printf("%s: %d vertices, %.1f hubs/label (max %d), %d KB,"
+					+ " built in %d ms after %d ms of contraction%n", file, n,
+					labels.getNumEntries() / 2.0 / n, labels.getMaxLabelSize(),
+					labels.getMemoryFootprint() / 1024, labels.getBuildMillis(),
+					ch.getPreprocessingMillis());
+
+			// every distance from a few sources against Dijkstra
+			Random random = new Random(42);
+			int wrong = countWrongDistances(labels, graph, 20, random);
+
+			int[] sources = new int[queries];
+			int[] targets = new int[queries];
+			for (int i = 0; i < queries; i++) {
+				sources[i] = random.nextInt(n);
+				targets[i] = random.nextInt(n);
+			}
+			// the second pass is timed, after the JIT has compiled the queries
+			for (int pass = 0; pass < 2; pass++) {
+				int connected = 0;
+				long begin = System.nanoTime();
+				for (int i = 0; i < queries; i++) {
+					if (labels.distance(sources[i], targets[i]) != Double.MAX_VALUE) {
+						connected++;
+					}
+				}
+				long labelTime = System.nanoTime() - begin;
+				begin = System.nanoTime();
+				for (int i = 0; i < queries / 100; i++) {
+					ch.distance(sources[i], targets[i]);
+				}
+				long chTime = (System.nanoTime() - begin) * 100;
+				if (pass == 1) {
+					System.out.printf("  %.3f us/query (%d%% connected), contraction hierarchies"
+							+ " %.1f us/query, %d wrong distances%n", labelTime / 1000.0 / queries,
+							100 * connected / queries, chTime / 1000.0 / queries, wrong);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A 4-ary min heap of int vertex ids with double priorities that supports
+ * decrease-key. Every vertex is in the heap at most once and the heap
+ * lives in primitive arrays, so nothing is allocated or boxed per push.
+ * The wider nodes make the heap half as deep as a binary heap, which is
+ * what Dijkstra's algorithm wants as it does many more decrease-keys than
+ * polls on road networks.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+
+class IndexedMinHeap {
+	private static final int ARITY = 4;
+
+	private int[] heap; // vertex stored at every heap position
+	private double[] keys; // priority stored at every heap position
+	private int[] position; // heap position of every vertex, -1 if absent
+	private int size;
+
+	/**
+	 * Creates an empty heap for vertices 0 .. capacity-1
+	 * @param capacity the number of vertices
+	 */
+	IndexedMinHeap(int capacity) {
+		heap = new int[capacity];
+		keys = new double[capacity];
+		position = new int[capacity];
+		Arrays.fill(position, -1);
+		size = 0;
+	}
+
+	int capacity() {
+		return position.length;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(int v) {
+		return position[v] >= 0;
+	}
+
+	/**
+	 * returns the priority of a vertex that is in the heap
+	 * @param v id of the vertex
+	 * @return its current priority
+	 */
+	double getKey(int v) {
+		return keys[position[v]];
+	}
+
+	/**
+	 * adds v with the given priority, or lowers its priority if it is
+	 * already in the heap with a higher one
+	 * @param v id of the vertex
+	 * @param key the priority of v
+	 */
+	void push(int v, double key) {
+		int i = position[v];
+		if (i < 0) {
+			i = size++;
+			heap[i] = v;
+			keys[i] = key;
+			position[v] = i;
+			siftUp(i);
+		} else if (key < keys[i]) {
+			keys[i] = key;
+			siftUp(i);
+		}
+	}
+
+	/**
+	 * returns the priority of the first vertex without removing it
+	 * @return the smallest priority in the heap
+	 */
+	double peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * removes the vertex with the smallest priority
+	 * @return id of the removed vertex
+	 */
+	int poll() {
+		int top = heap[0];
+		position[top] = -1;
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			keys[0] = keys[size];
+			position[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	/** removes every vertex, in time proportional to the size of the heap */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			position[heap[i]] = -1;
+		}
+		size = 0;
+	}
+
+	private void siftUp(int i) {
+		int v = heap[i];
+		double key = keys[i];
+		while (i > 0) {
+			int parent = (i - 1) / ARITY;
+			if (keys[parent] <= key) {
+				break;
+			}
+			heap[i] = heap[parent];
+			keys[i] = keys[parent];
+			position[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = v;
+		keys[i] = key;
+		position[v] = i;
+	}
+
+	private void siftDown(int i) {
+		int v = heap[i];
+		double key = keys[i];
+		while (true) {
+			int first = i * ARITY + 1;
+			if (first >= size) {
+				break;
+			}
+			int last = Math.min(first + ARITY, size);
+			int best = first;
+			for (int c = first + 1; c < last; c++) {
+				if (keys[c] < keys[best]) {
+					best = c;
+				}
+			}
+			if (keys[best] >= key) {
+				break;
+			}
+			heap[i] = heap[best];
+			keys[i] = keys[best];
+			position[heap[i]] = i;
+			i = best;
+		}
+		heap[i] = v;
+		keys[i] = key;
+		position[v] = i;
+	}
+}
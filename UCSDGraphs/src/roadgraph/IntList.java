@@ -0,0 +1,33 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A growable list of ints, for the searches and indexes that collect
+ * vertex or edge ids without boxing them.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+
+class IntList {
+	private int[] values = new int[16];
+	private int size;
+
+	void add(int value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(int i) {
+		return values[i];
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
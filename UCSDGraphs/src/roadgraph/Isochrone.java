@@ -0,0 +1,307 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Everything reachable from one intersection within a budget, for service
+ * area analysis. The budget is in the units of the metric selected on the
+ * graph: km for EdgeMetric.DISTANCE, seconds for a TravelTimeMetric.
+ *
+ * The search is Dijkstra's algorithm that stops once the next vertex would
+ * be over the budget, on the reusable state of SearchContext, so the only
+ * allocations are the result arrays.
+ *
+ * The boundary is a star shaped hull around the origin: the road geometry
+ * reached within the budget, cut off where the budget runs out in the
+ * middle of an edge, is split into angular sectors around the origin and
+ * the farthest point of every sector becomes a corner of the polygon. It
+ * follows the dents that a convex hull would fill in.
+ */
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import geography.GeographicPoint;
+
+public class Isochrone {
+	private static final int SECTORS = 72;
+
+	private final int origin;
+	private final double budget;
+	private final int[] vertices; // in the order they were reached
+	private final double[] distances;
+	private final List<GeographicPoint> boundary;
+
+	private Isochrone(int origin, double budget, int[] vertices, double[] distances,
+			List<GeographicPoint> boundary) {
+		this.origin = origin;
+		this.budget = budget;
+		this.vertices = vertices;
+		this.distances = distances;
+		this.boundary = boundary;
+	}
+
+	/**
+	 * finds everything reachable from a location within a budget, without
+	 * a boundary
+	 * @param graph the graph to search
+	 * @param origin the start location, snapped to the closest vertex
+	 * @param budget the largest cost to reach a vertex
+	 * @return the reachable vertices
+	 * @throws IllegalArgumentException if the graph is empty
+	 */
+	public static Isochrone compute(CompactGraph graph, GeographicPoint origin, double budget) {
+		return compute(graph, origin, budget, false);
+	}
+
+	/**
+	 * finds everything reachable from a location within a budget
+	 * @param graph the graph to search
+	 * @param origin the start location, snapped to the closest vertex
+	 * @param budget the largest cost to reach a vertex
+	 * @param withBoundary whether to build the boundary polygon
+	 * @return the reachable vertices
+	 * @throws IllegalArgumentException if the graph is empty
+	 */
+	public static Isochrone compute(CompactGraph graph, GeographicPoint origin, double budget,
+			boolean withBoundary) {
+		int source = graph.nearestVertex(origin);
+		if (source < 0) {
+			throw new IllegalArgumentException("No vertex near " + origin);
+		}
+		return compute(graph, source, budget, withBoundary);
+	}
+
+	/**
+	 * finds everything reachable from a vertex within a budget
+	 * @param graph the graph to search
+	 * @param origin id of the start vertex
+	 * @param budget the largest cost to reach a vertex
+	 * @param withBoundary whether to build the boundary polygon
+	 * @return the reachable vertices
+	 */
+	public static Isochrone compute(CompactGraph graph, int origin, double budget,
+			boolean withBoundary) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("Invalid budget: " + budget);
+		}
+		double[] costs = graph.weightArray();
+		SearchContext context = SearchContext.acquire(graph.getNumVertices());
+		IntList reached = new IntList();
+		context.update(origin, 0, -1);
+		context.push(origin, 0);
+
+		while (!context.isQueueEmpty() && context.peekPriority() <= budget) {
+			int curr = context.poll();
+			if (context.isSettled(curr)) {
+				continue;
+			}
+			context.settle(curr);
+			reached.add(curr);
+
+			double currDistance = context.getDistance(curr);
+			int end = graph.getFirstEdge(curr) + graph.getOutDegree(curr);
+			for (int e = graph.getFirstEdge(curr); e < end; e++) {
+				int next = graph.getEdgeTarget(e);
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost <= budget && disAndCost < context.getDistance(next)) {
+					context.update(next, disAndCost, curr);
+					context.push(next, disAndCost);
+				}
+			}
+		}
+
+		int[] vertices = reached.toArray();
+		double[] distances = new double[vertices.length];
+		for (int i = 0; i < vertices.length; i++) {
+			distances[i] = context.getDistance(vertices[i]);
+		}
+		List<GeographicPoint> boundary = null;
+		if (withBoundary) {
+			boundary = new Hull(graph, origin).build(vertices, distances, costs, budget);
+		}
+		return new Isochrone(origin, budget, vertices, distances, boundary);
+	}
+
+	public int getOrigin() {
+		return origin;
+	}
+
+	public double getBudget() {
+		return budget;
+	}
+
+	/**
+	 * returns the number of reachable vertices, the origin included
+	 * @return the number of vertices
+	 */
+	public int size() {
+		return vertices.length;
+	}
+
+	/**
+	 * returns a reachable vertex, in the order the search reached them,
+	 * which is by increasing cost
+	 * @param i position of the vertex, from 0 to size() - 1
+	 * @return id of the vertex
+	 */
+	public int getVertex(int i) {
+		return vertices[i];
+	}
+
+	/**
+	 * returns the cost of reaching a vertex
+	 * @param i position of the vertex, from 0 to size() - 1
+	 * @return the cost from the origin to getVertex(i)
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+	public int[] getVertices() {
+		return vertices.clone();
+	}
+
+	/**
+	 * returns the boundary of the reachable area
+	 * @return the corners of the polygon counterclockwise, or null if the
+	 *   isochrone was computed without a boundary
+	 */
+	public List<GeographicPoint> getBoundary() {
+		return boundary == null ? null : Collections.unmodifiableList(boundary);
+	}
+
+	// The farthest reached point in every sector around the origin, in the
+	// flat projection of VertexIndex.
+	private static class Hull {
+		final CompactGraph graph;
+		final double lonScale;
+		final double originX;
+		final double originY;
+		final double[] farthest = new double[SECTORS];
+		final double[] lats = new double[SECTORS];
+		final double[] lons = new double[SECTORS];
+
+		Hull(CompactGraph graph, int origin) {
+			this.graph = graph;
+			originY = graph.getLatitude(origin);
+			lonScale = Math.cos(Math.toRadians(originY));
+			originX = graph.getLongitude(origin) * lonScale;
+			Arrays.fill(farthest, -1);
+		}
+
+		List<GeographicPoint> build(int[] vertices, double[] distances, double[] costs,
+				double budget) {
+			for (int i = 0; i < vertices.length; i++) {
+				int v = vertices[i];
+				offer(graph.getLatitude(v), graph.getLongitude(v));
+				int end = graph.getFirstEdge(v) + graph.getOutDegree(v);
+				for (int e = graph.getFirstEdge(v); e < end; e++) {
+					double left = budget - distances[i];
+					double reach = costs[e] <= left ? 1 : left / costs[e];
+					offerEdge(e, reach);
+				}
+			}
+
+			List<GeographicPoint> corners = new ArrayList<GeographicPoint>();
+			for (int s = 0; s < SECTORS; s++) {
+				if (farthest[s] >= 0) {
+					corners.add(new GeographicPoint(lats[s], lons[s]));
+				}
+			}
+			return corners;
+		}
+
+		// Offers the points of the polyline of an edge up to a fraction of
+		// its length, and the point at that fraction.
+		void offerEdge(int e, double reach) {
+			int[] offsets = graph.geometryOffsetArray();
+			int from = offsets == null ? 0 : offsets[e];
+			int to = offsets == null ? 0 : offsets[e + 1];
+			int source = graph.getEdgeSource(e);
+			int target = graph.getEdgeTarget(e);
+
+			double total = 0;
+			double lat = graph.getLatitude(source);
+			double lon = graph.getLongitude(source);
+			for (int i = from; i <= to; i++) {
+				double nextLat = i < to ? graph.geometryLatitudeArray()[i] : graph.getLatitude(target);
+				double nextLon = i < to ? graph.geometryLongitudeArray()[i] : graph.getLongitude(target);
+				total += Math.hypot((nextLon - lon) * lonScale, nextLat - lat);
+				lat = nextLat;
+				lon = nextLon;
+			}
+
+			double left = reach * total;
+			lat = graph.getLatitude(source);
+			lon = graph.getLongitude(source);
+			for (int i = from; i <= to; i++) {
+				double nextLat = i < to ? graph.geometryLatitudeArray()[i] : graph.getLatitude(target);
+				double nextLon = i < to ? graph.geometryLongitudeArray()[i] : graph.getLongitude(target);
+				double length = Math.hypot((nextLon - lon) * lonScale, nextLat - lat);
+				if (length >= left) {
+					double t = length == 0 ? 0 : left / length;
+					offer(lat + t * (nextLat - lat), lon + t * (nextLon - lon));
+					return;
+				}
+				offer(nextLat, nextLon);
+				left -= length;
+				lat = nextLat;
+				lon = nextLon;
+			}
+		}
+
+		void offer(double lat, double lon) {
+			double dx = lon * lonScale - originX;
+			double dy = lat - originY;
+			double d = dx * dx + dy * dy;
+			double angle = Math.atan2(dy, dx) + Math.PI;
+			int s = Math.min(SECTORS - 1, (int) (angle / (2 * Math.PI) * SECTORS));
+			if (d > farthest[s]) {
+				farthest[s] = d;
+				lats[s] = lat;
+				lons[s] = lon;
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/san_diego.map";
+		CompactGraph graph = MapSnapshot.loadOrBuild(file);
+		int queries = 2000;
+		Random random = new Random(42);
+		int[] origins = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			origins[i] = random.nextInt(graph.getNumVertices());
+		}
+
+		double[] budgets = { 1, 3 };
+		for (double budget : budgets) {
+			for (boolean withBoundary : new boolean[] { false, true }) {
+				long reached = 0;
+				long begin = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					// the first pass warms up the JIT
+					reached = 0;
+					begin = System.nanoTime();
+					for (int origin : origins) {
+						reached += compute(graph, origin, budget, withBoundary).size();
+					}
+				}
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				System.out.printf("%s: %.0f km%s, %d vertices on average, %.0f isochrones/s%n",
+						file, budget, withBoundary ? " with boundary" : "", reached / queries,
+						queries / seconds);
+			}
+		}
+
+		graph.setMetric(EdgeMetric.travelTime());
+		Isochrone fiveMinutes = compute(graph, origins[0], 300, true);
+		System.out.println("5 minutes from " + graph.getLocation(origins[0]) + ": "
+				+ fiveMinutes.size() + " vertices, boundary of "
+				+ fiveMinutes.getBoundary().size() + " corners");
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Precomputed road distances from and to a few landmark vertices, used as
+ * the ALT lower bound for A*. By the triangle inequality the distance from
+ * v to t is at least d(L, t) - d(L, v) and at least d(v, L) - d(t, L) for
+ * every landmark L, which is a much tighter bound than the straight line
+ * distance when L lies behind t or in front of v.
+ *
+ * Landmarks are picked one at a time as the vertex farthest by road from
+ * the ones already picked, then the tables of distances to the landmarks
+ * are computed on all cores. The tables can be saved next to the .map file so they are only
+ * computed once.
+ */
+package roadgraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class Landmarks {
+	private static final int MAGIC = 0x4C4D524B; // "LMRK"
+	private static final int VERSION = 1;
+
+	private final int numVertices;
+	private final int[] landmarks;
+	private final long fingerprint; // of the graph the tables belong to
+
+	// d(L_i, v) at fromLandmark[v * k + i] and d(v, L_i) at toLandmark[v * k + i]
+	private final double[] fromLandmark;
+	private final double[] toLandmark;
+
+	private Landmarks(int numVertices, int[] landmarks, long fingerprint,
+			double[] fromLandmark, double[] toLandmark) {
+		this.numVertices = numVertices;
+		this.landmarks = landmarks;
+		this.fingerprint = fingerprint;
+		this.fromLandmark = fromLandmark;
+		this.toLandmark = toLandmark;
+	}
+
+	/**
+	 * Picks k landmarks with the farthest point method and computes their
+	 * distance tables
+	 * @param graph the graph to compute the landmarks for
+	 * @param k the number of landmarks
+	 * @return the landmark distances
+	 */
+	public static Landmarks compute(CompactGraph graph, int k) {
+		int n = graph.getNumVertices();
+		if (k <= 0 || k > n) {
+			throw new IllegalArgumentException("Invalid number of landmarks");
+		}
+
+		// start with the vertex farthest from an arbitrary one, then keep
+		// adding the vertex that is farthest from all landmarks so far
+		int[] chosen = new int[k];
+		double[][] forward = new double[k][];
+		double[] closest = new double[n];
+		Arrays.fill(closest, Double.MAX_VALUE);
+		chosen[0] = farthest(graph.distancesFrom(0));
+		for (int i = 0; i < k; i++) {
+			forward[i] = graph.distancesFrom(chosen[i]);
+			for (int v = 0; v < n; v++) {
+				if (forward[i][v] != Double.MAX_VALUE) {
+					closest[v] = Math.min(closest[v], forward[i][v]);
+				}
+			}
+			if (i + 1 < k) {
+				chosen[i + 1] = farthest(closest);
+			}
+		}
+
+		double[][] backward = new double[k][];
+		IntStream.range(0, k).parallel()
+				.forEach(i -> backward[i] = graph.distancesTo(chosen[i]));
+
+		double[] fromLandmark = new double[n * k];
+		double[] toLandmark = new double[n * k];
+		for (int v = 0; v < n; v++) {
+			for (int i = 0; i < k; i++) {
+				fromLandmark[v * k + i] = forward[i][v];
+				toLandmark[v * k + i] = backward[i][v];
+			}
+		}
+		return new Landmarks(n, chosen, graph.fingerprint(), fromLandmark, toLandmark);
+	}
+
+	// The vertex with the largest finite distance, the landmarks already
+	// picked have distance 0 so they are never picked again.
+	private static int farthest(double[] distance) {
+		int best = 0;
+		double bestDistance = -1;
+		for (int v = 0; v < distance.length; v++) {
+			if (distance[v] != Double.MAX_VALUE && distance[v] > bestDistance) {
+				best = v;
+				bestDistance = distance[v];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Loads the landmarks saved next to the map file, or computes and saves
+	 * them if there are none or they belong to a different version of the map
+	 * @param graph the graph loaded from mapFile
+	 * @param mapFile the .map file the graph was loaded from
+	 * @param k the number of landmarks
+	 * @return the landmark distances
+	 */
+	public static Landmarks loadOrCompute(CompactGraph graph, String mapFile, int k) {
+		File file = new File(mapFile + ".landmarks");
+		if (file.exists()) {
+			try {
+				Landmarks saved = load(file);
+				if (saved.fingerprint == graph.fingerprint() && saved.landmarks.length == k) {
+					return saved;
+				}
+			} catch (IOException e) {
+				System.err.println("Problem loading landmarks file: " + file);
+			}
+		}
+
+		Landmarks computed = compute(graph, k);
+		try {
+			computed.save(file);
+		} catch (IOException e) {
+			System.err.println("Problem saving landmarks file: " + file);
+			e.printStackTrace();
+		}
+		return computed;
+	}
+
+	/**
+	 * Writes the landmarks and their distance tables to a file
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fingerprint);
+			out.writeInt(numVertices);
+			out.writeInt(landmarks.length);
+			for (int landmark : landmarks) {
+				out.writeInt(landmark);
+			}
+			for (double d : fromLandmark) {
+				out.writeDouble(d);
+			}
+			for (double d : toLandmark) {
+				out.writeDouble(d);
+			}
+		}
+	}
+
+	/**
+	 * Reads landmarks written by save
+	 * @param file the file to read
+	 * @return the landmark distances
+	 * @throws IOException if the file cannot be read or is not a landmarks file
+	 */
+	public static Landmarks load(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a landmarks file: " + file);
+			}
+			long fingerprint = in.readLong();
+			int n = in.readInt();
+			int k = in.readInt();
+			int[] landmarks = new int[k];
+			for (int i = 0; i < k; i++) {
+				landmarks[i] = in.readInt();
+			}
+			double[] fromLandmark = new double[n * k];
+			double[] toLandmark = new double[n * k];
+			for (int i = 0; i < fromLandmark.length; i++) {
+				fromLandmark[i] = in.readDouble();
+			}
+			for (int i = 0; i < toLandmark.length; i++) {
+				toLandmark[i] = in.readDouble();
+			}
+			return new Landmarks(n, landmarks, fingerprint, fromLandmark, toLandmark);
+		}
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public int getNumLandmarks() {
+		return landmarks.length;
+	}
+
+	/**
+	 * returns the id of a landmark
+	 * @param i index of the landmark
+	 * @return the vertex id of the landmark
+	 */
+	public int getLandmark(int i) {
+		return landmarks[i];
+	}
+
+	/**
+	 * returns the largest triangle inequality bound over all landmarks.
+	 * Landmarks that cannot reach or be reached from one of the vertices
+	 * give no bound.
+	 * @param v id of the vertex
+	 * @param target id of the goal vertex
+	 * @return a lower bound of the road distance from v to target in km
+	 */
+	public double lowerBound(int v, int target) {
+		int k = landmarks.length;
+		int vBase = v * k;
+		int tBase = target * k;
+		double best = 0;
+		for (int i = 0; i < k; i++) {
+			double landmarkToV = fromLandmark[vBase + i];
+			double landmarkToT = fromLandmark[tBase + i];
+			if (landmarkToV != Double.MAX_VALUE && landmarkToT != Double.MAX_VALUE) {
+				best = Math.max(best, landmarkToT - landmarkToV);
+			}
+			double vToLandmark = toLandmark[vBase + i];
+			double tToLandmark = toLandmark[tBase + i];
+			if (vToLandmark != Double.MAX_VALUE && tToLandmark != Double.MAX_VALUE) {
+				best = Math.max(best, vToLandmark - tToLandmark);
+			}
+		}
+		return best;
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		CompactGraph compact = theMap.toCompactGraph();
+
+		long begin = System.currentTimeMillis();
+		Landmarks landmarks = Landmarks.loadOrCompute(compact, file, k);
+		System.out.println(file + ": " + k + " landmarks ready in "
+				+ (System.currentTimeMillis() - begin) + " ms");
+
+		int queries = 2000;
+		Random random = new Random(42);
+		GeographicPoint[] starts = new GeographicPoint[queries];
+		GeographicPoint[] goals = new GeographicPoint[queries];
+		for (int i = 0; i < queries; i++) {
+			starts[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+			goals[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+		}
+
+		long[] settled = new long[1];
+		Consumer<GeographicPoint> counter = (x) -> settled[0]++;
+		for (int pass = 0; pass < 2; pass++) {
+			compact.setLandmarks(pass == 0 ? null : landmarks);
+			settled[0] = 0;
+			begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				compact.aStarSearch(starts[i], goals[i], counter);
+			}
+			long time = System.nanoTime() - begin;
+			System.out.println((pass == 0 ? "  straight line A*: " : "  ALT A*: ")
+					+ settled[0] / queries + " settled nodes/query, "
+					+ time / queries / 1000 + " us/query");
+		}
+	}
+}
@@ -14,6 +14,7 @@ public class MapEdges {
 	private GeographicPoint end; // end of the edge
 	
 	private String streetName; // the name of the edge(street)
+	private RoadClass roadClass; // the class of the street, from its road type
 	private double length; // length of the road between the two nodes or the length of the edge
 	 
 	/**
@@ -28,10 +29,25 @@ public class MapEdges {
 	 * @param length of the edge
 	 */
 	public MapEdges(GeographicPoint start, GeographicPoint end, String streetName, double length) {
+		this(start, end, streetName, RoadClass.OTHER, length);
+	}
+	
+	/**
+	 * initializes a mapEdge with the given parameters
+	 * 
+	 * @param start node of our edge 
+	 * @param end the end node in that edge
+	 * @param streetName name of the street
+	 * @param roadClass class of the street
+	 * @param length of the edge
+	 */
+	public MapEdges(GeographicPoint start, GeographicPoint end, String streetName,
+			RoadClass roadClass, double length) {
 		this.setStart(start);
 		this.setEnd(end);
 		
 		this.streetName = streetName;
+		this.roadClass = roadClass;
 		this.setLength(length);
 	}
 	
@@ -83,6 +99,22 @@ public class MapEdges {
 		this.streetName = streetName;
 	}
 
+	/**
+	 * gets the class of the street
+	 * @return the road class
+	 */
+	public RoadClass getRoadClass() {
+		return roadClass;
+	}
+
+	/**
+	 * sets the class of the street
+	 * @param roadClass the class you want to change the street to
+	 */
+	public void setRoadClass(RoadClass roadClass) {
+		this.roadClass = roadClass;
+	}
+
 	/**
 	 * gets the length of the street 
 	 * @return the street length
@@ -11,13 +11,9 @@ package roadgraph;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -39,20 +35,55 @@ public class MapGraph {
 	 */
 	private HashMap<GeographicPoint, MapNode> vertices;
 	
+	// the same nodes indexed by their id, in the order they were added
+	private ArrayList<MapNode> nodeList;
+	
 	// stores the number of the nodes in our map
 	private int numOfVertices;
 	
 	// stores the number of edges in our map
 	private int numOfEdges;
 	
+	// the priority queue used by dijkstra and aStarSearch
+	private QueueType queueType;
+	
+	// optional lower bounds used by aStarSearch, dropped when the graph changes
+	private Landmarks landmarks;
+	
+	// the cost the searches minimise
+	private EdgeMetric metric;
+	
+	// finds the closest vertex to a location, built when first needed
+	private VertexIndex vertexIndex;
+	
+	// changes whenever a vertex or an edge is added
+	private long version;
+	
+	// the strongly connected components, found again after the graph changed
+	private volatile StronglyConnectedComponents components;
+	
+	// compact copy the searches, distanceMatrix and isochrone run on, built
+	// again after the graph changed
+	private volatile CompactGraph compact;
+	
+	// optional cache of the paths found by bfs, dijkstra and aStarSearch
+	private RouteCache routeCache;
+	
+	// the number of nodes the last search of every thread took out of its
+	// queues, see getLastVisitedCount
+	private final ThreadLocal<int[]> lastVisitedCount = ThreadLocal.withInitial(() -> new int[1]);
+	
 	/** 
 	 * Create a new empty MapGraph 
 	 */
 	public MapGraph()
 	{
 		this.vertices = new HashMap<>();
+		this.nodeList = new ArrayList<>();
 		numOfEdges = 0;
 		numOfVertices = 0;
+		queueType = QueueType.INDEXED_HEAP;
+		metric = EdgeMetric.DISTANCE;
 	}
 	
 	/**
@@ -73,6 +104,207 @@ public class MapGraph {
 		return vertices.keySet();
 	}
 	
+	/**
+	 * returns the priority queue dijkstra and aStarSearch use
+	 * @return the queue type, INDEXED_HEAP unless it was changed
+	 */
+	public QueueType getQueueType() {
+		return queueType;
+	}
+	
+	/**
+	 * selects the priority queue dijkstra and aStarSearch use
+	 * @param queueType the queue the next searches run with
+	 */
+	public void setQueueType(QueueType queueType) {
+		if (queueType == null) {
+			throw new IllegalArgumentException("null argument is invalid");
+		}
+		this.queueType = queueType;
+	}
+	
+	/**
+	 * returns the cost dijkstra and aStarSearch minimise
+	 * @return the metric, EdgeMetric.DISTANCE unless it was changed
+	 */
+	public EdgeMetric getMetric() {
+		return metric;
+	}
+	
+	/**
+	 * selects the cost dijkstra and aStarSearch minimise, for example
+	 * the travel time instead of the distance. The cost of every edge is
+	 * computed once here, into the weight array of the compact copy the
+	 * searches run on.
+	 * @param metric the metric the next searches run with
+	 * @throws IllegalArgumentException if metric is null or gives an edge
+	 *   a negative cost, which Dijkstra cannot handle
+	 */
+	public void setMetric(EdgeMetric metric) {
+		if (metric == null) {
+			throw new IllegalArgumentException("null argument is invalid");
+		}
+		compactGraph().setMetric(metric);
+		this.metric = metric;
+	}
+	
+	/**
+	 * makes aStarSearch use the landmark lower bounds as well as the
+	 * straight line distance. Adding a vertex or an edge drops them, since
+	 * a new edge can make the precomputed distances too long.
+	 * @param landmarks landmark distances computed for a compact copy of
+	 *   this graph, or null to use only the straight line distance
+	 */
+	public void setLandmarks(Landmarks landmarks) {
+		if (landmarks != null && landmarks.getNumVertices() != numOfVertices) {
+			throw new IllegalArgumentException("landmarks were computed for another graph");
+		}
+		this.landmarks = landmarks;
+	}
+	
+	/**
+	 * returns the version of the graph, which changes every time a vertex
+	 * or an edge is added, so results computed from an older version can
+	 * be told apart
+	 * @return the number of changes made to the graph
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * makes bfs, dijkstra and aStarSearch look up their paths in a cache
+	 * first and add the paths they find to it. A path served from the cache
+	 * does not report the visited nodes to nodeSearched.
+	 * @param routeCache the cache to use, or null to always search
+	 */
+	public void setRouteCache(RouteCache routeCache) {
+		this.routeCache = routeCache;
+	}
+	
+	public RouteCache getRouteCache() {
+		return routeCache;
+	}
+	
+	/**
+	 * returns the strongly connected components of the graph. They are
+	 * found the first time they are needed after the graph changed, and
+	 * let the searches give up at once when the goal cannot be reached.
+	 * @return the components, with the ids of the nodes
+	 */
+	public StronglyConnectedComponents getComponents() {
+		StronglyConnectedComponents scc = components;
+		if (scc == null) {
+			scc = StronglyConnectedComponents.compute(this);
+			components = scc;
+		}
+		return scc;
+	}
+	
+	/**
+	 * returns the node with the given id
+	 * @param id index of the node, between 0 and getNumVertices() - 1
+	 * @return the node that was added with this id
+	 */
+	MapNode getNode(int id) {
+		return nodeList.get(id);
+	}
+	
+	/**
+	 * returns the node at the given location
+	 * @param location location of the intersection
+	 * @return the node at this location or null if there is none
+	 */
+	MapNode getNode(GeographicPoint location) {
+		return vertices.get(location);
+	}
+	
+	/**
+	 * returns the intersection closest to a location, so searches can start
+	 * and end at places that are not exactly on an intersection
+	 * @param location any location
+	 * @return the location itself if it is a vertex, otherwise the closest
+	 *   vertex, or null if the graph is empty or location is null
+	 */
+	public GeographicPoint nearestVertex(GeographicPoint location) {
+		MapNode node = findNode(location);
+		return node == null ? null : node.getLocation();
+	}
+	
+	// The node at the location, or the closest one if there is none.
+	private MapNode findNode(GeographicPoint location) {
+		if (location == null) {
+			return null;
+		}
+		MapNode node = vertices.get(location);
+		if (node != null || numOfVertices == 0) {
+			return node;
+		}
+		if (vertexIndex == null) {
+			double[] latitudes = new double[numOfVertices];
+			double[] longitudes = new double[numOfVertices];
+			for (int v = 0; v < numOfVertices; v++) {
+				latitudes[v] = nodeList.get(v).getLocation().getX();
+				longitudes[v] = nodeList.get(v).getLocation().getY();
+			}
+			vertexIndex = new VertexIndex(latitudes, longitudes);
+		}
+		return nodeList.get(vertexIndex.nearest(location.getX(), location.getY()));
+	}
+	
+	/**
+	 * Builds a frozen, read-only compressed sparse row copy of this graph.
+	 * Vertex ids in the copy are the same as the ids of the MapNodes.
+	 * @return the compact representation of the current graph
+	 */
+	public CompactGraph toCompactGraph() {
+		return new CompactGraph(this);
+	}
+	
+	/**
+	 * computes the cost of the shortest path from every source to every
+	 * target with the selected metric, see DistanceMatrix
+	 * @param sources the start locations
+	 * @param targets the goal locations
+	 * @return matrix[i][j] is the cost from sources[i] to targets[j],
+	 *   Double.MAX_VALUE if there is no path
+	 */
+	public double[][] distanceMatrix(List<GeographicPoint> sources, List<GeographicPoint> targets) {
+		return DistanceMatrix.compute(compactCopy(), sources, targets);
+	}
+	
+	// The compact copy of the current graph with the selected metric and
+	// landmarks. Its vertex ids are the ids of the nodes. It is built the
+	// first time it is needed after the graph changed, and keeps the costs
+	// of the last few metrics it was used with.
+	private CompactGraph compactCopy() {
+		CompactGraph copy = compactGraph();
+		copy.setMetric(metric);
+		copy.setLandmarks(landmarks);
+		return copy;
+	}
+	
+	// The compact copy with whatever metric it had last.
+	private CompactGraph compactGraph() {
+		CompactGraph copy = compact;
+		if (copy == null) {
+			copy = toCompactGraph();
+			compact = copy;
+		}
+		return copy;
+	}
+
+	/**
+	 * finds every intersection reachable from a location within a budget
+	 * of the selected metric, see Isochrone
+	 * @param origin the start location
+	 * @param budget the largest cost to reach an intersection
+	 * @return the reachable intersections with their costs and boundary
+	 */
+	public Isochrone isochrone(GeographicPoint origin, double budget) {
+		return Isochrone.compute(compactCopy(), origin, budget, true);
+	}
+	
 	/**
 	 * Get the number of road segments in the graph
 	 * @return The number of edges in the graph.
@@ -94,8 +326,14 @@ public class MapGraph {
 	public boolean addVertex(GeographicPoint location)
 	{
 		if (location != null && !vertices.containsKey(location)) { 
-			MapNode vertex = new MapNode(location);
+			MapNode vertex = new MapNode(location, numOfVertices);
 			vertices.put(location, vertex);
+			nodeList.add(vertex);
+			landmarks = null;
+			vertexIndex = null;
+			components = null;
+			compact = null;
+			version++;
 			
 			numOfVertices++;
 			return true;
@@ -131,8 +369,13 @@ public class MapGraph {
 		}
 		
 		
-		MapEdges edge = new MapEdges(from, to, roadName, length);
+		MapEdges edge = new MapEdges(from, to, roadName, RoadClass.fromType(roadType), length);
 		vertices.get(from).addNeighbourEdge(edge);
+		vertices.get(to).addIncomingEdge(edge);
+		landmarks = null;
+		components = null;
+		compact = null;
+		version++;
 		numOfEdges++;
 	}
 	
@@ -161,31 +404,21 @@ public class MapGraph {
 	public List<GeographicPoint> bfs(GeographicPoint start, 
 			 					     GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		Queue<MapNode> toCheck = new LinkedList<>();
-		HashSet<GeographicPoint> visidted = new HashSet<>();
-		HashMap<GeographicPoint, GeographicPoint> parentMap = new HashMap<GeographicPoint, GeographicPoint>();
-		
-		
-		MapNode startNode = vertices.get(start);
-		toCheck.add(startNode);
-
-		while (!toCheck.isEmpty()) {
-			MapNode curr = toCheck.poll();
-			
-			nodeSearched.accept(curr.getLocation());
-			if (curr.getLocation().equals(goal)) {
-				return this.graphPath(goal, start, parentMap);
-			}
-			
-			for(GeographicPoint next : curr.getNeighbors()) {
-				if (!visidted.contains(next)) {
-					toCheck.add(vertices.get(next));
-					visidted.add(next);
-					parentMap.put(next, curr.getLocation());
-				}
-			}
+		MapNode startNode = findNode(start);
+		MapNode goalNode = findNode(goal);
+		if (startNode == null || goalNode == null) {
+			return null;
+		}
+		int[] cached = cachedPath(startNode, goalNode, RoutingEngine.Algorithm.BFS);
+		if (cached != null) {
+			return toLocations(cached);
 		}
-		return null;
+		// the search runs on the arrays of the compact copy, which has the
+		// same ids, instead of looking up every neighbour by its location
+		List<GeographicPoint> path = compactCopy().bfs(startNode.getLocation(),
+				goalNode.getLocation(), nodeSearched);
+		cachePath(startNode, goalNode, RoutingEngine.Algorithm.BFS, path);
+		return path;
 	}
 	
 	
@@ -250,74 +483,9 @@ public class MapGraph {
 	public List<GeographicPoint> dijkstra(GeographicPoint start, 
 										  GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		// TODO: Implement this method in WEEK 4
-		initDistances(start, goal, false);
-		PriorityQueue<MapNode> pq = new PriorityQueue<>();
-		HashMap<GeographicPoint, GeographicPoint> parentMap = new HashMap<GeographicPoint, GeographicPoint>();
-		HashSet<GeographicPoint> visited = new HashSet<GeographicPoint>();
-		
-		
-		pq.add(vertices.get(start));
-		
-		int count = 0;
-		Boolean pathFound = false;
-		while (!pq.isEmpty()) {
-			MapNode curr = pq.poll();
-			count++;
-			nodeSearched.accept(curr.getLocation());
-			
-			
-			if (!visited.contains(curr.getLocation())) {
-				visited.add(curr.getLocation());
-				
-				
-				if (curr.getLocation().equals(goal)) {
-					pathFound = true;
-					break;
-				}
-				
-				for(MapEdges edge : curr.getEdges()) {
-					double disAndCost = curr.getDistance() + edge.getLength();
-					if (disAndCost < vertices.get(edge.getEnd()).getDistance()) {
-						vertices.get(edge.getEnd()).setDistance(disAndCost);
-						
-						pq.add(vertices.get(edge.getEnd()));
-						parentMap.put(edge.getEnd(), curr.getLocation());
-					}
-				}
-			}
-		}
-		// Hook for visualization.  See writeup.
-		//nodeSearched.accept(next.getLocation());
-		System.out.println("Dijstkare total number of visited nodes: " + count);
-		
-		if (pathFound) {
-			return this.graphPath(goal, start, parentMap);
-		}
-		
-		return null;
+		return cachedSearch(start, goal, nodeSearched, RoutingEngine.Algorithm.DIJKSTRA);
 	}
 
-	private void initDistances(GeographicPoint start, GeographicPoint goal, Boolean isAstarAlgo) {
-		
-		for(GeographicPoint curr : vertices.keySet()) {
-			MapNode node = vertices.get(curr);
-						
-			if (isAstarAlgo) {
-				node.setAStar(isAstarAlgo);
-				node.setHeuristicCost(vertices.get(goal));
-			} else {
-				node.setAStar(false);
-			}
-			
-			if (curr.equals(start)) {
-				node.setDistance(0);
-			} else {
-				node.setDistance(Double.MAX_VALUE);
-			}
-		}
-			
-	}
 	/** Find the path from start to goal using A-Star search
 	 * 
 	 * @param start The starting location
@@ -342,54 +510,269 @@ public class MapGraph {
 	public List<GeographicPoint> aStarSearch(GeographicPoint start, 
 											 GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		initDistances(start, goal, true);
-		// TODO: Implement this method in WEEK 4
-		PriorityQueue<MapNode> pq = new PriorityQueue<>();
-		HashMap<GeographicPoint, GeographicPoint> parentMap = new HashMap<GeographicPoint, GeographicPoint>();
-		HashSet<GeographicPoint> visited = new HashSet<GeographicPoint>();
-		
+		return cachedSearch(start, goal, nodeSearched, RoutingEngine.Algorithm.A_STAR);
+	}
+	
+	// dijkstra and aStarSearch: the cached path if there is one, otherwise
+	// the path found by search, which is then cached.
+	private List<GeographicPoint> cachedSearch(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, RoutingEngine.Algorithm algorithm) {
+		MapNode startNode = routeCache == null ? null : findNode(start);
+		MapNode goalNode = routeCache == null ? null : findNode(goal);
+		int[] cached = cachedPath(startNode, goalNode, algorithm);
+		if (cached != null) {
+			lastVisitedCount.get()[0] = 0;
+			return toLocations(cached);
+		}
 		
-		pq.add(vertices.get(start));
+		boolean isAStar = algorithm == RoutingEngine.Algorithm.A_STAR;
+		SearchContext context = SearchContext.acquire(numOfVertices, queueType);
+		int goalId = search(start, goal, nodeSearched, isAStar, context);
+		lastVisitedCount.get()[0] = context.getPollCount();
+		if (isAStar) {
+			System.out.println("A start total number of visited nodes: " + context.getPollCount());
+		} else {
+			System.out.println("Dijstkare total number of visited nodes: " + context.getPollCount());
+		}
 		
+		List<GeographicPoint> path = goalId >= 0 ? this.graphPath(context, goalId) : null;
+		cachePath(startNode, goalNode, algorithm, path);
+		return path;
+	}
+	
+	// The cached path between two nodes as node ids, an empty array if
+	// there is no path, or null if there is no cache or it has no entry.
+	private int[] cachedPath(MapNode startNode, MapNode goalNode, RoutingEngine.Algorithm algorithm) {
+		RouteCache cache = routeCache;
+		if (cache == null || startNode == null || goalNode == null) {
+			return null;
+		}
+		return cache.get(startNode.getId(), goalNode.getId(), algorithm, metric, version);
+	}
+	
+	private void cachePath(MapNode startNode, MapNode goalNode, RoutingEngine.Algorithm algorithm,
+			List<GeographicPoint> path) {
+		RouteCache cache = routeCache;
+		if (cache == null || startNode == null || goalNode == null) {
+			return;
+		}
+		int[] ids = new int[path == null ? 0 : path.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = vertices.get(path.get(i)).getId();
+		}
+		cache.put(startNode.getId(), goalNode.getId(), algorithm, metric, version, ids);
+	}
+	
+	// The locations of a cached path, null for the empty path.
+	private List<GeographicPoint> toLocations(int[] ids) {
+		if (ids.length == 0) {
+			return null;
+		}
+		List<GeographicPoint> list = new ArrayList<GeographicPoint>(ids.length);
+		for (int id : ids) {
+			list.add(nodeList.get(id).getLocation());
+		}
+		return list;
+	}
+
+	/**
+	 * runs Dijkstra's algorithm from start until goal is settled, guided by
+	 * the straight line distance to the goal when isAStar is true. The
+	 * search runs on the compact copy, whose ids are the ids of the nodes,
+	 * with the costs of the selected metric in one array. All the state of
+	 * the query lives in the context, so several threads can search at the
+	 * same time.
+	 * 
+	 * @return id of the goal node if it was reached, -1 otherwise
+	 */
+	private int search(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, boolean isAStar, SearchContext context) {
+		MapNode startNode = findNode(start);
+		MapNode goalNode = findNode(goal);
+		if (startNode == null || goalNode == null) {
+			return -1;
+		}
+		int goalId = goalNode.getId();
+		return compactCopy().route(startNode.getId(), goalId, nodeSearched, isAStar, context)
+				? goalId : -1;
+	}
+	
+	/**
+	 * returns how many nodes the last dijkstra, aStarSearch or
+	 * bidirectional search of the calling thread took out of its queues,
+	 * including the stale entries, 0 if the path came from the cache
+	 * @return the number of visited nodes
+	 */
+	public int getLastVisitedCount() {
+		return lastVisitedCount.get()[0];
+	}
+	
+	/** Find the path from start to goal using Dijkstra's algorithm from
+	 * both ends at once
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalDijkstra(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = (x) -> {};
+		return bidirectionalDijkstra(start, goal, temp);
+	}
+	
+	/** Find the path from start to goal using Dijkstra's algorithm from
+	 * both ends at once: forward from the start over the outgoing edges and
+	 * backward from the goal over the incoming edges, until the two
+	 * searches can no longer improve the best path where they met.
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization.  See assignment instructions for how to use it.
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalDijkstra(GeographicPoint start, 
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return bidirectionalSearch(start, goal, nodeSearched, false);
+	}
+	
+	/** Find the path from start to goal using A-Star search from both ends
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalAStar(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = (x) -> {};
+		return bidirectionalAStar(start, goal, temp);
+	}
+	
+	/** Find the path from start to goal using A-Star search from both ends.
+	 * Both searches use the average of the straight line distance to the
+	 * goal and from the start as their heuristic, which keeps the forward
+	 * and the backward heuristic consistent with each other.
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization.  See assignment instructions for how to use it.
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalAStar(GeographicPoint start, 
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return bidirectionalSearch(start, goal, nodeSearched, true);
+	}
+	
+	// Both searches run on the arrays of the compact copy, like search.
+	private List<GeographicPoint> bidirectionalSearch(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, boolean isAStar) {
+		MapNode startNode = findNode(start);
+		MapNode goalNode = findNode(goal);
+		CompactGraph graph = compactCopy();
+		if (startNode == null || goalNode == null
+				|| !graph.getComponents().canReach(startNode.getId(), goalNode.getId())) {
+			lastVisitedCount.get()[0] = 0;
+			return null;
+		}
+		int source = startNode.getId();
+		int target = goalNode.getId();
+		
+		double[] costs = graph.weightArray();
+		double minCostPerKm = isAStar ? graph.getMetric().getMinCostPerKm() : 0;
+		SearchContext forward = SearchContext.acquire(numOfVertices, queueType, SearchContext.FORWARD);
+		SearchContext backward = SearchContext.acquire(numOfVertices, queueType, SearchContext.BACKWARD);
+		forward.update(source, 0, -1);
+		forward.push(source, potential(graph, source, source, target, minCostPerKm));
+		backward.update(target, 0, -1);
+		backward.push(target, -potential(graph, target, source, target, minCostPerKm));
+		
+		double best = Double.MAX_VALUE;
+		int meeting = -1;
 		int count = 0;
-		Boolean pathFound = false;
-		
-		while (!pq.isEmpty()) {
-			MapNode curr = pq.poll();
+		while (!forward.isQueueEmpty() && !backward.isQueueEmpty()) {
+			// no path through the unsettled nodes can be shorter
+			if (forward.peekPriority() + backward.peekPriority() >= best) {
+				break;
+			}
+			boolean isForward = forward.peekPriority() <= backward.peekPriority();
+			SearchContext context = isForward ? forward : backward;
+			SearchContext other = isForward ? backward : forward;
+			
+			int currId = context.poll();
 			count++;
-			nodeSearched.accept(curr.getLocation());
+			if (context.isSettled(currId)) {
+				continue;
+			}
+			context.settle(currId);
+			nodeSearched.accept(nodeList.get(currId).getLocation());
 			
-			if (!visited.contains(curr.getLocation())) {
-				visited.add(curr.getLocation());
+			double currDistance = context.getDistance(currId);
+			int first = isForward ? graph.getFirstEdge(currId) : graph.getFirstInEdge(currId);
+			int degree = isForward ? graph.getOutDegree(currId) : graph.getInDegree(currId);
+			for (int i = first; i < first + degree; i++) {
+				int e = isForward ? i : graph.getInEdge(i);
+				int nextId = isForward ? graph.getEdgeTarget(e) : graph.getEdgeSource(e);
 				
-				if (curr.getLocation().equals(goal)) {
-					pathFound = true;
-					break;
+				double disAndCost = currDistance + costs[e];
+				if (disAndCost < context.getDistance(nextId)) {
+					context.update(nextId, disAndCost, currId);
+					double p = potential(graph, nextId, source, target, minCostPerKm);
+					context.push(nextId, disAndCost + (isForward ? p : -p));
 				}
-				
-				for(MapEdges edge : curr.getEdges()) {
-					MapNode next = vertices.get(edge.getEnd());
-					
-					double disAndCost = curr.getDistance() + edge.getLength();
-					
-					if (disAndCost < next.getDistance()) {
-						next.setDistance(disAndCost);
-						
-						
-						pq.add(next);
-						parentMap.put(edge.getEnd(), curr.getLocation());
-					}						
+				if (other.isReached(nextId)) {
+					double total = context.getDistance(nextId) + other.getDistance(nextId);
+					if (total < best) {
+						best = total;
+						meeting = nextId;
+					}
 				}
 			}
-		}		
-		
-		System.out.println("A start total number of visited nodes: " + count);
+			if (other.isReached(currId) && currDistance + other.getDistance(currId) < best) {
+				best = currDistance + other.getDistance(currId);
+				meeting = currId;
+			}
+		}
+		lastVisitedCount.get()[0] = count;
 		
-		if (pathFound) {
-			return this.graphPath(goal, start, parentMap);
+		if (meeting < 0) {
+			return null;
 		}
-
-		return null;
+		List<GeographicPoint> path = graphPath(forward, meeting);
+		for (int curr = backward.getParent(meeting); curr != -1; curr = backward.getParent(curr)) {
+			path.add(nodeList.get(curr).getLocation());
+		}
+		return path;
+	}
+	
+	// The forward potential of a node for bidirectional A*, the backward
+	// search uses its negation. A minCostPerKm of zero turns the search
+	// into Dijkstra.
+	private static double potential(CompactGraph graph, int v, int source, int target,
+			double minCostPerKm) {
+		if (minCostPerKm == 0) {
+			return 0;
+		}
+		return (graph.straightLineDistance(v, target) - graph.straightLineDistance(v, source)) / 2
+				* minCostPerKm;
+	}
+	
+	/**
+	 * follows the parents recorded by a search back from the goal and
+	 * returns the path from the start to the goal
+	 * 
+	 * @param context the state of the search that reached the goal
+	 * @param goal id of the node the path ends at
+	 * @return the path from the starting node to the goal node
+	 */
+	private List<GeographicPoint> graphPath(SearchContext context, int goal) {
+		List<GeographicPoint> list = new ArrayList<GeographicPoint>();
+		for (int curr = goal; curr != -1; curr = context.getParent(curr)) {
+			list.add(nodeList.get(curr).getLocation());
+		}
+		
+		Collections.reverse(list);
+		return list;
 	}
 
 	
@@ -453,6 +836,20 @@ public class MapGraph {
 		
 		List<GeographicPoint> route = theMap.dijkstra(start,end);
 		List<GeographicPoint> route2 = theMap.aStarSearch(start,end);
+		
+		
+		/* Compare the one and two sided searches on a long route */
+		MapGraph newYork = new MapGraph();
+		GraphLoader.loadRoadMap("data/maps/new_york.map", newYork);
+		start = new GeographicPoint(40.739755, -74.0025244);
+		end = new GeographicPoint(40.7864938, -73.9524117);
+		
+		newYork.dijkstra(start, end);
+		newYork.bidirectionalDijkstra(start, end);
+		System.out.println("Bidirectional total number of visited nodes: " + newYork.getLastVisitedCount());
+		newYork.aStarSearch(start, end);
+		newYork.bidirectionalAStar(start, end);
+		System.out.println("Bidirectional total number of visited nodes: " + newYork.getLastVisitedCount());
 
 		
 		
@@ -11,39 +11,24 @@ import java.util.List;
 
 import geography.GeographicPoint;
 
-public class MapNode implements Comparable<MapNode> {
+public class MapNode {
+	private int id; // index of the node in the order it was added to the graph
 	private GeographicPoint location; // locations of the node in the map
 	private List<GeographicPoint> neighbors; // the edges of the current node
 	private List<MapEdges> edges;
-	private double shortestDistance; // shortest distance of source node until this node
-	private Boolean aStartFlag;
-	private double heuristicCost;
+	private List<MapEdges> inEdges; // the edges ending at this node
 	
 	/**
 	 * Initializes the node with the given location
 	 * @param location location of the node in the map
+	 * @param id index of the node in the graph
 	 */
-	public MapNode(GeographicPoint location) {
+	public MapNode(GeographicPoint location, int id) {
+		this.id = id;
 		this.location = location;
 		this.neighbors = new ArrayList<>();
 		this.edges = new ArrayList<>();
-		this.shortestDistance = 0;
-		this.heuristicCost = 0;
-		this.aStartFlag = false;
-	}
-	
-	@Override
-	public int compareTo(MapNode other) {
-		if(aStartFlag) {
-			Double currTotDist = this.getDistance() + this.getHeuristicCost();
-			Double nextTotDist = other.getDistance() + other.getHeuristicCost();
-			
-			//System.out.println("A*");
-			return currTotDist.compareTo(nextTotDist);
-		}
-		
-		//System.out.println("Dij");
-		return this.getDistance().compareTo(other.getDistance());
+		this.inEdges = new ArrayList<>();
 	}
 	
 	/**
@@ -55,6 +40,15 @@ public class MapNode implements Comparable<MapNode> {
 		this.edges.add(edge);
 	}
 	
+	/**
+	 * records an edge that ends at current node, so the graph can be
+	 * searched backwards
+	 * @param edge the edge whose end is this node
+	 */
+	public void addIncomingEdge(MapEdges edge) {
+		this.inEdges.add(edge);
+	}
+	
 	/**
 	 * returns the neighbors of current node represented as edges
 	 * @return list of edges that are connected to our node
@@ -63,6 +57,15 @@ public class MapNode implements Comparable<MapNode> {
 		return neighbors;
 	}
 	
+	/**
+	 * returns the index of the node, vertices are numbered 0 .. n-1
+	 * in the order they were added to the graph
+	 * @return the id of current node
+	 */
+	public int getId() {
+		return id;
+	}
+	
 	/**
 	 * returns the location of a vertex in a map
 	 * @return the GeographicPoint of current node location in a map
@@ -86,24 +89,12 @@ public class MapNode implements Comparable<MapNode> {
 	public List<MapEdges> getEdges() {
 		return edges;
 	}
-
-	public Double getDistance() {
-		return shortestDistance;
-	}
-
-	public void setDistance(double shortestDistance) {
-		this.shortestDistance = shortestDistance;
-	}
-	
-	public void setAStar(Boolean flag) {
-		this.aStartFlag = flag;
-	}
-	
-	public double getHeuristicCost() {
-		return this.heuristicCost;
-	}
 	
-	public void setHeuristicCost(MapNode goal) {
-		this.heuristicCost = this.getLocation().distance(goal.getLocation());
+	/**
+	 * returns the edges ending at current node
+	 * @return the incoming edges of our current node
+	 */
+	public List<MapEdges> getIncomingEdges() {
+		return inEdges;
 	}
 }
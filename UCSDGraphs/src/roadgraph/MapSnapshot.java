@@ -0,0 +1,329 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A binary snapshot of a loaded map, saved as a .mapbin file next to the
+ * .map file. The snapshot holds the collapsed intersection graph with its
+ * edge lengths, road names, road types and segment geometry, so a map that
+ * was parsed once can be loaded again without parsing the text.
+ *
+ * The file is a header followed by little endian arrays, which are copied
+ * into the CompactGraph arrays in bulk from a memory mapped buffer. The
+ * header records the length and modification time of the .map file, and a
+ * snapshot that does not match them is rebuilt.
+ */
+package roadgraph;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import util.GraphLoader;
+
+public class MapSnapshot {
+	private static final int MAGIC = 0x4D415042; // "MAPB"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 * 5;
+
+	private MapSnapshot() {
+	}
+
+	/**
+	 * returns the snapshot file that belongs to a .map file
+	 * @param mapFile the .map file
+	 * @return the .mapbin file next to it
+	 */
+	public static File snapshotFile(String mapFile) {
+		return new File(mapFile + "bin");
+	}
+
+	/**
+	 * Loads a map into a graph like GraphLoader.loadRoadMap, but from the
+	 * snapshot next to the map file when it is up to date. Otherwise the
+	 * map is parsed and a new snapshot is written for the next time.
+	 * @param mapFile the .map file to load
+	 * @param map the graph to load the map into
+	 * @param segments the road segments are added here, may be null
+	 * @param intersections the vertices are added here, may be null
+	 */
+	public static void loadRoadMap(String mapFile, MapGraph map,
+			HashMap<GeographicPoint, HashSet<RoadSegment>> segments,
+			Set<GeographicPoint> intersections) {
+		CompactGraph graph = loadOrBuild(mapFile);
+		int n = graph.getNumVertices();
+		for (int v = 0; v < n; v++) {
+			GeographicPoint location = graph.getLocation(v);
+			map.addVertex(location);
+			if (intersections != null) {
+				intersections.add(location);
+			}
+		}
+		for (int v = 0; v < n; v++) {
+			int end = graph.getFirstEdge(v) + graph.getOutDegree(v);
+			for (int e = graph.getFirstEdge(v); e < end; e++) {
+				RoadSegment segment = graph.getRoadSegment(e);
+				map.addEdge(segment.getPoint1(), segment.getPoint2(), segment.getRoadName(),
+						segment.getRoadType(), segment.getLength());
+				if (segments != null) {
+					addSegment(segments, segment.getPoint1(), segment);
+					addSegment(segments, segment.getPoint2(), segment);
+				}
+			}
+		}
+	}
+
+	private static void addSegment(HashMap<GeographicPoint, HashSet<RoadSegment>> segments,
+			GeographicPoint point, RoadSegment segment) {
+		HashSet<RoadSegment> segs = segments.get(point);
+		if (segs == null) {
+			segs = new HashSet<RoadSegment>();
+			segments.put(point, segs);
+		}
+		segs.add(segment);
+	}
+
+	/**
+	 * returns the map as a CompactGraph with road types and geometry, read
+	 * from the snapshot if it is up to date, or parsed and saved otherwise
+	 * @param mapFile the .map file to load
+	 * @return the loaded graph
+	 */
+	public static CompactGraph loadOrBuild(String mapFile) {
+		File source = new File(mapFile);
+		File file = snapshotFile(mapFile);
+		if (file.exists()) {
+			try {
+				CompactGraph graph = read(file, source);
+				if (graph != null) {
+					return graph;
+				}
+			} catch (IOException e) {
+				System.err.println("Problem loading snapshot file: " + file);
+			}
+		}
+
+		MapGraph map = new MapGraph();
+		HashMap<GeographicPoint, HashSet<RoadSegment>> segments =
+				new HashMap<GeographicPoint, HashSet<RoadSegment>>();
+		GraphLoader.loadRoadMap(mapFile, map, segments, null);
+		CompactGraph graph = new CompactGraph(map, segments);
+		try {
+			write(graph, file, source);
+		} catch (IOException e) {
+			System.err.println("Problem saving snapshot file: " + file);
+			e.printStackTrace();
+		}
+		return graph;
+	}
+
+	/**
+	 * Writes a graph that has road types and geometry to a snapshot file
+	 * @param graph the graph to write
+	 * @param file the snapshot file
+	 * @param source the .map file the graph was loaded from
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(CompactGraph graph, File file, File source) throws IOException {
+		if (!graph.hasGeometry()) {
+			throw new IllegalArgumentException("the graph has no road types and geometry");
+		}
+		byte[][] names = encode(graph.nameTable());
+		byte[][] types = encode(graph.typeTable());
+		int n = graph.getNumVertices();
+		int m = graph.getNumEdges();
+		int points = graph.geometryLatitudeArray().length;
+
+		long size = HEADER_BYTES
+				+ 8L * n * 2 + 4L * (n + 1) + 4L * m + 8L * m
+				+ 4L * m * 2 + 4L * (m + 1) + 8L * points * 2
+				+ tableBytes(names) + tableBytes(types);
+
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Graph too large for a snapshot file");
+		}
+
+		// written to a temporary file first so a reader never sees half a
+		// snapshot, and from a heap buffer so the file is not left mapped
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp);
+				FileChannel channel = out.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putLong(source.length()).putLong(source.lastModified());
+			buffer.putInt(n).putInt(m).putInt(points).putInt(names.length).putInt(types.length);
+
+			putDoubles(buffer, graph.latitudeArray());
+			putDoubles(buffer, graph.longitudeArray());
+			putInts(buffer, graph.offsetArray());
+			putInts(buffer, graph.targetArray());
+			putDoubles(buffer, graph.lengthArray());
+			putInts(buffer, graph.nameIdArray());
+			putInts(buffer, graph.typeIdArray());
+			putInts(buffer, graph.geometryOffsetArray());
+			putDoubles(buffer, graph.geometryLatitudeArray());
+			putDoubles(buffer, graph.geometryLongitudeArray());
+			putTable(buffer, names);
+			putTable(buffer, types);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			throw new IOException("Cannot replace snapshot file: " + file);
+		}
+	}
+
+	/**
+	 * Reads a snapshot file written by write
+	 * @param file the snapshot file
+	 * @param source the .map file the snapshot belongs to, or null to skip
+	 *   the freshness check
+	 * @return the graph, or null if the .map file changed since the
+	 *   snapshot was written
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 */
+	public static CompactGraph read(File file, File source) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r");
+				FileChannel channel = in.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < HEADER_BYTES
+					|| buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a snapshot file: " + file);
+			}
+			long sourceLength = buffer.getLong();
+			long sourceModified = buffer.getLong();
+			if (source != null
+					&& (source.length() != sourceLength || source.lastModified() != sourceModified)) {
+				return null;
+			}
+			int n = buffer.getInt();
+			int m = buffer.getInt();
+			int points = buffer.getInt();
+			int numNames = buffer.getInt();
+			int numTypes = buffer.getInt();
+
+			try {
+				double[] latitudes = getDoubles(buffer, n);
+				double[] longitudes = getDoubles(buffer, n);
+				int[] offsets = getInts(buffer, n + 1);
+				int[] targets = getInts(buffer, m);
+				double[] lengths = getDoubles(buffer, m);
+				int[] nameIds = getInts(buffer, m);
+				int[] typeIds = getInts(buffer, m);
+				int[] geometryOffsets = getInts(buffer, m + 1);
+				double[] geometryLatitudes = getDoubles(buffer, points);
+				double[] geometryLongitudes = getDoubles(buffer, points);
+				String[] names = getTable(buffer, numNames);
+				String[] types = getTable(buffer, numTypes);
+				return new CompactGraph(offsets, targets, lengths, latitudes, longitudes,
+						names, nameIds, types, typeIds,
+						geometryOffsets, geometryLatitudes, geometryLongitudes);
+			} catch (RuntimeException e) {
+				// a truncated file or counts that do not fit the arrays
+				throw new IOException("Corrupt snapshot file: " + file, e);
+			}
+		}
+	}
+
+	private static byte[][] encode(String[] table) {
+		byte[][] bytes = new byte[table.length][];
+		for (int i = 0; i < table.length; i++) {
+			bytes[i] = table[i].getBytes(StandardCharsets.UTF_8);
+		}
+		return bytes;
+	}
+
+	private static long tableBytes(byte[][] table) {
+		long size = 0;
+		for (byte[] value : table) {
+			size += 4 + value.length;
+		}
+		return size;
+	}
+
+	private static void putInts(ByteBuffer buffer, int[] values) {
+		buffer.asIntBuffer().put(values);
+		buffer.position(buffer.position() + 4 * values.length);
+	}
+
+	private static void putDoubles(ByteBuffer buffer, double[] values) {
+		buffer.asDoubleBuffer().put(values);
+		buffer.position(buffer.position() + 8 * values.length);
+	}
+
+	private static void putTable(ByteBuffer buffer, byte[][] table) {
+		for (byte[] value : table) {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	private static int[] getInts(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * count);
+		return values;
+	}
+
+	private static double[] getDoubles(ByteBuffer buffer, int count) {
+		double[] values = new double[count];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + 8 * count);
+		return values;
+	}
+
+	private static String[] getTable(ByteBuffer buffer, int count) {
+		String[] table = new String[count];
+		for (int i = 0; i < count; i++) {
+			byte[] value = new byte[buffer.getInt()];
+			buffer.get(value);
+			table[i] = new String(value, StandardCharsets.UTF_8);
+		}
+		return table;
+	}
+
+	public static void main(String[] args)
+	{
+		String[] files = args.length > 0 ? args : new String[] {
+				"data/maps/san_diego.map", "data/maps/hollywood_large.map", "data/maps/new_york.map"};
+		for (String file : files) {
+			snapshotFile(file).delete();
+
+			long begin = System.nanoTime();
+			MapGraph parsed = new MapGraph();
+			GraphLoader.loadRoadMap(file, parsed, new HashMap<GeographicPoint, HashSet<RoadSegment>>(),
+					new HashSet<GeographicPoint>());
+			long parseTime = System.nanoTime() - begin;
+
+			CompactGraph built = loadOrBuild(file);
+
+			begin = System.nanoTime();
+			CompactGraph loaded = loadOrBuild(file);
+			long readTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			MapGraph restored = new MapGraph();
+			loadRoadMap(file, restored, new HashMap<GeographicPoint, HashSet<RoadSegment>>(),
+					new HashSet<GeographicPoint>());
+			long restoreTime = System.nanoTime() - begin;
+
+			System.out.println(file + ": parse " + parseTime / 1000000 + " ms, snapshot "
+					+ readTime / 1000 + " us, snapshot into MapGraph " + restoreTime / 1000000
+					+ " ms, same graph: " + (built.fingerprint() == loaded.fingerprint()
+					&& parsed.toCompactGraph().fingerprint() == restored.toCompactGraph().fingerprint()));
+		}
+	}
+}
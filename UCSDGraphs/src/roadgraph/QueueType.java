@@ -0,0 +1,20 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The priority queues Dijkstra's algorithm and A* can run with.
+ */
+package roadgraph;
+
+public enum QueueType {
+	/**
+	 * java.util.PriorityQueue, a vertex is added again every time its
+	 * distance improves and the stale entries are skipped when polled
+	 */
+	PRIORITY_QUEUE,
+
+	/**
+	 * a 4-ary heap indexed by vertex id with a real decrease-key, every
+	 * vertex is in the queue at most once and nothing is boxed
+	 */
+	INDEXED_HEAP
+}
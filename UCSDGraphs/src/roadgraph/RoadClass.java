@@ -0,0 +1,77 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The class of a road, taken from the road type of the .map files, with
+ * a typical speed on such a road. Edges store the ordinal of their class
+ * so a CompactGraph needs one byte per edge for it.
+ */
+package roadgraph;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+public enum RoadClass {
+	MOTORWAY(110),
+	TRUNK(90),
+	PRIMARY(70),
+	SECONDARY(60),
+	TERTIARY(50),
+	MOTORWAY_LINK(60),
+	TRUNK_LINK(50),
+	PRIMARY_LINK(50),
+	SECONDARY_LINK(40),
+	TERTIARY_LINK(35),
+	UNCLASSIFIED(40),
+	RESIDENTIAL(30),
+	LIVING_STREET(10),
+	/** any road type that is not one of the above */
+	OTHER(30);
+
+	private static final RoadClass[] VALUES = values();
+	private static final HashMap<String, RoadClass> BY_TYPE = new HashMap<>();
+	static {
+		for (RoadClass roadClass : VALUES) {
+			BY_TYPE.put(roadClass.name().toLowerCase(Locale.ROOT), roadClass);
+		}
+	}
+
+	private final double defaultSpeed;
+
+	RoadClass(double defaultSpeed) {
+		this.defaultSpeed = defaultSpeed;
+	}
+
+	/**
+	 * returns the typical speed on this class of road
+	 * @return the speed in km/h
+	 */
+	public double getDefaultSpeed() {
+		return defaultSpeed;
+	}
+
+	/**
+	 * returns the class of a road type as it is written in the .map files,
+	 * for example "residential" or "motorway_link"
+	 * @param roadType the road type
+	 * @return its class, OTHER if the type is unknown or null
+	 */
+	public static RoadClass fromType(String roadType) {
+		if (roadType == null) {
+			return OTHER;
+		}
+		RoadClass roadClass = BY_TYPE.get(roadType);
+		if (roadClass == null) {
+			roadClass = BY_TYPE.get(roadType.toLowerCase(Locale.ROOT));
+		}
+		return roadClass == null ? OTHER : roadClass;
+	}
+
+	/**
+	 * returns the class with the given ordinal, without copying values()
+	 * @param code the ordinal of the class
+	 * @return the class
+	 */
+	public static RoadClass fromCode(int code) {
+		return VALUES[code];
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Remembers the paths found by the searches of a MapGraph, so repeated
+ * queries between the same intersections are answered without searching.
+ * A path is stored as the ids of its vertices and keyed by its start and
+ * goal vertex, the algorithm and the metric.
+ *
+ * The cache is a segmented LRU bounded in bytes: a new path goes to the
+ * probation segment and moves to the protected segment when it is asked
+ * for again, so a burst of one-off queries cannot push out the paths that
+ * are used all the time. Paths that fall out of the protected segment get
+ * one more chance in the probation segment before they are evicted.
+ * The entries are spread over shards with a lock each, so threads rarely
+ * wait for each other.
+ *
+ * Every path is stored with the version of the graph it was found in.
+ * When a newer version is seen the whole cache is dropped, since an added
+ * edge can make any path stale.
+ */
+package roadgraph;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class RouteCache {
+	private static final int SHARDS = 16;
+	// share of the bytes of a shard that the protected segment may use
+	private static final double PROTECTED_SHARE = 0.8;
+	// estimated bytes of an entry besides its path: the key, the array
+	// header and the map entry
+	private static final int ENTRY_OVERHEAD = 112;
+
+	private final long maxBytes;
+	private final Shard[] shards;
+	private volatile long version = -1; // of the graph the paths were found in
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	private final AtomicLong invalidations;
+
+	/**
+	 * Creates an empty cache
+	 * @param maxBytes the most memory the cached paths may use
+	 */
+	public RouteCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		shards = new Shard[SHARDS];
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new Shard(maxBytes / SHARDS);
+		}
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+		invalidations = new AtomicLong();
+	}
+
+	// The query a path answers.
+	private static class Key {
+		final int start;
+		final int goal;
+		final RoutingEngine.Algorithm algorithm;
+		final EdgeMetric metric;
+
+		Key(int start, int goal, RoutingEngine.Algorithm algorithm, EdgeMetric metric) {
+			this.start = start;
+			this.goal = goal;
+			this.algorithm = algorithm;
+			this.metric = metric;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return start == key.start && goal == key.goal && algorithm == key.algorithm
+					&& metric.equals(key.metric);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 31 * start + goal;
+			hash = 31 * hash + algorithm.hashCode();
+			return 31 * hash + metric.hashCode();
+		}
+	}
+
+	/**
+	 * returns the cached path of a query
+	 * @param start id of the start vertex
+	 * @param goal id of the goal vertex
+	 * @param algorithm the search that found the path
+	 * @param metric the metric the search minimised
+	 * @param graphVersion the current version of the graph
+	 * @return the ids of the vertices on the path, an empty array if the
+	 *   search found no path, or null if the query is not cached
+	 */
+	public int[] get(int start, int goal, RoutingEngine.Algorithm algorithm, EdgeMetric metric,
+			long graphVersion) {
+		checkVersion(graphVersion);
+		Key key = new Key(start, goal, Objects.requireNonNull(algorithm),
+				Objects.requireNonNull(metric));
+		int[] path = shardOf(key).get(key);
+		if (path == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return path;
+	}
+
+	/**
+	 * caches the path found for a query
+	 * @param start id of the start vertex
+	 * @param goal id of the goal vertex
+	 * @param algorithm the search that found the path
+	 * @param metric the metric the search minimised
+	 * @param graphVersion the version of the graph the path was found in
+	 * @param path the ids of the vertices on the path, empty if there is
+	 *   none. The array is kept, not copied.
+	 */
+	public void put(int start, int goal, RoutingEngine.Algorithm algorithm, EdgeMetric metric,
+			long graphVersion, int[] path) {
+		checkVersion(graphVersion);
+		if (graphVersion != version) {
+			// found in a version older than the cached paths
+			return;
+		}
+		Key key = new Key(start, goal, Objects.requireNonNull(algorithm),
+				Objects.requireNonNull(metric));
+		shardOf(key).put(key, Objects.requireNonNull(path));
+	}
+
+	// Drops every path when the graph has changed since they were cached.
+	private void checkVersion(long graphVersion) {
+		if (graphVersion > version) {
+			synchronized (this) {
+				if (graphVersion > version) {
+					if (version >= 0) {
+						clear();
+						invalidations.incrementAndGet();
+					}
+					version = graphVersion;
+				}
+			}
+		}
+	}
+
+	private Shard shardOf(Key key) {
+		int hash = key.hashCode();
+		return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+	}
+
+	/** removes every cached path, the counters are kept */
+	public void clear() {
+		for (Shard shard : shards) {
+			shard.clear();
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * returns the estimated memory used by the cached paths
+	 * @return the size in bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Shard shard : shards) {
+			bytes += shard.getBytes();
+		}
+		return bytes;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * returns the share of the queries the cache could answer
+	 * @return hits / (hits + misses), 0 before the first query
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * returns the number of paths removed to make room for new ones
+	 * @return the number of evictions
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * returns how many times the cache was dropped because the graph changed
+	 * @return the number of invalidations
+	 */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d paths, %d of %d KB, hit rate %.1f%%, %d evictions, %d invalidations",
+				size(), getBytes() / 1024, maxBytes / 1024, 100 * getHitRate(),
+				getEvictionCount(), getInvalidationCount());
+	}
+
+	private static long sizeOf(int[] path) {
+		return ENTRY_OVERHEAD + 4L * path.length;
+	}
+
+	// One part of the cache with its own lock. Both segments are
+	// LinkedHashMaps in access order, least recently used first.
+	private class Shard {
+		final long maxProtectedBytes;
+		final long maxBytes;
+		final LinkedHashMap<Key, int[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+		final LinkedHashMap<Key, int[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+		long probationBytes;
+		long protectedBytes;
+
+		Shard(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+		}
+
+		synchronized int[] get(Key key) {
+			int[] path = protect.get(key);
+			if (path != null) {
+				return path;
+			}
+			path = probation.remove(key);
+			if (path != null) {
+				// asked for again, so it is promoted
+				probationBytes -= sizeOf(path);
+				protect.put(key, path);
+				protectedBytes += sizeOf(path);
+				demote();
+			}
+			return path;
+		}
+
+		synchronized void put(Key key, int[] path) {
+			if (sizeOf(path) > maxBytes) {
+				return;
+			}
+			int[] old = protect.remove(key);
+			if (old != null) {
+				protectedBytes -= sizeOf(old);
+			}
+			old = probation.put(key, path);
+			if (old != null) {
+				probationBytes -= sizeOf(old);
+			}
+			probationBytes += sizeOf(path);
+			evict();
+		}
+
+		// Moves the least recently used protected paths to probation while
+		// the protected segment is over its share.
+		private void demote() {
+			Iterator<Map.Entry<Key, int[]>> oldest = protect.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && oldest.hasNext()) {
+				Map.Entry<Key, int[]> entry = oldest.next();
+				oldest.remove();
+				protectedBytes -= sizeOf(entry.getValue());
+				probation.put(entry.getKey(), entry.getValue());
+				probationBytes += sizeOf(entry.getValue());
+			}
+			evict();
+		}
+
+		// Drops the least recently used probation paths while the shard is
+		// over its size.
+		private void evict() {
+			Iterator<Map.Entry<Key, int[]>> oldest = probation.entrySet().iterator();
+			while (probationBytes + protectedBytes > maxBytes && oldest.hasNext()) {
+				Map.Entry<Key, int[]> entry = oldest.next();
+				oldest.remove();
+				probationBytes -= sizeOf(entry.getValue());
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void clear() {
+			probation.clear();
+			protect.clear();
+			probationBytes = 0;
+			protectedBytes = 0;
+		}
+
+		synchronized long getBytes() {
+			return probationBytes + protectedBytes;
+		}
+
+		synchronized int size() {
+			return probation.size() + protect.size();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/san_diego.map";
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		GeographicPoint[] locations = theMap.getVertices().toArray(new GeographicPoint[0]);
+
+		// a few hot depots and destinations, and a long tail of one-off trips
+		int queries = 20000;
+		Random random = new Random(42);
+		GeographicPoint[] from = new GeographicPoint[queries];
+		GeographicPoint[] to = new GeographicPoint[queries];
+		for (int i = 0; i < queries; i++) {
+			boolean hot = random.nextDouble() < 0.7;
+			from[i] = locations[hot ? random.nextInt(10) : random.nextInt(locations.length)];
+			to[i] = locations[hot ? random.nextInt(50) : random.nextInt(locations.length)];
+		}
+
+		// the searches print the number of visited nodes, which is not wanted here
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		long[] times = new long[2];
+		RouteCache cache = new RouteCache(256 * 1024);
+		for (int pass = 0; pass < 2; pass++) {
+			theMap.setRouteCache(pass == 0 ? null : cache);
+			long begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				theMap.dijkstra(from[i], to[i]);
+			}
+			times[pass] = System.nanoTime() - begin;
+		}
+		System.setOut(out);
+
+		System.out.printf("%s: %.1f us/query without cache, %.1f us/query with cache%n", file,
+				times[0] / 1000.0 / queries, times[1] / 1000.0 / queries);
+		System.out.println("  " + cache);
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Serves many route requests in parallel against one loaded map. The
+ * engine routes on an immutable CompactGraph snapshot, so requests never
+ * share mutable state except for the statistics. Every request borrows
+ * its SearchContexts from a pool of the engine and returns them when it
+ * is done, so a virtual thread that lives for a single request does not
+ * allocate arrays the size of the graph. The pool keeps at most a few
+ * contexts per core, more are only created while more requests run.
+ */
+package roadgraph;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class RoutingEngine {
+	/** The search algorithms the engine can run */
+	public enum Algorithm { BFS, DIJKSTRA, A_STAR }
+
+	private final CompactGraph graph;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final RoutingStats stats;
+
+	// idle search contexts and their number, which is kept at most
+	// maxIdleContexts so a burst of requests does not pin memory
+	private final ConcurrentLinkedQueue<SearchContext[]> idleContexts;
+	private final AtomicInteger numIdleContexts;
+	private final int maxIdleContexts;
+
+	/**
+	 * Creates an engine that routes on a snapshot of the graph with a pool
+	 * of platform threads
+	 * @param graph the graph to route on, later changes to it are not seen
+	 * @param threads the number of worker threads
+	 */
+	public RoutingEngine(MapGraph graph, int threads) {
+		this(graph.toCompactGraph(), Executors.newFixedThreadPool(threads), true);
+	}
+
+	/**
+	 * Creates an engine that runs its requests on the given executor, for
+	 * example one from newVirtualThreadExecutor(). The executor is not shut
+	 * down by shutdown().
+	 * @param graph the immutable graph to route on
+	 * @param executor the executor the requests are run on
+	 */
+	public RoutingEngine(CompactGraph graph, ExecutorService executor) {
+		this(graph, executor, false);
+	}
+
+	private RoutingEngine(CompactGraph graph, ExecutorService executor, boolean ownsExecutor) {
+		if (graph == null || executor == null) {
+			throw new IllegalArgumentException("null argument is invalid");
+		}
+		this.graph = graph;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.stats = new RoutingStats();
+		this.idleContexts = new ConcurrentLinkedQueue<>();
+		this.numIdleContexts = new AtomicInteger();
+		this.maxIdleContexts = 2 * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * returns an executor that starts a virtual thread for every task when
+	 * the JVM supports them (Java 21 and later), or a fixed pool with one
+	 * platform thread per core otherwise. The tasks of an engine reuse the
+	 * search contexts of its pool on either kind of thread.
+	 * @return a new executor
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	public CompactGraph getGraph() {
+		return graph;
+	}
+
+	public RoutingStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Finds the path from start to goal on the calling thread and records
+	 * its latency
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param algorithm The search to run
+	 * @return The list of intersections that form the path from start to
+	 *   goal, or null if there is none
+	 */
+	public List<GeographicPoint> route(GeographicPoint start, GeographicPoint goal,
+			Algorithm algorithm) {
+		long begin = System.nanoTime();
+		SearchContext[] contexts = borrowContexts();
+		SearchContext[] previous = SearchContext.lend(contexts);
+		List<GeographicPoint> path;
+		try {
+			switch (algorithm) {
+			case BFS:
+				path = graph.bfs(start, goal);
+				break;
+			case A_STAR:
+				path = graph.aStarSearch(start, goal);
+				break;
+			default:
+				path = graph.dijkstra(start, goal);
+			}
+		} finally {
+			SearchContext.restore(previous);
+			returnContexts(contexts);
+		}
+		stats.record(System.nanoTime() - begin, path != null);
+		return path;
+	}
+
+	// Idle contexts of the pool, or new ones if all are in use.
+	private SearchContext[] borrowContexts() {
+		SearchContext[] contexts = idleContexts.poll();
+		if (contexts == null) {
+			return SearchContext.newSlots();
+		}
+		numIdleContexts.decrementAndGet();
+		return contexts;
+	}
+
+	// Puts contexts back into the pool unless it is full.
+	private void returnContexts(SearchContext[] contexts) {
+		if (numIdleContexts.incrementAndGet() <= maxIdleContexts) {
+			idleContexts.offer(contexts);
+		} else {
+			numIdleContexts.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Finds the path from start to goal on one of the engine's threads
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param algorithm The search to run
+	 * @return the future path, null if there is none
+	 */
+	public Future<List<GeographicPoint>> submit(final GeographicPoint start,
+			final GeographicPoint goal, final Algorithm algorithm) {
+		return executor.submit(new Callable<List<GeographicPoint>>() {
+			@Override
+			public List<GeographicPoint> call() {
+				return route(start, goal, algorithm);
+			}
+		});
+	}
+
+	/**
+	 * Routes every pair in parallel and waits for all of them
+	 * @param starts the starting locations
+	 * @param goals the goal locations, goals[i] belongs to starts[i]
+	 * @param algorithm The search to run
+	 * @return the paths in the same order as the pairs
+	 * @throws InterruptedException if the caller is interrupted while waiting
+	 */
+	public List<List<GeographicPoint>> routeAll(GeographicPoint[] starts,
+			GeographicPoint[] goals, Algorithm algorithm) throws InterruptedException {
+		if (starts.length != goals.length) {
+			throw new IllegalArgumentException("starts and goals must have the same length");
+		}
+		List<Future<List<GeographicPoint>>> futures = new ArrayList<>(starts.length);
+		for (int i = 0; i < starts.length; i++) {
+			futures.add(submit(starts[i], goals[i], algorithm));
+		}
+
+		List<List<GeographicPoint>> paths = new ArrayList<>(starts.length);
+		for (Future<List<GeographicPoint>> future : futures) {
+			try {
+				paths.add(future.get());
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("route request failed", e.getCause());
+			}
+		}
+		return paths;
+	}
+
+	/** Stops the worker threads if the engine created them */
+	public void shutdown() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String[] files = args.length > 0 ? args
+				: new String[] {"data/maps/san_diego.map", "data/maps/hollywood_large.map"};
+		int cores = Runtime.getRuntime().availableProcessors();
+		int queries = 20000;
+
+		for (String file : files) {
+			MapGraph theMap = new MapGraph();
+			GraphLoader.loadRoadMap(file, theMap);
+			CompactGraph snapshot = theMap.toCompactGraph();
+
+			Random random = new Random(42);
+			GeographicPoint[] starts = new GeographicPoint[queries];
+			GeographicPoint[] goals = new GeographicPoint[queries];
+			for (int i = 0; i < queries; i++) {
+				starts[i] = snapshot.getLocation(random.nextInt(snapshot.getNumVertices()));
+				goals[i] = snapshot.getLocation(random.nextInt(snapshot.getNumVertices()));
+			}
+
+			System.out.println(file + " (" + snapshot.getNumVertices() + " vertices)");
+			for (int threads = 1; threads <= cores; threads *= 2) {
+				ExecutorService executor = Executors.newFixedThreadPool(threads);
+				RoutingEngine engine = new RoutingEngine(snapshot, executor);
+				// warm up the JIT before measuring
+				engine.routeAll(starts, goals, Algorithm.DIJKSTRA);
+				engine.getStats().reset();
+				engine.routeAll(starts, goals, Algorithm.DIJKSTRA);
+				System.out.println("  " + threads + " threads: " + engine.getStats());
+				executor.shutdown();
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+
+			// a thread per request, where the contexts come from the pool
+			ExecutorService executor = newVirtualThreadExecutor();
+			RoutingEngine engine = new RoutingEngine(snapshot, executor);
+			engine.routeAll(starts, goals, Algorithm.DIJKSTRA);
+			engine.getStats().reset();
+			engine.routeAll(starts, goals, Algorithm.DIJKSTRA);
+			System.out.println("  newVirtualThreadExecutor: " + engine.getStats());
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+}
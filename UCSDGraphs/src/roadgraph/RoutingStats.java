@@ -0,0 +1,147 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Counts the queries served by a RoutingEngine and keeps a histogram of
+ * their latencies. The histogram has 16 linear sub buckets for every power
+ * of two of nanoseconds, so the reported percentiles are within about 6%
+ * of the real value, and recording a query is a couple of atomic adds.
+ */
+package roadgraph;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RoutingStats {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray histogram;
+	private final AtomicLong queries;
+	private final AtomicLong failures;
+	private final AtomicLong totalNanos;
+	private volatile long startNanos;
+
+	public RoutingStats() {
+		histogram = new AtomicLongArray(BUCKETS);
+		queries = new AtomicLong();
+		failures = new AtomicLong();
+		totalNanos = new AtomicLong();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * records one finished query
+	 * @param nanos how long the query took
+	 * @param found false if no path was found
+	 */
+	public void record(long nanos, boolean found) {
+		histogram.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+		totalNanos.addAndGet(nanos);
+		queries.incrementAndGet();
+		if (!found) {
+			failures.incrementAndGet();
+		}
+	}
+
+	/** forgets all the recorded queries and restarts the throughput clock */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram.set(i, 0);
+		}
+		queries.set(0);
+		failures.set(0);
+		totalNanos.set(0);
+		startNanos = System.nanoTime();
+	}
+
+	public long getQueryCount() {
+		return queries.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * returns the number of queries per second since the stats were created
+	 * or last reset
+	 * @return the throughput in queries per second
+	 */
+	public double getThroughput() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0 : queries.get() * 1e9 / elapsed;
+	}
+
+	/**
+	 * returns the mean latency of the recorded queries
+	 * @return the mean latency in microseconds
+	 */
+	public double getMeanLatencyMicros() {
+		long count = queries.get();
+		return count == 0 ? 0 : totalNanos.get() / 1000.0 / count;
+	}
+
+	/**
+	 * returns the latency below which the given fraction of queries finished
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in microseconds
+	 */
+	public double getPercentileMicros(double percentile) {
+		long count = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = histogram.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] > 0) {
+				return upperBoundOf(i) / 1000.0;
+			}
+		}
+		return upperBoundOf(BUCKETS - 1) / 1000.0;
+	}
+
+	public double getP50Micros() {
+		return getPercentileMicros(50);
+	}
+
+	public double getP99Micros() {
+		return getPercentileMicros(99);
+	}
+
+	// Values below SUB_BUCKETS get a bucket each, larger values are split by
+	// their highest bit and the SUB_BUCKET_BITS bits below it.
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int highBit = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = highBit - SUB_BUCKET_BITS;
+		int sub = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	// The largest value that falls into the bucket.
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	public String toString() {
+		return String.format("%d queries, %.0f queries/s, mean %.1f us, p50 %.1f us, p99 %.1f us",
+				getQueryCount(), getThroughput(), getMeanLatencyMicros(),
+				getP50Micros(), getP99Micros());
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The state of one shortest path query: the tentative distance and parent
+ * of every vertex, which vertices are settled, and the priority queue.
+ * Instead of clearing the arrays before every query each entry carries the
+ * generation it was written in, so starting a new query is O(1) and a
+ * query only pays for the vertices it touches. Contexts are pooled per
+ * thread, which lets several threads search the same graph at once, and
+ * can be lent to short lived threads from a shared pool.
+ * The queue is either a java.util.PriorityQueue with stale entries or an
+ * IndexedMinHeap with decrease-key, see QueueType.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+class SearchContext {
+	/** slot of the context used by one directional searches and forward searches */
+	static final int FORWARD = 0;
+	/** slot of the context used by the backward half of a bidirectional search */
+	static final int BACKWARD = 1;
+
+	// the contexts of every thread, created on first use unless the thread
+	// was lent some with lend()
+	private static final ThreadLocal<SearchContext[]> POOL = new ThreadLocal<>();
+
+	private double[] distance;
+	private int[] parent;
+	private int[] stamp; // generation in which distance and parent were written
+	private int[] settled; // generation in which the vertex was settled
+	private int generation;
+
+	private int[] fifo; // queue used by breadth first search
+	private final PriorityQueue<QueueEntry> queue;
+	private IndexedMinHeap heap;
+	private QueueType queueType;
+	private int pollCount; // entries taken out of the queue in this query
+
+	SearchContext() {
+		distance = new double[0];
+		parent = new int[0];
+		stamp = new int[0];
+		settled = new int[0];
+		fifo = new int[0];
+		generation = 0;
+		queue = new PriorityQueue<>();
+		heap = new IndexedMinHeap(0);
+		queueType = QueueType.INDEXED_HEAP;
+	}
+
+	/**
+	 * returns the context of the calling thread, ready for a new query
+	 * that uses an indexed heap
+	 * @param numVertices number of vertices of the graph that is searched
+	 * @return an empty search context
+	 */
+	static SearchContext acquire(int numVertices) {
+		return acquire(numVertices, QueueType.INDEXED_HEAP);
+	}
+
+	/**
+	 * returns the context of the calling thread, ready for a new query
+	 * @param numVertices number of vertices of the graph that is searched
+	 * @param queueType the priority queue the query uses
+	 * @return an empty search context
+	 */
+	static SearchContext acquire(int numVertices, QueueType queueType) {
+		return acquire(numVertices, queueType, FORWARD);
+	}
+
+	/**
+	 * returns one of the contexts of the calling thread, ready for a new
+	 * query. Searches that need two contexts at once, like bidirectional
+	 * searches, use the FORWARD and the BACKWARD slot.
+	 * @param numVertices number of vertices of the graph that is searched
+	 * @param queueType the priority queue the query uses
+	 * @param slot FORWARD or BACKWARD
+	 * @return an empty search context
+	 */
+	static SearchContext acquire(int numVertices, QueueType queueType, int slot) {
+		SearchContext[] slots = POOL.get();
+		if (slots == null) {
+			slots = newSlots();
+			POOL.set(slots);
+		}
+		SearchContext context = slots[slot];
+		context.reset(numVertices, queueType);
+		return context;
+	}
+
+	/**
+	 * returns a new set of contexts, one for every slot, to be lent to
+	 * threads with lend()
+	 * @return the contexts, indexed by slot
+	 */
+	static SearchContext[] newSlots() {
+		return new SearchContext[] { new SearchContext(), new SearchContext() };
+	}
+
+	/**
+	 * makes acquire() on the calling thread return the given contexts until
+	 * restore() is called. Threads that only live for one task, like
+	 * virtual threads, borrow contexts this way from a shared pool, since
+	 * contexts of their own would be allocated for every task.
+	 * @param slots contexts from newSlots(), used by one thread at a time
+	 * @return the contexts the thread used before, to pass to restore()
+	 */
+	static SearchContext[] lend(SearchContext[] slots) {
+		SearchContext[] previous = POOL.get();
+		POOL.set(slots);
+		return previous;
+	}
+
+	/**
+	 * gives the calling thread back the contexts it used before lend()
+	 * @param previous the value lend() returned
+	 */
+	static void restore(SearchContext[] previous) {
+		if (previous == null) {
+			POOL.remove();
+		} else {
+			POOL.set(previous);
+		}
+	}
+
+	/**
+	 * forgets the previous query, growing the arrays when the graph has
+	 * more vertices than the last one searched with this context
+	 * @param numVertices number of vertices of the graph that is searched
+	 * @param type the priority queue the next query uses
+	 */
+	void reset(int numVertices, QueueType type) {
+		if (numVertices > stamp.length) {
+			int capacity = Math.max(numVertices, stamp.length * 3 / 2);
+			distance = new double[capacity];
+			parent = new int[capacity];
+			stamp = new int[capacity];
+			settled = new int[capacity];
+			fifo = new int[capacity];
+			heap = new IndexedMinHeap(capacity);
+			generation = 0;
+		}
+		queue.clear();
+		heap.clear();
+		queueType = type;
+		pollCount = 0;
+
+		generation++;
+		if (generation == Integer.MAX_VALUE) {
+			// the stamps would become ambiguous after the overflow
+			Arrays.fill(stamp, 0);
+			Arrays.fill(settled, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * returns the tentative distance of a vertex in the current query
+	 * @param v id of the vertex
+	 * @return the distance or Double.MAX_VALUE if v has not been reached
+	 */
+	double getDistance(int v) {
+		return stamp[v] == generation ? distance[v] : Double.MAX_VALUE;
+	}
+
+	/**
+	 * returns the vertex from which v was reached in the current query
+	 * @param v id of the vertex
+	 * @return the parent of v or -1 if v is the start or was not reached
+	 */
+	int getParent(int v) {
+		return stamp[v] == generation ? parent[v] : -1;
+	}
+
+	boolean isReached(int v) {
+		return stamp[v] == generation;
+	}
+
+	/**
+	 * records that v can be reached with the given distance via parentId
+	 * @param v id of the vertex
+	 * @param dist the new tentative distance of v
+	 * @param parentId id of the previous vertex on the path, -1 for the start
+	 */
+	void update(int v, double dist, int parentId) {
+		distance[v] = dist;
+		parent[v] = parentId;
+		stamp[v] = generation;
+	}
+
+	boolean isSettled(int v) {
+		return settled[v] == generation;
+	}
+
+	void settle(int v) {
+		settled[v] = generation;
+	}
+
+	/**
+	 * returns the array used as the queue of a breadth first search, it is
+	 * long enough to hold every vertex once
+	 * @return the queue array, its content is not cleared between queries
+	 */
+	int[] getFifo() {
+		return fifo;
+	}
+
+	/**
+	 * adds v to the queue, or lowers its priority if the queue supports
+	 * decrease-key and v is already in it
+	 * @param v id of the vertex
+	 * @param priority the priority of v
+	 */
+	void push(int v, double priority) {
+		if (queueType == QueueType.INDEXED_HEAP) {
+			heap.push(v, priority);
+		} else {
+			queue.add(new QueueEntry(v, priority));
+		}
+	}
+
+	boolean isQueueEmpty() {
+		return queueType == QueueType.INDEXED_HEAP ? heap.isEmpty() : queue.isEmpty();
+	}
+
+	/**
+	 * removes the entry with the lowest priority. With a PriorityQueue the
+	 * same vertex can be pushed more than once, so callers skip vertices
+	 * that are already settled
+	 * @return id of the vertex with the lowest priority
+	 */
+	int poll() {
+		pollCount++;
+		return queueType == QueueType.INDEXED_HEAP ? heap.poll() : queue.poll().vertex;
+	}
+
+	/**
+	 * returns the lowest priority in the queue without removing it
+	 * @return the priority of the next vertex poll() returns
+	 */
+	double peekPriority() {
+		return queueType == QueueType.INDEXED_HEAP ? heap.peekKey() : queue.peek().priority;
+	}
+
+	/**
+	 * returns how many entries were taken out of the queue in this query,
+	 * including the stale ones
+	 * @return the number of polls since the last reset
+	 */
+	int getPollCount() {
+		return pollCount;
+	}
+
+	// An entry of the priority queue
+	private static class QueueEntry implements Comparable<QueueEntry> {
+		private final int vertex;
+		private final double priority;
+
+		QueueEntry(int vertex, double priority) {
+			this.vertex = vertex;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(QueueEntry other) {
+			return Double.compare(priority, other.priority);
+		}
+	}
+}
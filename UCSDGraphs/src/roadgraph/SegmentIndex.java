@@ -0,0 +1,386 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * An R-tree over the road geometry of a CompactGraph, for snapping a
+ * location to the closest point on any road. Every edge is a polyline from
+ * its start vertex through its geometry points to its end vertex, and the
+ * tree indexes the straight pieces of all polylines.
+ *
+ * The tree is bulk loaded with Sort-Tile-Recursive packing and stored
+ * implicitly: the pieces are sorted so that every leaf holds NODE_SIZE
+ * consecutive pieces, and every higher level holds NODE_SIZE consecutive
+ * nodes of the level below, so only the bounding boxes of the nodes are
+ * stored. The pieces themselves are read from the graph arrays. Sorting
+ * and computing the boxes run on all cores.
+ *
+ * Distances are measured in the same flat projection as VertexIndex.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+
+public class SegmentIndex {
+	private static final int NODE_SIZE = 16;
+
+	private final CompactGraph graph;
+	private final double lonScale;
+
+	// piece p is piece p - firstPiece[pieceEdge[p]] of the polyline of its edge
+	private final int[] firstPiece; // of every edge, length m + 1
+	private final int[] pieces; // piece ids in tree order
+
+	// bounding boxes of the nodes of every level above the pieces, level 1
+	// are the leaves, the last level is the root
+	private final double[][] minX;
+	private final double[][] minY;
+	private final double[][] maxX;
+	private final double[][] maxY;
+
+	/**
+	 * Builds the index over the road geometry of a graph, or over straight
+	 * edges if the graph has no geometry
+	 * @param graph the graph to index
+	 */
+	public SegmentIndex(CompactGraph graph) {
+		this.graph = graph;
+		int m = graph.getNumEdges();
+		int n = graph.getNumVertices();
+		double minLat = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		for (int v = 0; v < n; v++) {
+			minLat = Math.min(minLat, graph.getLatitude(v));
+			maxLat = Math.max(maxLat, graph.getLatitude(v));
+		}
+		lonScale = n == 0 ? 1 : Math.cos(Math.toRadians((minLat + maxLat) / 2));
+
+		int[] geometryOffsets = graph.geometryOffsetArray();
+		firstPiece = new int[m + 1];
+		for (int e = 0; e < m; e++) {
+			int points = geometryOffsets == null ? 0 : geometryOffsets[e + 1] - geometryOffsets[e];
+			firstPiece[e + 1] = firstPiece[e] + points + 1;
+		}
+		int numPieces = firstPiece[m];
+		pieces = sortTileRecursive(numPieces);
+
+		// the leaves, then every level up to the root
+		int levels = 1;
+		for (int count = numPieces; count > NODE_SIZE; count = (count + NODE_SIZE - 1) / NODE_SIZE) {
+			levels++;
+		}
+		minX = new double[levels][];
+		minY = new double[levels][];
+		maxX = new double[levels][];
+		maxY = new double[levels][];
+		int below = numPieces;
+		for (int level = 0; level < levels; level++) {
+			int count = Math.max(1, (below + NODE_SIZE - 1) / NODE_SIZE);
+			minX[level] = new double[count];
+			minY[level] = new double[count];
+			maxX[level] = new double[count];
+			maxY[level] = new double[count];
+			final int l = level;
+			final int childCount = below;
+			IntStream.range(0, count).parallel().forEach(i -> computeBox(l, i, childCount));
+			below = count;
+		}
+	}
+
+	// Sort-Tile-Recursive: sorts the pieces by the x of their center into
+	// vertical slices of about sqrt(leaves) leaves each, then every slice by y.
+	private int[] sortTileRecursive(int numPieces) {
+		double[] cx = new double[numPieces];
+		double[] cy = new double[numPieces];
+		IntStream.range(0, graph.getNumEdges()).parallel().forEach(e -> {
+			for (int p = firstPiece[e]; p < firstPiece[e + 1]; p++) {
+				int k = p - firstPiece[e];
+				cx[p] = (x(e, k) + x(e, k + 1)) / 2;
+				cy[p] = (y(e, k) + y(e, k + 1)) / 2;
+			}
+		});
+
+		long[] keys = new long[numPieces];
+		fillKeys(keys, cx, 0, numPieces, null);
+		Arrays.parallelSort(keys);
+		int[] order = new int[numPieces];
+		for (int i = 0; i < numPieces; i++) {
+			order[i] = (int) keys[i];
+		}
+
+		int leaves = (numPieces + NODE_SIZE - 1) / NODE_SIZE;
+		int slices = Math.max(1, (int) Math.ceil(Math.sqrt(leaves)));
+		int sliceSize = ((leaves + slices - 1) / slices) * NODE_SIZE;
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			int from = Math.min(numPieces, s * sliceSize);
+			int to = Math.min(numPieces, from + sliceSize);
+			fillKeys(keys, cy, from, to, order);
+			Arrays.sort(keys, from, to);
+			for (int i = from; i < to; i++) {
+				order[i] = (int) keys[i];
+			}
+		});
+		return order;
+	}
+
+	// keys[i] holds the coordinate of piece ids[i] (or i) in its high bits,
+	// as an order preserving integer, and the piece id in its low bits.
+	private static void fillKeys(long[] keys, double[] coordinate, int from, int to, int[] ids) {
+		for (int i = from; i < to; i++) {
+			int piece = ids == null ? i : ids[i];
+			keys[i] = ((long) sortable((float) coordinate[piece]) << 32) | piece;
+		}
+	}
+
+	// An int with the same order as the float, for sorting.
+	private static int sortable(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits < 0 ? bits ^ Integer.MAX_VALUE : bits;
+	}
+
+	private void computeBox(int level, int node, int childCount) {
+		double x0 = Double.MAX_VALUE;
+		double y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE;
+		double y1 = -Double.MAX_VALUE;
+		int end = Math.min(childCount, (node + 1) * NODE_SIZE);
+		for (int c = node * NODE_SIZE; c < end; c++) {
+			if (level == 0) {
+				int p = pieces[c];
+				int e = edgeOf(p);
+				int k = p - firstPiece[e];
+				x0 = Math.min(x0, Math.min(x(e, k), x(e, k + 1)));
+				x1 = Math.max(x1, Math.max(x(e, k), x(e, k + 1)));
+				y0 = Math.min(y0, Math.min(y(e, k), y(e, k + 1)));
+				y1 = Math.max(y1, Math.max(y(e, k), y(e, k + 1)));
+			} else {
+				x0 = Math.min(x0, minX[level - 1][c]);
+				y0 = Math.min(y0, minY[level - 1][c]);
+				x1 = Math.max(x1, maxX[level - 1][c]);
+				y1 = Math.max(y1, maxY[level - 1][c]);
+			}
+		}
+		minX[level][node] = x0;
+		minY[level][node] = y0;
+		maxX[level][node] = x1;
+		maxY[level][node] = y1;
+	}
+
+	// The edge a piece belongs to, by binary search in firstPiece.
+	private int edgeOf(int piece) {
+		int lo = 0;
+		int hi = firstPiece.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstPiece[mid] <= piece) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	// Projected coordinates of point k of the polyline of edge e, point 0 is
+	// the start vertex and the last point the end vertex.
+	private double x(int e, int k) {
+		return lonScale * coordinate(e, k, false);
+	}
+
+	private double y(int e, int k) {
+		return coordinate(e, k, true);
+	}
+
+	private double coordinate(int e, int k, boolean latitude) {
+		if (k == 0) {
+			int v = graph.getEdgeSource(e);
+			return latitude ? graph.getLatitude(v) : graph.getLongitude(v);
+		}
+		if (k == firstPiece[e + 1] - firstPiece[e]) {
+			int v = graph.getEdgeTarget(e);
+			return latitude ? graph.getLatitude(v) : graph.getLongitude(v);
+		}
+		int i = graph.geometryOffsetArray()[e] + k - 1;
+		return latitude ? graph.geometryLatitudeArray()[i] : graph.geometryLongitudeArray()[i];
+	}
+
+	public int getNumPieces() {
+		return pieces.length;
+	}
+
+	/**
+	 * approximate number of bytes used by the index, the geometry itself is
+	 * part of the graph
+	 * @return the size of the index in bytes
+	 */
+	public long getMemoryFootprint() {
+		long bytes = 4L * firstPiece.length + 4L * pieces.length;
+		for (double[] level : minX) {
+			bytes += 4 * 8L * level.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * finds the closest point on any road to a location
+	 * @param location any location
+	 * @return the position on the closest edge, or null if the graph has no
+	 *   edges
+	 */
+	public EdgePosition snap(GeographicPoint location) {
+		return snap(location.getX(), location.getY());
+	}
+
+	/**
+	 * finds the closest point on any road to a location
+	 * @param latitude latitude of the location
+	 * @param longitude longitude of the location
+	 * @return the position on the closest edge, or null if the graph has no
+	 *   edges
+	 */
+	public EdgePosition snap(double latitude, double longitude) {
+		if (pieces.length == 0) {
+			return null;
+		}
+		Nearest nearest = new Nearest(longitude * lonScale, latitude);
+		search(minX.length - 1, 0, nearest);
+
+		int e = edgeOf(nearest.piece);
+		int k = nearest.piece - firstPiece[e];
+		// the fraction is measured along the polyline
+		double before = 0;
+		double total = 0;
+		for (int i = 0; i < firstPiece[e + 1] - firstPiece[e]; i++) {
+			double length = Math.hypot(x(e, i + 1) - x(e, i), y(e, i + 1) - y(e, i));
+			if (i < k) {
+				before += length;
+			} else if (i == k) {
+				before += nearest.t * length;
+			}
+			total += length;
+		}
+		double fraction = total == 0 ? 0 : before / total;
+		double snappedLat = y(e, k) + nearest.t * (y(e, k + 1) - y(e, k));
+		double snappedLon = (x(e, k) + nearest.t * (x(e, k + 1) - x(e, k))) / lonScale;
+		return new EdgePosition(e, fraction, graph.findReverseEdge(e),
+				new GeographicPoint(snappedLat, snappedLon),
+				GeographicPoint.distance(latitude, longitude, snappedLat, snappedLon));
+	}
+
+	// The closest piece found so far and where on it the closest point is.
+	private static class Nearest {
+		final double x;
+		final double y;
+		int piece = -1;
+		double t;
+		double distance = Double.MAX_VALUE; // squared, in projected units
+
+		Nearest(double x, double y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	// Depth first branch and bound, children closest to the location first.
+	private void search(int level, int node, Nearest nearest) {
+		int childCount = level == 0 ? pieces.length : minX[level - 1].length;
+		int from = node * NODE_SIZE;
+		int to = Math.min(childCount, from + NODE_SIZE);
+		if (level == 0) {
+			for (int c = from; c < to; c++) {
+				offerPiece(pieces[c], nearest);
+			}
+			return;
+		}
+
+		// sort the children by the distance to their box, packed with their
+		// index so a primitive sort does it
+		long[] order = new long[to - from];
+		for (int c = from; c < to; c++) {
+			double d = boxDistance(level - 1, c, nearest.x, nearest.y);
+			order[c - from] = (Double.doubleToLongBits(d) & ~0xFFFFL) | (c - from);
+		}
+		Arrays.sort(order);
+		for (long entry : order) {
+			int c = from + (int) (entry & 0xFFFF);
+			if (boxDistance(level - 1, c, nearest.x, nearest.y) >= nearest.distance) {
+				break;
+			}
+			search(level - 1, c, nearest);
+		}
+	}
+
+	private double boxDistance(int level, int node, double x, double y) {
+		double dx = Math.max(0, Math.max(minX[level][node] - x, x - maxX[level][node]));
+		double dy = Math.max(0, Math.max(minY[level][node] - y, y - maxY[level][node]));
+		return dx * dx + dy * dy;
+	}
+
+	// Projects the location onto a piece and keeps it if it is closer.
+	private void offerPiece(int piece, Nearest nearest) {
+		int e = edgeOf(piece);
+		int k = piece - firstPiece[e];
+		double x0 = x(e, k);
+		double y0 = y(e, k);
+		double dx = x(e, k + 1) - x0;
+		double dy = y(e, k + 1) - y0;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = lengthSquared == 0 ? 0
+				: ((nearest.x - x0) * dx + (nearest.y - y0) * dy) / lengthSquared;
+		t = Math.max(0, Math.min(1, t));
+		double px = x0 + t * dx - nearest.x;
+		double py = y0 + t * dy - nearest.y;
+		double distance = px * px + py * py;
+		if (distance < nearest.distance) {
+			nearest.distance = distance;
+			nearest.piece = piece;
+			nearest.t = t;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		CompactGraph graph = MapSnapshot.loadOrBuild(file);
+
+		long begin = System.nanoTime();
+		SegmentIndex index = new SegmentIndex(graph);
+		long buildTime = System.nanoTime() - begin;
+		System.out.println(file + ": " + index.getNumPieces() + " road pieces indexed in "
+				+ buildTime / 1000 + " us, " + index.getMemoryFootprint() / 1024 + " KB");
+
+		int queries = 20000;
+		Random random = new Random(42);
+		GeographicPoint[] points = new GeographicPoint[queries];
+		for (int i = 0; i < queries; i++) {
+			int v = random.nextInt(graph.getNumVertices());
+			points[i] = new GeographicPoint(graph.getLatitude(v) + (random.nextDouble() - 0.5) * 0.005,
+					graph.getLongitude(v) + (random.nextDouble() - 0.5) * 0.005);
+		}
+		EdgePosition[] snapped = new EdgePosition[queries];
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the JIT
+			begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				snapped[i] = index.snap(points[i]);
+			}
+			if (pass == 1) {
+				System.out.printf("  snap: %.2f us/query%n", (System.nanoTime() - begin) / 1000.0 / queries);
+			}
+		}
+
+		begin = System.nanoTime();
+		int found = 0;
+		for (int i = 0; i + 1 < queries; i += 2) {
+			List<GeographicPoint> path = graph.dijkstra(snapped[i], snapped[i + 1]);
+			if (path != null) {
+				found++;
+			}
+		}
+		System.out.printf("  mid-block routes: %d of %d found, %.1f us/route%n", found, queries / 2,
+				(System.nanoTime() - begin) / 1000.0 / (queries / 2));
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The strongly connected components of a road graph, with a summary of
+ * which components can reach which. One-way streets split a map into a
+ * large component and many small ones that can be entered but not left,
+ * or left but not entered. Without this index a search between them
+ * explores everything the start can reach before it gives up.
+ *
+ * The components are found with Tarjan's algorithm, run with an explicit
+ * stack so that long chains of roads cannot overflow the call stack.
+ * Tarjan finds the components in reverse topological order, so an edge
+ * between two components always leads to one with a lower id. The
+ * components and the edges between them form a DAG, the condensation,
+ * and for every component the set of components it can reach is kept as
+ * a bit set when they fit in memory. Otherwise reachability is answered
+ * by a search of the condensation, which is much smaller than the graph.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+public class StronglyConnectedComponents {
+	// the largest reachability bit sets kept, in longs (16 MB)
+	private static final long MAX_CLOSURE_WORDS = 1 << 21;
+
+	private final int numVertices;
+	private final int numComponents;
+	private final int[] component; // of every vertex
+	private final int[] sizes; // number of vertices of every component
+	private final int largest; // the component with the most vertices
+
+	// the condensation: edges c -> d between components, stored at c
+	private final int[] dagOffsets;
+	private final int[] dagTargets;
+
+	// bit d of row c, at closure[c * words + d / 64], is set if component c
+	// can reach component d. Null if there are too many components.
+	private final long[] closure;
+	private final int words;
+
+	/**
+	 * Finds the components of a graph given as adjacency arrays
+	 * @param offsets first edge of every vertex, length n + 1
+	 * @param targets end vertex of every edge
+	 */
+	StronglyConnectedComponents(int[] offsets, int[] targets) {
+		numVertices = offsets.length - 1;
+		component = new int[numVertices];
+		numComponents = tarjan(offsets, targets);
+
+		sizes = new int[numComponents];
+		for (int v = 0; v < numVertices; v++) {
+			sizes[component[v]]++;
+		}
+		int big = 0;
+		for (int c = 1; c < numComponents; c++) {
+			if (sizes[c] > sizes[big]) {
+				big = c;
+			}
+		}
+		largest = big;
+
+		// the edges between components, without repeats
+		int[] count = new int[numComponents + 1];
+		int[] last = new int[numComponents];
+		Arrays.fill(last, -1);
+		int[] byComponent = verticesByComponent();
+		IntList edges = new IntList();
+		for (int c = 0, i = 0; c < numComponents; c++) {
+			count[c] = edges.size();
+			for (int end = i + sizes[c]; i < end; i++) {
+				int v = byComponent[i];
+				for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+					int d = component[targets[e]];
+					if (d != c && last[d] != c) {
+						last[d] = c;
+						edges.add(d);
+					}
+				}
+			}
+		}
+		count[numComponents] = edges.size();
+		dagOffsets = count;
+		dagTargets = edges.toArray();
+
+		words = (numComponents + 63) >>> 6;
+		if ((long) numComponents * words <= MAX_CLOSURE_WORDS) {
+			// every component reaches only lower ids, which are done first
+			closure = new long[numComponents * words];
+			for (int c = 0; c < numComponents; c++) {
+				int row = c * words;
+				closure[row + (c >>> 6)] |= 1L << c;
+				for (int i = dagOffsets[c]; i < dagOffsets[c + 1]; i++) {
+					int other = dagTargets[i] * words;
+					for (int w = 0, end = (dagTargets[i] >>> 6) + 1; w < end; w++) {
+						closure[row + w] |= closure[other + w];
+					}
+				}
+			}
+		} else {
+			closure = null;
+		}
+	}
+
+	/**
+	 * Finds the components of a compact graph
+	 * @param graph the graph
+	 * @return the components of graph
+	 */
+	public static StronglyConnectedComponents compute(CompactGraph graph) {
+		return new StronglyConnectedComponents(graph.offsetArray(), graph.targetArray());
+	}
+
+	/**
+	 * Finds the components of a graph, with the ids of its nodes
+	 * @param graph the graph
+	 * @return the components of graph
+	 */
+	public static StronglyConnectedComponents compute(MapGraph graph) {
+		int n = graph.getNumVertices();
+		int[] offsets = new int[n + 1];
+		int[] targets = new int[graph.getNumEdges()];
+		int edge = 0;
+		for (int v = 0; v < n; v++) {
+			offsets[v] = edge;
+			for (MapEdges e : graph.getNode(v).getEdges()) {
+				targets[edge++] = graph.getNode(e.getEnd()).getId();
+			}
+		}
+		offsets[n] = edge;
+		return new StronglyConnectedComponents(offsets, targets);
+	}
+
+	// Tarjan's algorithm with the recursion kept in arrays. Fills component
+	// and returns the number of components.
+	private int tarjan(int[] offsets, int[] targets) {
+		int n = numVertices;
+		int[] index = new int[n]; // order of discovery plus one, 0 for not discovered
+		int[] low = new int[n];
+		boolean[] onStack = new boolean[n];
+		int[] stack = new int[n]; // vertices whose component is not known yet
+		int top = 0;
+		int[] callVertex = new int[n]; // the vertices of the simulated calls
+		int[] callEdge = new int[n]; // the next edge every call looks at
+		int discovered = 0;
+		int components = 0;
+
+		for (int root = 0; root < n; root++) {
+			if (index[root] != 0) {
+				continue;
+			}
+			index[root] = low[root] = ++discovered;
+			stack[top++] = root;
+			onStack[root] = true;
+			callVertex[0] = root;
+			callEdge[0] = offsets[root];
+			int depth = 1;
+			while (depth > 0) {
+				int v = callVertex[depth - 1];
+				int e = callEdge[depth - 1];
+				if (e < offsets[v + 1]) {
+					callEdge[depth - 1]++;
+					int w = targets[e];
+					if (index[w] == 0) {
+						index[w] = low[w] = ++discovered;
+						stack[top++] = w;
+						onStack[w] = true;
+						callVertex[depth] = w;
+						callEdge[depth] = offsets[w];
+						depth++;
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+
+				// every edge of v is done, return from its call
+				depth--;
+				if (low[v] == index[v]) {
+					int w;
+					do {
+						w = stack[--top];
+						onStack[w] = false;
+						component[w] = components;
+					} while (w != v);
+					components++;
+				}
+				if (depth > 0) {
+					int parent = callVertex[depth - 1];
+					low[parent] = Math.min(low[parent], low[v]);
+				}
+			}
+		}
+		return components;
+	}
+
+	// The vertices sorted by component.
+	private int[] verticesByComponent() {
+		int[] next = new int[numComponents];
+		for (int c = 1; c < numComponents; c++) {
+			next[c] = next[c - 1] + sizes[c - 1];
+		}
+		int[] vertices = new int[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			vertices[next[component[v]]++] = v;
+		}
+		return vertices;
+	}
+
+	/**
+	 * returns whether there is a path from one vertex to another. Only
+	 * looks at the summary of the components, so it takes constant time
+	 * when the summary fits in memory.
+	 * @param source id of the start vertex
+	 * @param target id of the goal vertex
+	 * @return true if target can be reached from source
+	 */
+	public boolean canReach(int source, int target) {
+		int c = component[source];
+		int d = component[target];
+		if (c == d) {
+			return true;
+		}
+		if (c < d) {
+			// edges between components only lead to lower ids
+			return false;
+		}
+		if (closure != null) {
+			return (closure[c * words + (d >>> 6)] & 1L << d) != 0;
+		}
+		return searchDag(c, d);
+	}
+
+	// Depth first search of the condensation from c for d, skipping the
+	// components with ids below d, which cannot lead to it.
+	private boolean searchDag(int c, int d) {
+		BitSet visited = new BitSet(numComponents);
+		int[] stack = new int[numComponents];
+		int top = 0;
+		stack[top++] = c;
+		visited.set(c);
+		while (top > 0) {
+			int curr = stack[--top];
+			for (int i = dagOffsets[curr]; i < dagOffsets[curr + 1]; i++) {
+				int next = dagTargets[i];
+				if (next == d) {
+					return true;
+				}
+				if (next > d && !visited.get(next)) {
+					visited.set(next);
+					stack[top++] = next;
+				}
+			}
+		}
+		return false;
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	/**
+	 * returns the component of a vertex. The ids are in reverse
+	 * topological order of the condensation: an edge between two
+	 * components leads to the one with the lower id.
+	 * @param v id of the vertex
+	 * @return the id of the component of v
+	 */
+	public int getComponent(int v) {
+		return component[v];
+	}
+
+	/**
+	 * returns the number of vertices of a component
+	 * @param c id of the component
+	 * @return the size of c
+	 */
+	public int getComponentSize(int c) {
+		return sizes[c];
+	}
+
+	/**
+	 * returns the component with the most vertices, on a road map the
+	 * part where every intersection can reach every other
+	 * @return the id of the largest component
+	 */
+	public int getLargestComponent() {
+		return largest;
+	}
+
+	/**
+	 * returns whether a vertex can both reach and be reached from the
+	 * largest component. Preprocessing can leave out the others, such as
+	 * the dead ends of one-way streets, and handle them separately.
+	 * @param v id of the vertex
+	 * @return true if v is in the largest component
+	 */
+	public boolean isInLargestComponent(int v) {
+		return component[v] == largest;
+	}
+
+	/**
+	 * returns the number of edges of the condensation, pairs of components
+	 * joined by at least one road
+	 * @return the number of edges between components
+	 */
+	public int getNumDagEdges() {
+		return dagTargets.length;
+	}
+
+	/**
+	 * returns the components one road away from a component
+	 * @param c id of the component
+	 * @return the ids of the components that c has edges to
+	 */
+	public int[] getDagSuccessors(int c) {
+		return Arrays.copyOfRange(dagTargets, dagOffsets[c], dagOffsets[c + 1]);
+	}
+
+	/**
+	 * returns whether reachability between components is answered from
+	 * precomputed bit sets, false if there were too many components
+	 * @return true if canReach takes constant time
+	 */
+	public boolean hasClosure() {
+		return closure != null;
+	}
+
+	/**
+	 * approximate number of bytes used by the index
+	 * @return the size of the index in bytes
+	 */
+	public long getMemoryFootprint() {
+		return 4L * numVertices + 4L * numComponents + 4L * (dagOffsets.length + dagTargets.length)
+				+ (closure == null ? 0 : 8L * closure.length);
+	}
+
+	public static void main(String[] args)
+	{
+		String[] files = args.length > 0 ? args : new String[] { "data/maps/hollywood_large.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map" };
+		int queries = 20000;
+		for (String file : files) {
+			CompactGraph graph = MapSnapshot.loadOrBuild(file);
+			int n = graph.getNumVertices();
+			long begin = System.nanoTime();
+			StronglyConnectedComponents scc = compute(graph);
+			long buildTime = System.nanoTime() - begin;
+			System.out.printf("%s: %d vertices in %d components, the largest has %d,"
+					+ " %d DAG edges, %d KB, built in %.2f ms%n", file, n, scc.getNumComponents(),
+					scc.getComponentSize(scc.getLargestComponent()), scc.getNumDagEdges(),
+					scc.getMemoryFootprint() / 1024, buildTime / 1e6);
+
+			// checked against a full search, which is what an unreachable
+			// query had to run before
+			Random random = new Random(42);
+			int unreachable = 0;
+			int wrong = 0;
+			long searchTime = 0;
+			long indexTime = 0;
+			for (int i = 0; i < queries; i++) {
+				int source = random.nextInt(n);
+				int target = random.nextInt(n);
+				begin = System.nanoTime();
+				boolean reached = graph.distancesFrom(source)[target] != Double.MAX_VALUE;
+				searchTime += System.nanoTime() - begin;
+				begin = System.nanoTime();
+				boolean canReach = scc.canReach(source, target);
+				indexTime += System.nanoTime() - begin;
+				if (reached != canReach) {
+					wrong++;
+				}
+				if (!reached) {
+					unreachable++;
+				}
+			}
+			System.out.printf("  %d%% of pairs unreachable, rejected in %.2f us instead of %.1f us,"
+					+ " %d wrong%n", 100 * unreachable / queries, indexTime / 1000.0 / queries,
+					searchTime / 1000.0 / queries, wrong);
+		}
+	}
+}
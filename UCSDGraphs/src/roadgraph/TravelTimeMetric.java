@@ -0,0 +1,143 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The time it takes to drive along an edge at the speed of its road
+ * class. The speeds are fixed when the metric is created, since graphs
+ * keep the costs they computed with a metric. Metrics with the same
+ * speeds are equal, so a graph computes the costs for them only once and
+ * routes cached with one are found with the other.
+ */
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class TravelTimeMetric implements EdgeMetric {
+	// the metric with the default speeds, see EdgeMetric.travelTime()
+	static final TravelTimeMetric DEFAULT = new TravelTimeMetric();
+
+	private final double[] speeds; // km/h by RoadClass ordinal
+	private final double minCostPerKm;
+
+	/**
+	 * Creates the metric with the default speed of every class
+	 */
+	public TravelTimeMetric() {
+		this(null);
+	}
+
+	/**
+	 * Creates the metric with the given speeds, and the default speed for
+	 * the classes that are not in the map
+	 * @param speeds speeds in km/h by road class, may be null
+	 */
+	public TravelTimeMetric(Map<RoadClass, Double> speeds) {
+		RoadClass[] classes = RoadClass.values();
+		this.speeds = new double[classes.length];
+		double maxSpeed = 0;
+		for (RoadClass roadClass : classes) {
+			double speed = roadClass.getDefaultSpeed();
+			if (speeds != null && speeds.containsKey(roadClass)) {
+				speed = speeds.get(roadClass);
+			}
+			if (!(speed > 0)) {
+				throw new IllegalArgumentException("Invalid speed for " + roadClass + ": " + speed);
+			}
+			this.speeds[roadClass.ordinal()] = speed;
+			maxSpeed = Math.max(maxSpeed, speed);
+		}
+		this.minCostPerKm = 3600 / maxSpeed;
+	}
+
+	/**
+	 * returns the speed used for a class of road
+	 * @param roadClass the class of road
+	 * @return the speed in km/h
+	 */
+	public double getSpeed(RoadClass roadClass) {
+		return speeds[roadClass.ordinal()];
+	}
+
+	/**
+	 * returns the time to drive along an edge
+	 * @return the time in seconds
+	 */
+	@Override
+	public double cost(double length, RoadClass roadClass) {
+		return length * 3600 / speeds[roadClass.ordinal()];
+	}
+
+	/**
+	 * returns the time to drive one km at the highest speed of all classes
+	 * @return seconds per km
+	 */
+	@Override
+	public double getMinCostPerKm() {
+		return minCostPerKm;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof TravelTimeMetric && Arrays.equals(speeds, ((TravelTimeMetric) o).speeds);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(speeds);
+	}
+
+	@Override
+	public String toString() {
+		return "travel time";
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		CompactGraph compact = theMap.toCompactGraph();
+
+		int queries = 2000;
+		Random random = new Random(42);
+		GeographicPoint[] starts = new GeographicPoint[queries];
+		GeographicPoint[] goals = new GeographicPoint[queries];
+		for (int i = 0; i < queries; i++) {
+			starts[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+			goals[i] = compact.getLocation(random.nextInt(compact.getNumVertices()));
+		}
+
+		final long[] settled = new long[1];
+		Consumer<GeographicPoint> counter = (x) -> settled[0]++;
+		EdgeMetric[] metrics = {EdgeMetric.DISTANCE, EdgeMetric.travelTime()};
+		System.out.println(file);
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the JIT
+			for (EdgeMetric metric : metrics) {
+				compact.setMetric(metric);
+				for (int algorithm = 0; algorithm < 2; algorithm++) {
+					settled[0] = 0;
+					long begin = System.nanoTime();
+					for (int i = 0; i < queries; i++) {
+						if (algorithm == 0) {
+							compact.dijkstra(starts[i], goals[i], counter);
+						} else {
+							compact.aStarSearch(starts[i], goals[i], counter);
+						}
+					}
+					long time = System.nanoTime() - begin;
+					if (pass == 1) {
+						System.out.println("  " + metric + (algorithm == 0 ? ", Dijkstra: " : ", A*: ")
+								+ settled[0] / queries + " settled nodes/query, "
+								+ time / queries / 1000 + " us/query");
+					}
+				}
+			}
+		}
+	}
+}
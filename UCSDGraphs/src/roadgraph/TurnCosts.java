@@ -0,0 +1,272 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * The cost of turning from one edge of a CompactGraph into the next, for
+ * routing with turn restrictions and penalties, see EdgeBasedRouter. A
+ * turn is a pair of edges, the first ending where the second starts.
+ * Most turns are free, so only the others are stored, in an open
+ * addressing hash table keyed by both edge ids packed into a long. A
+ * banned turn costs Double.POSITIVE_INFINITY. Turning back onto the road
+ * just driven costs the U-turn penalty unless the table says otherwise.
+ *
+ * Turns are read from a .turns file next to the .map file, one per line:
+ *   fromLat fromLon viaLat viaLon toLat toLon cost
+ * for the turn at the intersection via from the road coming from the
+ * intersection from into the road going to the intersection to, where
+ * cost is a number in the units of the metric or the word banned. A line
+ *   uturn cost
+ * sets the U-turn penalty. Empty lines and lines starting with # are
+ * skipped. The table is filled before routing and only read afterwards,
+ * so any number of threads can route with it.
+ */
+package roadgraph;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import geography.GeographicPoint;
+
+public class TurnCosts {
+	private static final long EMPTY = -1; // edge ids are never negative
+
+	private final CompactGraph graph;
+	private double uTurnPenalty;
+
+	// keys[i] is inEdge << 32 | outEdge, with its cost at costs[i]
+	private long[] keys;
+	private double[] costs;
+	private int size;
+
+	/**
+	 * Creates a table where every turn is free
+	 * @param graph the graph whose edges the turns join
+	 */
+	public TurnCosts(CompactGraph graph) {
+		this.graph = graph;
+		keys = new long[16];
+		Arrays.fill(keys, EMPTY);
+		costs = new double[16];
+	}
+
+	public CompactGraph getGraph() {
+		return graph;
+	}
+
+	public double getUTurnPenalty() {
+		return uTurnPenalty;
+	}
+
+	/**
+	 * sets the cost of turning back onto the road just driven, for the
+	 * U-turns that have no cost of their own
+	 * @param penalty the cost, Double.POSITIVE_INFINITY to ban U-turns
+	 */
+	public void setUTurnPenalty(double penalty) {
+		if (!(penalty >= 0)) {
+			throw new IllegalArgumentException("Invalid U-turn penalty: " + penalty);
+		}
+		uTurnPenalty = penalty;
+	}
+
+	/**
+	 * sets the cost of a turn
+	 * @param inEdge id of the edge the turn comes from
+	 * @param outEdge id of the edge the turn goes into, which must start
+	 *   where inEdge ends
+	 * @param cost the cost of the turn, Double.POSITIVE_INFINITY to ban it
+	 */
+	public void setCost(int inEdge, int outEdge, double cost) {
+		if (graph.getEdgeTarget(inEdge) != graph.getEdgeSource(outEdge)) {
+			throw new IllegalArgumentException("Edge " + outEdge + " does not start where edge "
+					+ inEdge + " ends");
+		}
+		if (!(cost >= 0)) {
+			throw new IllegalArgumentException("Invalid turn cost: " + cost);
+		}
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		long key = (long) inEdge << 32 | outEdge;
+		int i = slot(key, keys);
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			size++;
+		}
+		costs[i] = cost;
+	}
+
+	/**
+	 * bans a turn
+	 * @param inEdge id of the edge the turn comes from
+	 * @param outEdge id of the edge the turn goes into
+	 */
+	public void ban(int inEdge, int outEdge) {
+		setCost(inEdge, outEdge, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * returns the cost of a turn
+	 * @param inEdge id of the edge the turn comes from
+	 * @param outEdge id of the edge the turn goes into
+	 * @return the cost of the turn, Double.POSITIVE_INFINITY if it is banned
+	 */
+	public double getCost(int inEdge, int outEdge) {
+		if (size > 0) {
+			int i = slot((long) inEdge << 32 | outEdge, keys);
+			if (keys[i] != EMPTY) {
+				return costs[i];
+			}
+		}
+		return isUTurn(inEdge, outEdge) ? uTurnPenalty : 0;
+	}
+
+	/**
+	 * returns whether a turn goes back to where the in edge came from
+	 * @param inEdge id of the edge the turn comes from
+	 * @param outEdge id of the edge the turn goes into
+	 * @return true for a U-turn
+	 */
+	public boolean isUTurn(int inEdge, int outEdge) {
+		return graph.getEdgeTarget(outEdge) == graph.getEdgeSource(inEdge);
+	}
+
+	// The slot of a key, or the empty slot where it would go. Linear
+	// probing from a multiplicative hash of the key.
+	private static int slot(long key, long[] keys) {
+		int mask = keys.length - 1;
+		int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldCosts = costs;
+		keys = new long[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		costs = new double[keys.length];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slot(oldKeys[j], keys);
+				keys[i] = oldKeys[j];
+				costs[i] = oldCosts[j];
+			}
+		}
+	}
+
+	/**
+	 * returns the number of turns with a cost of their own
+	 * @return the number of entries in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * approximate number of bytes used by the table
+	 * @return the size of the table in bytes
+	 */
+	public long getMemoryFootprint() {
+		return 16L * keys.length;
+	}
+
+	/**
+	 * returns the turn file that belongs to a .map file
+	 * @param mapFile the .map file
+	 * @return the .turns file next to it
+	 */
+	public static File turnFile(String mapFile) {
+		return new File(mapFile.endsWith(".map")
+				? mapFile.substring(0, mapFile.length() - 4) + ".turns" : mapFile + ".turns");
+	}
+
+	/**
+	 * Reads the turns of a map from the .turns file next to it
+	 * @param graph the graph loaded from mapFile
+	 * @param mapFile the .map file the graph was loaded from
+	 * @return the turn costs, every turn is free if there is no turn file
+	 * @throws IOException if the turn file cannot be read or has a bad line
+	 */
+	public static TurnCosts loadFor(CompactGraph graph, String mapFile) throws IOException {
+		File file = turnFile(mapFile);
+		return file.exists() ? load(graph, file) : new TurnCosts(graph);
+	}
+
+	/**
+	 * Reads a turn file
+	 * @param graph the graph the turns belong to
+	 * @param file the file to read
+	 * @return the turn costs
+	 * @throws IOException if the file cannot be read, has a bad line or a
+	 *   turn between intersections that have no road between them
+	 */
+	public static TurnCosts load(CompactGraph graph, File file) throws IOException {
+		TurnCosts turns = new TurnCosts(graph);
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				try {
+					if (fields.length == 2 && fields[0].equals("uturn")) {
+						turns.setUTurnPenalty(parseCost(fields[1]));
+					} else if (fields.length == 7) {
+						turns.addTurn(point(fields, 0), point(fields, 2), point(fields, 4),
+								parseCost(fields[6]));
+					} else {
+						throw new IllegalArgumentException("expected 7 fields");
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ":" + number + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return turns;
+	}
+
+	private static GeographicPoint point(String[] fields, int i) {
+		return new GeographicPoint(Double.parseDouble(fields[i]), Double.parseDouble(fields[i + 1]));
+	}
+
+	private static double parseCost(String field) {
+		return field.equals("banned") ? Double.POSITIVE_INFINITY : Double.parseDouble(field);
+	}
+
+	// Sets the cost of every turn at via from a road coming from from into
+	// a road going to to, there can be more than one road between them.
+	private void addTurn(GeographicPoint from, GeographicPoint via, GeographicPoint to, double cost) {
+		int fromId = graph.getVertexId(from);
+		int viaId = graph.getVertexId(via);
+		int toId = graph.getVertexId(to);
+		if (fromId < 0 || viaId < 0 || toId < 0) {
+			throw new IllegalArgumentException("not an intersection of the map");
+		}
+		boolean found = false;
+		for (int i = graph.getFirstInEdge(viaId); i < graph.getFirstInEdge(viaId + 1); i++) {
+			int inEdge = graph.getInEdge(i);
+			if (graph.getEdgeSource(inEdge) != fromId) {
+				continue;
+			}
+			for (int out = graph.getFirstEdge(viaId); out < graph.getFirstEdge(viaId + 1); out++) {
+				if (graph.getEdgeTarget(out) == toId) {
+					setCost(inEdge, out, cost);
+					found = true;
+				}
+			}
+		}
+		if (!found) {
+			throw new IllegalArgumentException("no roads " + from + " -> " + via + " -> " + to);
+		}
+	}
+}
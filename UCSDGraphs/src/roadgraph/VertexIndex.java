@@ -0,0 +1,328 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A static k-d tree over the locations of the vertices, for snapping an
+ * arbitrary location to the closest intersection. The tree is packed into
+ * arrays: the vertices of a subtree are a range of the arrays with the
+ * splitting vertex in the middle, so there are no node objects and no
+ * pointers. Levels split on latitude and longitude in turn.
+ *
+ * Distances are measured in a flat projection around the middle latitude
+ * of the map, with longitudes scaled by the cosine of that latitude, which
+ * orders points the same way as the great circle distance at city scale.
+ */
+package roadgraph;
+
+import java.util.Random;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+public class VertexIndex {
+	private final int[] vertices; // vertex ids in tree order
+	private final double[] xs; // scaled longitudes in tree order
+	private final double[] ys; // latitudes in tree order
+	private final double lonScale;
+
+	/**
+	 * Builds the index over the given locations, vertex v is at
+	 * (latitudes[v], longitudes[v])
+	 * @param latitudes latitude of every vertex
+	 * @param longitudes longitude of every vertex
+	 */
+	public VertexIndex(double[] latitudes, double[] longitudes) {
+		int n = latitudes.length;
+		double minLat = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		for (double lat : latitudes) {
+			minLat = Math.min(minLat, lat);
+			maxLat = Math.max(maxLat, lat);
+		}
+		lonScale = n == 0 ? 1 : Math.cos(Math.toRadians((minLat + maxLat) / 2));
+
+		vertices = new int[n];
+		xs = new double[n];
+		ys = new double[n];
+		for (int v = 0; v < n; v++) {
+			vertices[v] = v;
+			xs[v] = longitudes[v] * lonScale;
+			ys[v] = latitudes[v];
+		}
+		build(0, n, 0);
+	}
+
+	/**
+	 * Builds the index over the vertices of a graph
+	 * @param graph the graph to index
+	 */
+	public VertexIndex(CompactGraph graph) {
+		this(graph.latitudeArray(), graph.longitudeArray());
+	}
+
+	public int size() {
+		return vertices.length;
+	}
+
+	// Puts the median of the range by the splitting coordinate in the
+	// middle, the smaller ones before it and the larger ones after it.
+	private void build(int lo, int hi, int depth) {
+		if (hi - lo <= 1) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		double[] keys = depth % 2 == 0 ? ys : xs;
+		select(keys, lo, hi - 1, mid);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	// Quickselect: moves the k-th smallest key of [lo, hi] to position k.
+	private void select(double[] keys, int lo, int hi, int k) {
+		while (hi > lo) {
+			double pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int v = vertices[i];
+		vertices[i] = vertices[j];
+		vertices[j] = v;
+		double x = xs[i];
+		xs[i] = xs[j];
+		xs[j] = x;
+		double y = ys[i];
+		ys[i] = ys[j];
+		ys[j] = y;
+	}
+
+	/**
+	 * returns the vertex closest to a location
+	 * @param latitude latitude of the location
+	 * @param longitude longitude of the location
+	 * @return id of the closest vertex, -1 if the index is empty
+	 */
+	public int nearest(double latitude, double longitude) {
+		int[] best = kNearest(latitude, longitude, 1);
+		return best.length == 0 ? -1 : best[0];
+	}
+
+	/**
+	 * returns the k vertices closest to a location
+	 * @param latitude latitude of the location
+	 * @param longitude longitude of the location
+	 * @param k the number of vertices
+	 * @return ids of the min(k, size()) closest vertices, closest first
+	 */
+	public int[] kNearest(double latitude, double longitude, int k) {
+		if (k < 0) {
+			throw new IllegalArgumentException("Invalid number of vertices: " + k);
+		}
+		Candidates candidates = new Candidates(Math.min(k, vertices.length));
+		if (candidates.capacity > 0) {
+			search(0, vertices.length, 0, longitude * lonScale, latitude, candidates);
+		}
+		return candidates.sorted();
+	}
+
+	private void search(int lo, int hi, int depth, double x, double y, Candidates candidates) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		double dx = xs[mid] - x;
+		double dy = ys[mid] - y;
+		candidates.offer(vertices[mid], dx * dx + dy * dy);
+
+		// the side of the split the location is on first, the other side
+		// only if it can hold something closer than the current candidates
+		double diff = depth % 2 == 0 ? y - ys[mid] : x - xs[mid];
+		if (diff < 0) {
+			search(lo, mid, depth + 1, x, y, candidates);
+			if (diff * diff < candidates.worst()) {
+				search(mid + 1, hi, depth + 1, x, y, candidates);
+			}
+		} else {
+			search(mid + 1, hi, depth + 1, x, y, candidates);
+			if (diff * diff < candidates.worst()) {
+				search(lo, mid, depth + 1, x, y, candidates);
+			}
+		}
+	}
+
+	/**
+	 * returns the vertices inside a box of latitudes and longitudes
+	 * @param minLat the southern edge of the box
+	 * @param minLon the western edge of the box
+	 * @param maxLat the northern edge of the box
+	 * @param maxLon the eastern edge of the box
+	 * @return ids of the vertices in the box, edges included, in no order
+	 */
+	public int[] inBox(double minLat, double minLon, double maxLat, double maxLon) {
+		IntList found = new IntList();
+		inBox(0, vertices.length, 0, minLon * lonScale, minLat, maxLon * lonScale, maxLat, found);
+		return found.toArray();
+	}
+
+	private void inBox(int lo, int hi, int depth, double minX, double minY,
+			double maxX, double maxY, IntList found) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		double x = xs[mid];
+		double y = ys[mid];
+		if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+			found.add(vertices[mid]);
+		}
+		double key = depth % 2 == 0 ? y : x;
+		double min = depth % 2 == 0 ? minY : minX;
+		double max = depth % 2 == 0 ? maxY : maxX;
+		if (min <= key) {
+			inBox(lo, mid, depth + 1, minX, minY, maxX, maxY, found);
+		}
+		if (max >= key) {
+			inBox(mid + 1, hi, depth + 1, minX, minY, maxX, maxY, found);
+		}
+	}
+
+	// The best vertices found so far, in a max heap on the squared distance
+	// so the worst one can be replaced.
+	private static class Candidates {
+		final int capacity;
+		final int[] ids;
+		final double[] distances;
+		int size;
+
+		Candidates(int capacity) {
+			this.capacity = capacity;
+			ids = new int[capacity];
+			distances = new double[capacity];
+		}
+
+		double worst() {
+			return size < capacity ? Double.MAX_VALUE : distances[0];
+		}
+
+		void offer(int id, double distance) {
+			if (size < capacity) {
+				int i = size++;
+				while (i > 0 && distances[(i - 1) / 2] < distance) {
+					ids[i] = ids[(i - 1) / 2];
+					distances[i] = distances[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				ids[i] = id;
+				distances[i] = distance;
+			} else if (distance < distances[0]) {
+				siftDown(id, distance, size);
+			}
+		}
+
+		// Puts id at the root of the first n entries and restores the heap.
+		private void siftDown(int id, double distance, int n) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= n) {
+					break;
+				}
+				if (child + 1 < n && distances[child + 1] > distances[child]) {
+					child++;
+				}
+				if (distances[child] <= distance) {
+					break;
+				}
+				ids[i] = ids[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			ids[i] = id;
+			distances[i] = distance;
+		}
+
+		// Empties the heap from the worst to the best.
+		int[] sorted() {
+			int[] result = new int[size];
+			for (int n = size; n > 0; n--) {
+				result[n - 1] = ids[0];
+				siftDown(ids[n - 1], distances[n - 1], n - 1);
+			}
+			return result;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String file = args.length > 0 ? args[0] : "data/maps/hollywood_large.map";
+		MapGraph theMap = new MapGraph();
+		GraphLoader.loadRoadMap(file, theMap);
+		CompactGraph graph = theMap.toCompactGraph();
+
+		long begin = System.nanoTime();
+		VertexIndex index = new VertexIndex(graph);
+		System.out.println(file + ": index over " + index.size() + " vertices built in "
+				+ (System.nanoTime() - begin) / 1000 + " us");
+
+		// random locations around the map
+		int queries = 100000;
+		Random random = new Random(42);
+		double[] lats = new double[queries];
+		double[] lons = new double[queries];
+		for (int i = 0; i < queries; i++) {
+			int v = random.nextInt(graph.getNumVertices());
+			lats[i] = graph.getLatitude(v) + (random.nextDouble() - 0.5) * 0.01;
+			lons[i] = graph.getLongitude(v) + (random.nextDouble() - 0.5) * 0.01;
+		}
+
+		long checksum = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the JIT
+			begin = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				checksum += index.nearest(lats[i], lons[i]);
+			}
+			long indexTime = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			for (int i = 0; i < queries / 10; i++) {
+				int best = -1;
+				double bestDistance = Double.MAX_VALUE;
+				for (int v = 0; v < graph.getNumVertices(); v++) {
+					double d = GeographicPoint.distance(lats[i], lons[i],
+							graph.getLatitude(v), graph.getLongitude(v));
+					if (d < bestDistance) {
+						best = v;
+						bestDistance = d;
+					}
+				}
+				checksum += best;
+			}
+			long scanTime = (System.nanoTime() - begin) * 10;
+			if (pass == 1) {
+				System.out.printf("  nearest: %.2f us/query, linear scan: %.2f us/query%n",
+						indexTime / 1000.0 / queries, scanTime / 1000.0 / queries);
+			}
+		}
+		System.out.println("  checksum " + checksum);
+	}
+}
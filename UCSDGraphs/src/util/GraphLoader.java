@@ -17,8 +17,6 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import basicgraph.Graph;
 import geography.GeographicPoint;
@@ -371,7 +369,7 @@ public class GraphLoader
 	
 	// Calculate the length of this road segment taking into account all of the 
 	// intermediate geographic points.
-	private static double getRoadLength(GeographicPoint start, GeographicPoint end,
+	static double getRoadLength(GeographicPoint start, GeographicPoint end,
 			List<GeographicPoint> path)
 	{
 		double dist = 0.0;
@@ -384,7 +382,7 @@ public class GraphLoader
 		return dist;
 	}
 	
-	private static List<GeographicPoint>
+	static List<GeographicPoint>
 	findPointsOnEdge(HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap,
 		RoadLineInfo info, Collection<GeographicPoint> nodes) 
 	{
@@ -456,62 +454,66 @@ public class GraphLoader
 		// match the roads out.
 		List<GeographicPoint> intersections = new LinkedList<GeographicPoint>();
 		for (GeographicPoint pt : pointMap.keySet()) {
-			List<LinkedList<RoadLineInfo>> roadsInAndOut = pointMap.get(pt);
-			LinkedList<RoadLineInfo> roadsOut = roadsInAndOut.get(0);
-			LinkedList<RoadLineInfo> roadsIn = roadsInAndOut.get(1);
-			
-			boolean isNode = true;
-			
-			if (roadsIn.size() == 1 && roadsOut.size() == 1) {
-				// If these are the reverse of each other, then this is
-				// and intersection (dead end)
-				if (!(roadsIn.get(0).point1.equals(roadsOut.get(0).point2) &&
-						roadsIn.get(0).point2.equals(roadsOut.get(0).point1))
-						&& roadsIn.get(0).roadName.equals(roadsOut.get(0).roadName)) {
-					isNode = false;
-				}
+			if (isIntersection(pointMap.get(pt))) {
+				intersections.add(pt);
 			}
-			if (roadsIn.size() == 2 && roadsOut.size() == 2) {
-				// If all the road segments have the same name, 
-				// And there are two pairs of reversed nodes, then 
-				// this is not an intersection because the roads pass
-				// through.
-			
-				String name = roadsIn.get(0).roadName;
-				boolean sameName = true;
-				for (RoadLineInfo info : roadsIn) {
-					if (!info.roadName.equals(name)) {
-						sameName = false;
-					}
+		}
+		return intersections;
+	}
+
+	// Whether the point with these roads in and out is an intersection.
+	static boolean isIntersection(List<LinkedList<RoadLineInfo>> roadsInAndOut) {
+		LinkedList<RoadLineInfo> roadsOut = roadsInAndOut.get(0);
+		LinkedList<RoadLineInfo> roadsIn = roadsInAndOut.get(1);
+		
+		boolean isNode = true;
+		
+		if (roadsIn.size() == 1 && roadsOut.size() == 1) {
+			// If these are the reverse of each other, then this is
+			// and intersection (dead end)
+			if (!(roadsIn.get(0).point1.equals(roadsOut.get(0).point2) &&
+					roadsIn.get(0).point2.equals(roadsOut.get(0).point1))
+					&& roadsIn.get(0).roadName.equals(roadsOut.get(0).roadName)) {
+				isNode = false;
+			}
+		}
+		if (roadsIn.size() == 2 && roadsOut.size() == 2) {
+			// If all the road segments have the same name, 
+			// And there are two pairs of reversed nodes, then 
+			// this is not an intersection because the roads pass
+			// through.
+		
+			String name = roadsIn.get(0).roadName;
+			boolean sameName = true;
+			for (RoadLineInfo info : roadsIn) {
+				if (!info.roadName.equals(name)) {
+					sameName = false;
 				}
-				for (RoadLineInfo info : roadsOut) {
-					if (!info.roadName.equals(name)) {
-						sameName = false;
-					}
+			}
+			for (RoadLineInfo info : roadsOut) {
+				if (!info.roadName.equals(name)) {
+					sameName = false;
 				}
+			}
+			
+			RoadLineInfo in1 = roadsIn.get(0);
+			RoadLineInfo in2 = roadsIn.get(1);
+			RoadLineInfo out1 = roadsOut.get(0);
+			RoadLineInfo out2 = roadsOut.get(1);
+	
+			boolean passThrough = false;
+			if ((in1.isReverse(out1) && in2.isReverse(out2)) ||
+					(in1.isReverse(out2) && in2.isReverse(out1))) {
 				
-				RoadLineInfo in1 = roadsIn.get(0);
-				RoadLineInfo in2 = roadsIn.get(1);
-				RoadLineInfo out1 = roadsOut.get(0);
-				RoadLineInfo out2 = roadsOut.get(1);
-		
-				boolean passThrough = false;
-				if ((in1.isReverse(out1) && in2.isReverse(out2)) ||
-						(in1.isReverse(out2) && in2.isReverse(out1))) {
-					
-					passThrough = true;
-				} 
-				
-				if (sameName && passThrough) {
-					isNode = false;
-				} 
-
+				passThrough = true;
 			} 
-			if (isNode) {
-				intersections.add(pt);
-			}
-		}
-		return intersections;
+			
+			if (sameName && passThrough) {
+				isNode = false;
+			} 
+
+		} 
+		return isNode;
 	}
 		
 	// Build the map from points to lists of lists of lines.
@@ -522,18 +524,19 @@ public class GraphLoader
 	private static HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>
 	buildPointMapOneWay(String filename)
 	{
-		BufferedReader reader = null;
-        HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
+        final HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
         		new HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>();
 		try {
-            String nextLine;
-            reader = new BufferedReader(new FileReader(filename));
             // Read the lines out of the file and put them in a HashMap by points
-            while ((nextLine = reader.readLine()) != null) {
-            	RoadLineInfo line = splitInputString(nextLine);
-            	addToPointsMapOneWay(line, pointMap);
-            }
-            reader.close();
+			new MapFileParser().parse(filename, new MapFileParser.LineHandler() {
+				@Override
+				public void line(double lat1, double lon1, double lat2, double lon2,
+						String roadName, String roadType) {
+					RoadLineInfo line = new RoadLineInfo(new GeographicPoint(lat1, lon1),
+							new GeographicPoint(lat2, lon2), roadName, roadType);
+					addToPointsMapOneWay(line, pointMap);
+				}
+			});
         } catch (IOException e) {
             System.err.println("Problem loading dictionary file: " + filename);
             e.printStackTrace();
@@ -544,7 +547,7 @@ public class GraphLoader
 
 
 	// Add the next line read from the file to the points map.
-	private static void 
+	static void 
 	addToPointsMapOneWay(RoadLineInfo line,
 						HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> map)
 	{
@@ -570,34 +573,6 @@ public class GraphLoader
 		
 	}
 	
-	// Split the input string into the line information
-	private static RoadLineInfo splitInputString(String input)
-	{	
-		
-		ArrayList<String> tokens = new ArrayList<String>();
-		Pattern tokSplitter = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"");
-		Matcher m = tokSplitter.matcher(input);
-		
-		while (m.find()) {
-			if (m.group(1) != null) {
-				tokens.add(m.group(1));	
-			}
-			else {
-				tokens.add(m.group());
-			}
-		}
-
-    	double lat1 = Double.parseDouble(tokens.get(0));
-        double lon1 = Double.parseDouble(tokens.get(1));
-        double lat2 = Double.parseDouble(tokens.get(2));
-        double lon2 = Double.parseDouble(tokens.get(3));
-        GeographicPoint p1 = new GeographicPoint(lat1, lon1);
-        GeographicPoint p2 = new GeographicPoint(lat2, lon2);
-
-        return new RoadLineInfo(p1, p2, tokens.get(4), tokens.get(5));
-		
-	}
-	
 	public static void main(String[] args)
 	{
 		GraphLoader.createIntersectionsFile("data/maps/hollywood_small.map", "data/intersections/hollywood_small.intersections");
@@ -614,103 +589,3 @@ public class GraphLoader
 	}
 	
 }	
-	
-
-// A class to store information about the lines in the road files.
-class RoadLineInfo
-{
-	GeographicPoint point1;
-	GeographicPoint point2;
-	
-	String roadName;
-	String roadType;
-	
-	/** Create a new RoadLineInfo object to store information about the line 
-	 * read from the file
-	 * @param p1 One of the points
-	 * @param p2 The other point
-	 * @param roadName The name of the road
-	 * @param roadType The type of the road
-	 */
-	RoadLineInfo(GeographicPoint p1, GeographicPoint p2, String roadName, String roadType) 
-	{
-		point1 = p1;
-		point2 = p2;
-		this.roadName = roadName;
-		this.roadType = roadType;
-	}
-	
-	
-	/** Get the other point from this roadLineInfo */
-	public GeographicPoint getOtherPoint(GeographicPoint pt)
-	{
-		if (pt == null) throw new IllegalArgumentException();
-		if (pt.equals(point1)) {
-			return point2;
-		}
-		else if (pt.equals(point2)) {
-			return point1;
-		}
-		else throw new IllegalArgumentException();
-	}
-	
-	/** Two RoadLineInfo objects are considered equal if they have the same
-	 * two points and the same roadName and roadType.
-	 */
-	public boolean equals(Object o)
-	{
-		if (o == null || !(o instanceof RoadLineInfo))
-		{
-			return false;
-		}
-		RoadLineInfo info = (RoadLineInfo)o;
-		return info.point1.equals(this.point1) && info.point2.equals(this.point2)  &&
-				info.roadType.equals(this.roadType) && info.roadName.equals(this.roadName);
-				
-	}
-	
-	/** Calculate the hashCode based on the hashCodes of the two points
-	 * @return The hashcode for this object.
-	 */
-	public int hashCode()
-	{
-		return point1.hashCode() + point2.hashCode();
-		
-	}
-	
-	/** Returns whether these segments are part of the same road in terms of
-	 * road name and road type.
-	 * @param info The RoadLineInfo to compare against.
-	 * @return true if these represent the same road, false otherwise.
-	 */
-	public boolean sameRoad(RoadLineInfo info)
-	{
-		return info.roadName.equals(this.roadName) && info.roadType.equals(this.roadType);
-	}
-	
-	/** Return a copy of this LineInfo in the other direction */
-	public RoadLineInfo getReverseCopy()
-	{
-		return new RoadLineInfo(this.point2, this.point1, this.roadName, this.roadType);
-	}
-	
-	/** Return true if this road is the same segment as other, but in reverse
-	 *   Otherwise return false.
-	 */
-	public boolean isReverse(RoadLineInfo other)
-	{
-		return this.point1.equals(other.point2) && this.point2.equals(other.point1) &&
-				this.roadName.equals(other.roadName) && this.roadType.equals(other.roadType);
-	}
-	
-	/** Return the string representation of this LineInfo. */
-	public String toString()
-	{
-		return this.point1 + " " + this.point2 + " " + this.roadName + " " + this.roadType;
-		
-	}
-	
-	
-	
-	
-}
@@ -0,0 +1,399 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * A streaming parser for .map files. Every line of a .map file is
+ *
+ *     lat1 lon1 lat2 lon2 "road name" roadType
+ *
+ * The parser reads the file in large byte buffers and hands every line to
+ * a LineHandler as four doubles and two Strings. The numbers are parsed
+ * straight from the bytes, and the road names and types are looked up in a
+ * table of the strings already seen, so only the first line of every road
+ * allocates a String. Tokens are split the same way GraphLoader always
+ * split them: on white space, quotes and apostrophes, with quoted names
+ * kept whole.
+ *
+ * A parser keeps its string table between calls and is not thread safe,
+ * use one parser per thread.
+ */
+package util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MapFileParser {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// powers of ten that are exact doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/** Receives the lines of a .map file in file order */
+	public interface LineHandler {
+		/**
+		 * Called once for every line of the file
+		 * @param lat1 latitude of the start of the segment
+		 * @param lon1 longitude of the start of the segment
+		 * @param lat2 latitude of the end of the segment
+		 * @param lon2 longitude of the end of the segment
+		 * @param roadName the road name without its quotes
+		 * @param roadType the road type
+		 */
+		void line(double lat1, double lon1, double lat2, double lon2,
+				String roadName, String roadType);
+	}
+
+	// strings seen so far, in an open addressing table keyed by their bytes
+	private byte[][] keys = new byte[256][];
+	private String[] values = new String[256];
+	private int numStrings = 0;
+
+	// position of the parser inside the buffer being parsed
+	private int pos;
+	private int lineStart;
+	private int end;
+
+	/**
+	 * Parses a whole .map file
+	 * @param filename the file to parse
+	 * @param handler receives every line
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	public void parse(String filename, LineHandler handler) throws IOException {
+		try (FileInputStream in = new FileInputStream(filename);
+				FileChannel channel = in.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (true) {
+				int read = channel.read(buffer);
+				if (read < 0) {
+					// the last line may have no newline at its end
+					parse(buffer, 0, buffer.position(), handler);
+					return;
+				}
+				int end = lastNewline(buffer, buffer.position());
+				if (end < 0) {
+					if (!buffer.hasRemaining()) {
+						// a single line longer than the buffer
+						buffer = grow(buffer);
+					}
+					continue;
+				}
+				parse(buffer, 0, end + 1, handler);
+				// keep the partial last line for the next read
+				int length = buffer.position();
+				buffer.limit(length).position(end + 1);
+				buffer.compact();
+			}
+		}
+	}
+
+	/**
+	 * Parses the lines between two positions of a buffer. The range must
+	 * start at the beginning of a line, a line that is cut by the end of
+	 * the range is parsed as it is.
+	 * @param buffer the bytes of a .map file
+	 * @param from position of the first byte to parse
+	 * @param to position after the last byte to parse
+	 * @param handler receives every line
+	 * @throws IOException if a line is malformed
+	 */
+	public void parse(ByteBuffer buffer, int from, int to, LineHandler handler) throws IOException {
+		pos = from;
+		end = to;
+		while (pos < to) {
+			lineStart = pos;
+			skipSpaces(buffer, to);
+			if (pos >= to) {
+				break;
+			}
+			if (buffer.get(pos) == '\n') {
+				// empty line
+				pos++;
+				continue;
+			}
+			double lat1 = parseDouble(buffer, to);
+			double lon1 = parseDouble(buffer, to);
+			double lat2 = parseDouble(buffer, to);
+			double lon2 = parseDouble(buffer, to);
+			String roadName = parseString(buffer, to);
+			String roadType = parseString(buffer, to);
+			// ignore anything else on the line
+			while (pos < to && buffer.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+			handler.line(lat1, lon1, lat2, lon2, roadName, roadType);
+		}
+	}
+
+	private static int lastNewline(ByteBuffer buffer, int end) {
+		for (int i = end - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer) {
+		ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	// Token separators are the ones of the "[^\\s\"']+|\"([^\"]*)\"" pattern
+	// GraphLoader used, the newline is left alone so lines stay apart.
+	private static boolean isSeparator(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B || b == '\'';
+	}
+
+	private void skipSpaces(ByteBuffer buffer, int to) {
+		while (pos < to && isSeparator(buffer.get(pos))) {
+			pos++;
+		}
+	}
+
+	private static boolean endsToken(byte b) {
+		return isSeparator(b) || b == '\n' || b == '"';
+	}
+
+	/**
+	 * Parses a decimal number. Numbers with at most 15 significant digits
+	 * and a small exponent are computed as one exact integer divided or
+	 * multiplied by one exact power of ten, which IEEE arithmetic rounds
+	 * correctly, so the result is the same as Double.parseDouble. Anything
+	 * else is handed to Double.parseDouble.
+	 */
+	private double parseDouble(ByteBuffer buffer, int to) throws IOException {
+		skipSpaces(buffer, to);
+		int start = pos;
+		boolean negative = false;
+		if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+			negative = buffer.get(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0; // significant digits in the mantissa
+		int scale = 0; // power of ten the mantissa is multiplied by
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		boolean exact = true;
+		while (pos < to) {
+			byte b = buffer.get(pos);
+			if (b >= '0' && b <= '9') {
+				seenDigit = true;
+				if (digits > 0 || b != '0') {
+					digits++;
+				}
+				if (digits <= 15) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (seenPoint) {
+						scale--;
+					}
+				} else {
+					exact = false;
+				}
+			} else if (b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (pos < to && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negativeExponent = buffer.get(pos) == '-';
+				pos++;
+			}
+			int exponent = 0;
+			boolean seenExponentDigit = false;
+			while (pos < to && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+				exponent = Math.min(exponent * 10 + (buffer.get(pos) - '0'), 10000);
+				seenExponentDigit = true;
+				pos++;
+			}
+			if (!seenExponentDigit) {
+				seenDigit = false;
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (!seenDigit || pos < to && !endsToken(buffer.get(pos))) {
+			// not a plain number, let parseDouble decide, e.g. "NaN"
+			while (pos < to && !endsToken(buffer.get(pos))) {
+				pos++;
+			}
+			return parseSlow(buffer, start);
+		}
+		if (!exact || scale < -22 || scale > 22) {
+			return parseSlow(buffer, start);
+		}
+		double value = mantissa;
+		value = scale < 0 ? value / POWERS_OF_TEN[-scale] : value * POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	private double parseSlow(ByteBuffer buffer, int start) throws IOException {
+		byte[] bytes = new byte[pos - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		try {
+			return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed line: " + lineText(buffer), e);
+		}
+	}
+
+	// A quoted string without its quotes, or a bare token.
+	private String parseString(ByteBuffer buffer, int to) throws IOException {
+		skipSpaces(buffer, to);
+		if (pos >= to || buffer.get(pos) == '\n') {
+			throw new IOException("Malformed line: " + lineText(buffer));
+		}
+		int start;
+		int end;
+		if (buffer.get(pos) == '"') {
+			start = ++pos;
+			while (pos < to && buffer.get(pos) != '"') {
+				pos++;
+			}
+			if (pos >= to) {
+				throw new IOException("Missing closing quote: " + lineText(buffer));
+			}
+			end = pos++;
+		} else {
+			start = pos;
+			while (pos < to && !endsToken(buffer.get(pos))) {
+				pos++;
+			}
+			end = pos;
+		}
+		return lookup(buffer, start, end);
+	}
+
+	// The String of the bytes between start and end, allocated only the
+	// first time those bytes are seen.
+	private String lookup(ByteBuffer buffer, int start, int end) {
+		int hash = 1;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		int mask = keys.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (keys[slot] != null) {
+			if (sameBytes(keys[slot], buffer, start, end)) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		byte[] key = new byte[end - start];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = buffer.get(start + i);
+		}
+		String value = new String(key, StandardCharsets.UTF_8);
+		keys[slot] = key;
+		values[slot] = value;
+		if (++numStrings * 2 > keys.length) {
+			rehash();
+		}
+		return value;
+	}
+
+	private static boolean sameBytes(byte[] key, ByteBuffer buffer, int start, int end) {
+		if (key.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != buffer.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		byte[][] oldKeys = keys;
+		String[] oldValues = values;
+		keys = new byte[oldKeys.length * 2][];
+		values = new String[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int hash = Arrays.hashCode(oldKeys[i]);
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private String lineText(ByteBuffer buffer) {
+		int lineEnd = lineStart;
+		while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+			lineEnd++;
+		}
+		byte[] bytes = new byte[lineEnd - lineStart];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(lineStart + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		File[] files = args.length > 0 ? new File[args.length] : new File("data/maps").listFiles();
+		for (int i = 0; i < args.length; i++) {
+			files[i] = new File(args[i]);
+		}
+		Arrays.sort(files);
+		final long[] lines = new long[1];
+		LineHandler counter = new LineHandler() {
+			@Override
+			public void line(double lat1, double lon1, double lat2, double lon2,
+					String roadName, String roadType) {
+				lines[0]++;
+			}
+		};
+
+		// warm up the JIT before measuring
+		for (File file : files) {
+			if (file.getName().endsWith(".map")) {
+				new MapFileParser().parse(file.getPath(), counter);
+			}
+		}
+
+		for (File file : files) {
+			if (!file.getName().endsWith(".map")) {
+				continue;
+			}
+			// repeat small files until enough time has passed to measure
+			long bytes = 0;
+			long begin = System.nanoTime();
+			do {
+				lines[0] = 0;
+				new MapFileParser().parse(file.getPath(), counter);
+				bytes += file.length();
+			} while (System.nanoTime() - begin < 500000000L);
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			System.out.printf("%-32s %6d lines %8.1f MB/s%n", file.getPath(), lines[0],
+					bytes / seconds / 1e6);
+		}
+	}
+}
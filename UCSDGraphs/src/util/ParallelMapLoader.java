@@ -0,0 +1,315 @@
+/**
+ * @author Abdelmaseh Nabil
+ *
+ * Loads a .map file like GraphLoader.loadRoadMap on all cores.
+ *
+ * The file is memory mapped and cut into byte ranges at line breaks. Every
+ * range is parsed by its own MapFileParser into its own point map, and the
+ * point maps are merged in file order. Then the intersections are found
+ * and the roads between them are traced as parallel passes over the
+ * points. Only adding the vertices, edges and segments is done on one
+ * thread, in the same order as GraphLoader, so the graph and the segments
+ * are exactly the ones the serial loader builds, down to the vertex ids
+ * and the order of the edges.
+ */
+package util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import roadgraph.MapGraph;
+
+public class ParallelMapLoader {
+	// ranges smaller than this are not worth a task of their own
+	private static final int MIN_RANGE_BYTES = 64 * 1024;
+
+	private ParallelMapLoader() {
+	}
+
+	/**
+	 * Loads a map with all cores.
+	 * @param filename The file containing the road data
+	 * @param map The graph to load the map into
+	 */
+	public static void loadRoadMap(String filename, MapGraph map)
+	{
+		loadRoadMap(filename, map, null, null);
+	}
+
+	/**
+	 * Loads a map with all cores. The result is the same as the one of
+	 * GraphLoader.loadRoadMap with the same arguments.
+	 * @param filename The file containing the road data
+	 * @param map The graph to load the map into
+	 * @param segments The road segments are added here, may be null
+	 * @param intersectionsToLoad The vertices are added here, may be null
+	 */
+	public static void loadRoadMap(String filename, MapGraph map,
+			HashMap<GeographicPoint, HashSet<RoadSegment>> segments,
+			Set<GeographicPoint> intersectionsToLoad)
+	{
+		HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> pointMap;
+		try {
+			pointMap = buildPointMap(filename);
+		} catch (IOException e) {
+			System.err.println("Problem loading map file: " + filename);
+			e.printStackTrace();
+			return;
+		}
+
+		// the serial loader adds the vertices in the order of the point map
+		final List<GeographicPoint> points = new ArrayList<GeographicPoint>(pointMap.keySet());
+		final List<List<LinkedList<RoadLineInfo>>> roads =
+				new ArrayList<List<LinkedList<RoadLineInfo>>>(points.size());
+		for (GeographicPoint pt : points) {
+			roads.add(pointMap.get(pt));
+		}
+		final boolean[] isNode = new boolean[points.size()];
+		IntStream.range(0, points.size()).parallel()
+				.forEach(i -> isNode[i] = GraphLoader.isIntersection(roads.get(i)));
+
+		Collection<GeographicPoint> nodes = new HashSet<GeographicPoint>();
+		for (int i = 0; i < points.size(); i++) {
+			if (isNode[i]) {
+				GeographicPoint pt = points.get(i);
+				map.addVertex(pt);
+				if (intersectionsToLoad != null) {
+					intersectionsToLoad.add(pt);
+				}
+				nodes.add(pt);
+			}
+		}
+
+		// trace the roads out of every intersection in parallel, then add
+		// them in the order the serial loader does
+		final List<GeographicPoint> nodeOrder = new ArrayList<GeographicPoint>(nodes);
+		final List<List<TracedEdge>> traced = new ArrayList<List<TracedEdge>>(nodeOrder.size());
+		for (int i = 0; i < nodeOrder.size(); i++) {
+			traced.add(null);
+		}
+		final HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> lines = pointMap;
+		final Collection<GeographicPoint> nodeSet = nodes;
+		IntStream.range(0, nodeOrder.size()).parallel()
+				.forEach(i -> traced.set(i, trace(lines, nodeOrder.get(i), nodeSet)));
+
+		for (int i = 0; i < nodeOrder.size(); i++) {
+			GeographicPoint pt = nodeOrder.get(i);
+			for (TracedEdge edge : traced.get(i)) {
+				map.addEdge(pt, edge.end, edge.info.roadName, edge.info.roadType, edge.length);
+				if (segments != null) {
+					RoadSegment seg = new RoadSegment(pt, edge.end, edge.pointsOnEdge,
+							edge.info.roadName, edge.info.roadType, edge.length);
+					addSegment(segments, pt, seg);
+					addSegment(segments, edge.end, seg);
+				}
+			}
+		}
+	}
+
+	// A road from an intersection to the next one.
+	private static class TracedEdge {
+		final RoadLineInfo info;
+		final GeographicPoint end;
+		final List<GeographicPoint> pointsOnEdge;
+		final double length;
+
+		TracedEdge(RoadLineInfo info, GeographicPoint end, List<GeographicPoint> pointsOnEdge,
+				double length) {
+			this.info = info;
+			this.end = end;
+			this.pointsOnEdge = pointsOnEdge;
+			this.length = length;
+		}
+	}
+
+	// Every road leaving pt, in the order of the lines in the file.
+	private static List<TracedEdge> trace(
+			HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> pointMap,
+			GeographicPoint pt, Collection<GeographicPoint> nodes) {
+		List<TracedEdge> edges = new ArrayList<TracedEdge>();
+		for (RoadLineInfo info : pointMap.get(pt).get(0)) {
+			List<GeographicPoint> pointsOnEdge = GraphLoader.findPointsOnEdge(pointMap, info, nodes);
+			GeographicPoint end = pointsOnEdge.remove(pointsOnEdge.size() - 1);
+			double length = GraphLoader.getRoadLength(pt, end, pointsOnEdge);
+			edges.add(new TracedEdge(info, end, pointsOnEdge, length));
+		}
+		return edges;
+	}
+
+	private static void addSegment(HashMap<GeographicPoint, HashSet<RoadSegment>> segments,
+			GeographicPoint pt, RoadSegment seg) {
+		HashSet<RoadSegment> segs = segments.get(pt);
+		if (segs == null) {
+			segs = new HashSet<RoadSegment>();
+			segments.put(pt, segs);
+		}
+		segs.add(seg);
+	}
+
+	/**
+	 * Parses the file in parallel ranges and merges the point maps of the
+	 * ranges. The points are put into the merged map in the order they first
+	 * appear in the file and their lines keep the file order, so the merged
+	 * map iterates exactly like the one the serial loader builds.
+	 */
+	private static HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>
+	buildPointMap(String filename) throws IOException
+	{
+		final ByteBuffer buffer;
+		try (FileInputStream in = new FileInputStream(filename);
+				FileChannel channel = in.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File too large to map: " + filename);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final int[] bounds = splitAtLines(buffer);
+		int numRanges = bounds.length - 1;
+
+		List<LinkedHashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>> partial =
+				new ArrayList<LinkedHashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>>();
+		for (int r = 0; r < numRanges; r++) {
+			partial.add(new LinkedHashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>());
+		}
+		final IOException[] failure = new IOException[1];
+		IntStream.range(0, numRanges).parallel().forEach(r -> {
+			final HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> local = partial.get(r);
+			try {
+				new MapFileParser().parse(buffer.duplicate(), bounds[r], bounds[r + 1],
+						(lat1, lon1, lat2, lon2, roadName, roadType) -> {
+							RoadLineInfo line = new RoadLineInfo(new GeographicPoint(lat1, lon1),
+									new GeographicPoint(lat2, lon2), roadName, roadType);
+							GraphLoader.addToPointsMapOneWay(line, local);
+						});
+			} catch (IOException e) {
+				synchronized (failure) {
+					failure[0] = e;
+				}
+			}
+		});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
+		HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> pointMap = partial.get(0);
+		for (int r = 1; r < numRanges; r++) {
+			for (Map.Entry<GeographicPoint, List<LinkedList<RoadLineInfo>>> entry
+					: partial.get(r).entrySet()) {
+				List<LinkedList<RoadLineInfo>> infos = pointMap.get(entry.getKey());
+				if (infos == null) {
+					pointMap.put(entry.getKey(), entry.getValue());
+				} else {
+					infos.get(0).addAll(entry.getValue().get(0));
+					infos.get(1).addAll(entry.getValue().get(1));
+				}
+			}
+			partial.set(r, null);
+		}
+		// put the points one at a time, so the map grows through the same
+		// sizes as the serial one and iterates in the same order
+		HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>> merged =
+				new HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>();
+		for (Map.Entry<GeographicPoint, List<LinkedList<RoadLineInfo>>> entry : pointMap.entrySet()) {
+			merged.put(entry.getKey(), entry.getValue());
+		}
+		return merged;
+	}
+
+	// Positions that cut the buffer into about one range per task, every
+	// range but the first starts right after a newline.
+	private static int[] splitAtLines(ByteBuffer buffer) {
+		int size = buffer.limit();
+		int tasks = Runtime.getRuntime().availableProcessors() * 4;
+		int numRanges = Math.max(1, Math.min(tasks, size / MIN_RANGE_BYTES));
+		int[] bounds = new int[numRanges + 1];
+		int count = 1;
+		for (int r = 1; r < numRanges; r++) {
+			int pos = Math.max((int) ((long) size * r / numRanges), bounds[count - 1]);
+			while (pos < size && buffer.get(pos - 1) != '\n') {
+				pos++;
+			}
+			if (pos > bounds[count - 1] && pos < size) {
+				bounds[count++] = pos;
+			}
+		}
+		bounds[count++] = size;
+		int[] result = new int[count];
+		System.arraycopy(bounds, 0, result, 0, count);
+		return result;
+	}
+
+	public static void main(String[] args)
+	{
+		File[] files = args.length > 0 ? new File[args.length] : new File("data/maps").listFiles();
+		for (int i = 0; i < args.length; i++) {
+			files[i] = new File(args[i]);
+		}
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+		for (int pass = 0; pass < 2; pass++) {
+			// the first pass warms up the JIT
+			for (File file : files) {
+				if (!file.getName().endsWith(".map")) {
+					continue;
+				}
+				long begin = System.nanoTime();
+				MapGraph serial = new MapGraph();
+				HashMap<GeographicPoint, HashSet<RoadSegment>> serialSegments =
+						new HashMap<GeographicPoint, HashSet<RoadSegment>>();
+				GraphLoader.loadRoadMap(file.getPath(), serial, serialSegments, null);
+				long serialTime = System.nanoTime() - begin;
+
+				begin = System.nanoTime();
+				MapGraph parallel = new MapGraph();
+				HashMap<GeographicPoint, HashSet<RoadSegment>> parallelSegments =
+						new HashMap<GeographicPoint, HashSet<RoadSegment>>();
+				loadRoadMap(file.getPath(), parallel, parallelSegments, null);
+				long parallelTime = System.nanoTime() - begin;
+
+				if (pass == 1) {
+					boolean same = serial.toCompactGraph().fingerprint()
+							== parallel.toCompactGraph().fingerprint()
+							&& sameSegments(serialSegments, parallelSegments);
+					System.out.printf("%-32s serial %6.1f ms, parallel %6.1f ms, identical: %b%n",
+							file.getPath(), serialTime / 1e6, parallelTime / 1e6, same);
+				}
+			}
+		}
+	}
+
+	// Equal segments, stored in the same direction.
+	private static boolean sameSegments(HashMap<GeographicPoint, HashSet<RoadSegment>> a,
+			HashMap<GeographicPoint, HashSet<RoadSegment>> b) {
+		if (!a.keySet().equals(b.keySet())) {
+			return false;
+		}
+		for (GeographicPoint pt : a.keySet()) {
+			Set<String> left = new HashSet<String>();
+			Set<String> right = new HashSet<String>();
+			for (RoadSegment seg : a.get(pt)) {
+				left.add(seg.toString());
+			}
+			for (RoadSegment seg : b.get(pt)) {
+				right.add(seg.toString());
+			}
+			if (!left.equals(right)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}